@@ -0,0 +1,400 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.thomasdimson.wikipedia.Data;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// LSPPRank for many anchors at once. Every job iterates one topic for a block of anchors, with ranks
+// interleaved as rank[linearId * blockSize + lane] so each edge pass serves the whole block. Anchors are
+// resolved to linearIds once, nodes are never mutated, and the top ranks of every (anchor, topic) pair
+// are written to a separate stream of AnchorRank messages as soon as that lane converges. Ranks match
+// lspprankInPlace for the same anchor only to within rounding, since a block sums in a different order.
+public class BatchPersonalizedPageRank {
+    public static final double DEFAULT_FOLLOW_PRIOR = 0.1;
+
+    final CSRGraph graph;
+    final List<IntermediateTSPRNode> nodes;
+    final long[] ids;
+    final double followPrior;
+    final double convergence;
+    final int topK;
+    final OutputStream out;
+    final SolverStats totals = new SolverStats();
+
+    BatchPersonalizedPageRank(CSRGraph graph, List<IntermediateTSPRNode> nodes, double followPrior,
+                              double convergence, int topK, OutputStream out) {
+        this.graph = graph;
+        this.nodes = nodes;
+        this.ids = new long[nodes.size()];
+        for(IntermediateTSPRNode node : nodes) {
+            ids[node.linearId] = node.id;
+        }
+        this.followPrior = followPrior;
+        this.convergence = convergence;
+        this.topK = topK;
+        this.out = out;
+    }
+
+    public class BlockRunnable implements Runnable {
+        final int topicNum;
+        final int[] anchors;
+        final String[] anchorTitles;
+
+        public BlockRunnable(int topicNum, int[] anchors, String[] anchorTitles) {
+            this.topicNum = topicNum;
+            this.anchors = anchors;
+            this.anchorTitles = anchorTitles;
+        }
+
+        @Override
+        public void run() {
+            try {
+                iterate();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void iterate() throws IOException {
+            final int b = anchors.length;
+            final int numNodes = graph.numNodes;
+            final int[] offsets = graph.offsets;
+            final int[] targets = graph.targets;
+            // The walk only depends on the topic, so every lane shares it
+            final TopicWalk walk = TopicWalk.ldaWeighted(graph, TopicSensitivePageRank.topicColumn(nodes, topicNum),
+                    followPrior, null);
+            final double[] targetWeight = walk.targetWeight;
+            final String label = "LSPPRank topic " + topicNum + " anchors " + anchorTitles[0] + ".."
+                    + anchorTitles[b - 1];
+
+            double [] lastRank = new double[numNodes * b];
+            double [] thisRank = new double[numNodes * b];
+            final double[] contribution = new double[b];
+            final double[] topicSum = new double[b];
+            final double[] difference = new double[b];
+
+            // Lanes still iterating, compacted as anchors converge
+            int[] active = new int[b];
+            int numActive = b;
+            for(int lane = 0; lane < b; lane++) {
+                active[lane] = lane;
+                // Initialize
+                lastRank[anchors[lane] * b + lane] = 1.0;
+            }
+
+            SolverStats stats = new SolverStats();
+            stats.solves = b;
+            long start = System.nanoTime();
+            for(int iteration = 0; numActive > 0; iteration++) {
+                if(iteration > 0) {
+                    double []tmp = thisRank;
+                    thisRank = lastRank;
+                    lastRank = tmp;
+                    // Clear old values
+                    for(int i = 0; i < thisRank.length; i++) {
+                        thisRank[i] = 0.0;
+                    }
+                }
+
+                // Power iteration, one pass over the edges for every active lane
+                for(int i = 0; i < numNodes; i++) {
+                    int startEdge = offsets[i];
+                    int endEdge = offsets[i + 1];
+                    if(startEdge == endEdge) {
+                        continue;
+                    }
+
+                    int base = i * b;
+                    double outWeight = walk.outWeight(i);
+                    for(int a = 0; a < numActive; a++) {
+                        int lane = active[a];
+                        contribution[lane] = BETA * lastRank[base + lane] / outWeight;
+                    }
+
+                    for(int e = startEdge; e < endEdge; e++) {
+                        int target = targets[e];
+                        int targetBase = target * b;
+                        double weight = targetWeight[target];
+                        if(numActive == b) {
+                            for(int lane = 0; lane < b; lane++) {
+                                thisRank[targetBase + lane] += contribution[lane] * weight;
+                            }
+                        } else {
+                            for(int a = 0; a < numActive; a++) {
+                                int lane = active[a];
+                                thisRank[targetBase + lane] += contribution[lane] * weight;
+                            }
+                        }
+                    }
+                }
+
+                // Reinsert leaked: all of it returns to the lane's anchor. The L1 difference is summed in the
+                // same pass as the leak and then corrected for the anchor's share.
+                for(int a = 0; a < numActive; a++) {
+                    topicSum[active[a]] = 0.0;
+                    difference[active[a]] = 0.0;
+                }
+                for(int i = 0; i < numNodes; i++) {
+                    int base = i * b;
+                    for(int a = 0; a < numActive; a++) {
+                        int lane = active[a];
+                        double value = thisRank[base + lane];
+                        topicSum[lane] += value;
+                        difference[lane] += Math.abs(value - lastRank[base + lane]);
+                    }
+                }
+                for(int a = 0; a < numActive; a++) {
+                    int lane = active[a];
+                    int index = anchors[lane] * b + lane;
+                    double before = Math.abs(thisRank[index] - lastRank[index]);
+                    thisRank[index] += 1.0 - topicSum[lane];
+                    difference[lane] += Math.abs(thisRank[index] - lastRank[index]) - before;
+                }
+
+                stats.iterations++;
+                stats.edgeVisits += graph.numEdges();
+                double maxDifference = 0.0;
+                int stillActive = 0;
+                for(int a = 0; a < numActive; a++) {
+                    int lane = active[a];
+                    maxDifference = Math.max(maxDifference, difference[lane]);
+                    if(difference[lane] < convergence) {
+                        write(topicNum, anchors[lane], anchorTitles[lane], thisRank, b, lane);
+                    } else {
+                        active[stillActive++] = lane;
+                    }
+                }
+                System.err.println(label + " iteration " + iteration + ": " + numActive + " active, max delta="
+                        + maxDifference);
+                numActive = stillActive;
+            }
+            stats.nanos = System.nanoTime() - start;
+            System.err.println(label + " finished: " + stats);
+            totals.add(stats);
+        }
+    }
+
+    // Writes the topK highest ranks of one lane, highest first
+    void write(int topicNum, int anchor, String anchorTitle, double[] rank, int b, int lane) throws IOException {
+        int[] top = topLinearIds(rank, b, lane, topK);
+        Data.AnchorRank.Builder builder = Data.AnchorRank.newBuilder()
+                .setAnchorId(ids[anchor])
+                .setAnchorTitle(anchorTitle)
+                .setTopic(topicNum);
+        for(int linearId : top) {
+            builder.addIds(ids[linearId]);
+            builder.addRanks(rank[linearId * b + lane]);
+        }
+        Data.AnchorRank message = builder.build();
+        synchronized(out) {
+            message.writeDelimitedTo(out);
+        }
+    }
+
+    // Bounded min-heap selection over one lane of an interleaved rank vector; k <= 0 keeps every node
+    static int[] topLinearIds(double[] rank, int b, int lane, int k) {
+        final int numNodes = rank.length / b;
+        if(k <= 0 || k > numNodes) {
+            k = numNodes;
+        }
+
+        int[] heap = new int[k];
+        int size = 0;
+        for(int i = 0; i < numNodes; i++) {
+            double value = rank[i * b + lane];
+            if(size < k) {
+                // Sift up
+                int pos = size++;
+                while(pos > 0) {
+                    int parent = (pos - 1) / 2;
+                    if(rank[heap[parent] * b + lane] <= value) {
+                        break;
+                    }
+                    heap[pos] = heap[parent];
+                    pos = parent;
+                }
+                heap[pos] = i;
+            } else if(value > rank[heap[0] * b + lane]) {
+                siftDown(heap, size, i, rank, b, lane);
+            }
+        }
+
+        // Pop smallest to the back so the result comes out highest first
+        for(int end = size - 1; end > 0; end--) {
+            int smallest = heap[0];
+            siftDown(heap, end, heap[end], rank, b, lane);
+            heap[end] = smallest;
+        }
+        return heap;
+    }
+
+    // Places node at the root of heap[0..size) and restores the min-heap property
+    private static void siftDown(int[] heap, int size, int node, double[] rank, int b, int lane) {
+        double value = rank[node * b + lane];
+        int pos = 0;
+        while(true) {
+            int child = 2 * pos + 1;
+            if(child >= size) {
+                break;
+            }
+            if(child + 1 < size && rank[heap[child + 1] * b + lane] < rank[heap[child] * b + lane]) {
+                child++;
+            }
+            if(rank[heap[child] * b + lane] >= value) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = node;
+    }
+
+    public static List<String> anchorTitlesWithInfobox(List<IntermediateTSPRNode> nodes, String infoboxType) {
+        List<String> titles = Lists.newArrayList();
+        for(IntermediateTSPRNode node : nodes) {
+            if(infoboxType.equals(node.infoboxType)) {
+                titles.add(node.title);
+            }
+        }
+        return titles;
+    }
+
+    public static void rankAnchors(List<IntermediateTSPRNode> nodes, List<String> anchorTitles, double convergence,
+                                   int anchorsPerBlock, int topK, OutputStream out)
+            throws InterruptedException, IOException {
+        rankAnchors(nodes, anchorTitles, convergence, anchorsPerBlock, topK, DEFAULT_FOLLOW_PRIOR, out,
+                Runtime.getRuntime().availableProcessors() + 2);
+    }
+
+    // Runs every topic for every anchor, anchorsPerBlock anchors per edge pass. Unknown titles are reported and
+    // skipped, repeated ones run once. Output messages come out in completion order, not anchor order. The
+    // first job to fail stops the run and its exception is rethrown, so out is never silently short.
+    public static void rankAnchors(List<IntermediateTSPRNode> nodes, List<String> anchorTitles, double convergence,
+                                   int anchorsPerBlock, int topK, double followPrior, OutputStream out,
+                                   int concurrentBlocks) throws InterruptedException, IOException {
+        if(nodes.size() == 0 || anchorTitles.size() == 0) {
+            return;
+        }
+
+        final int numTopics = nodes.get(0).lda.length;
+
+        Map<String, Integer> linearIdByTitle = Maps.newHashMapWithExpectedSize(nodes.size());
+        for(IntermediateTSPRNode node : nodes) {
+            linearIdByTitle.put(node.title, node.linearId);
+        }
+        List<Integer> anchors = Lists.newArrayListWithCapacity(anchorTitles.size());
+        List<String> resolvedTitles = Lists.newArrayListWithCapacity(anchorTitles.size());
+        Set<Integer> seen = Sets.newHashSet();
+        for(String title : anchorTitles) {
+            Integer linearId = linearIdByTitle.get(title);
+            if(linearId == null) {
+                System.err.println("Skipping unknown anchor " + title);
+                continue;
+            }
+            if(!seen.add(linearId)) {
+                continue;
+            }
+            anchors.add(linearId);
+            resolvedTitles.add(title);
+        }
+
+        System.out.println("Building CSR graph");
+        CSRGraph graph = CSRGraph.fromNodes(nodes);
+        BatchPersonalizedPageRank batch = new BatchPersonalizedPageRank(graph, nodes, followPrior, convergence,
+                topK, out);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrentBlocks);
+        System.out.println("Nodes " + nodes.size() + ", edges " + graph.numEdges() + ", anchors " + anchors.size()
+                + ", anchors per block " + anchorsPerBlock);
+        long start = System.nanoTime();
+        List<Future<?>> jobs = Lists.newArrayList();
+        for(int first = 0; first < anchors.size(); first += anchorsPerBlock) {
+            int blockSize = Math.min(anchorsPerBlock, anchors.size() - first);
+            int[] block = new int[blockSize];
+            String[] blockTitles = new String[blockSize];
+            for(int lane = 0; lane < blockSize; lane++) {
+                block[lane] = anchors.get(first + lane);
+                blockTitles[lane] = resolvedTitles.get(first + lane);
+            }
+            for(int tnum = 0; tnum < numTopics; tnum++) {
+                jobs.add(executorService.submit(batch.new BlockRunnable(tnum, block, blockTitles)));
+            }
+        }
+        executorService.shutdown();
+        try {
+            for(Future<?> job : jobs) {
+                job.get();
+            }
+        } catch (ExecutionException e) {
+            executorService.shutdownNow();
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException && cause.getCause() instanceof IOException) {
+                throw (IOException) cause.getCause();
+            }
+            throw new IOException("LSPPRank job failed", cause);
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            throw e;
+        }
+        System.out.println("Batch LSPPRank: " + batch.totals + ", wall time "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    public static Iterator<Data.AnchorRank> newAnchorRankIterator(String filename) throws IOException {
+        final InputStream inputStream = BlockCompressedFile.newInputStream(filename);
+
+        try {
+            return new Iterator<Data.AnchorRank>() {
+                Data.AnchorRank nextMessage = read();
+
+                private Data.AnchorRank read() throws IOException {
+                    Data.AnchorRank message = Data.AnchorRank.parseDelimitedFrom(inputStream);
+                    if(message == null) {
+                        inputStream.close();
+                    }
+                    return message;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return nextMessage != null;
+                }
+
+                @Override
+                public Data.AnchorRank next() {
+                    if(nextMessage == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Data.AnchorRank ret = nextMessage;
+                    try {
+                        nextMessage = read();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return ret;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.base.Function;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A length-delimited protobuf stream (DumpPage, WikiGraphNode, TSPRGraphNode, ...) deflated in independent
+// blocks of whole records, about blockBytes each before compression. A block index at the end of the file lets
+// readers inflate blocks on several threads and start at any record without reading what comes before it.
+// newInputStream and newOutputStream stand in for the plain buffered file streams: files are recognised by
+// their magic on reading and chosen by SUFFIX on writing, so every delimited reader and writer takes either.
+// Layout, big-endian: int magic, int version, the blocks, then for each block long offset, int compressed
+// bytes, int uncompressed bytes and int records, and last long index offset, int numBlocks, int magic.
+// The magic starts with a 0 byte, which no delimited file of non-empty records can start with.
+public class BlockCompressedFile {
+    public static final String SUFFIX = ".blz";
+    public static final int DEFAULT_BLOCK_BYTES = 2 << 20;
+
+    private static final int MAGIC = 0x00424c5a;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 2 * 4;
+    private static final int INDEX_ENTRY_BYTES = 8 + 3 * 4;
+    private static final int TRAILER_BYTES = 8 + 2 * 4;
+
+    // One daemon thread per core, shared by every reader and let go after a minute idle, so an open reader (the
+    // query server opens one per query) holds no threads of its own
+    private static final ThreadPoolExecutor INFLATERS;
+    static {
+        int cores = Runtime.getRuntime().availableProcessors();
+        INFLATERS = new ThreadPoolExecutor(cores, cores, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "block-inflater");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        INFLATERS.allowCoreThreadTimeOut(true);
+    }
+
+    public final String filename;
+    public final int numBlocks;
+    public final long numRecords;
+    private final long[] offsets;
+    private final int[] compressedBytes;
+    private final int[] uncompressedBytes;
+    // firstRecord[b] is the number of records before block b; firstRecord[numBlocks] == numRecords
+    private final long[] firstRecord;
+
+    private BlockCompressedFile(String filename, long[] offsets, int[] compressedBytes, int[] uncompressedBytes,
+                                long[] firstRecord) {
+        this.filename = filename;
+        this.numBlocks = offsets.length;
+        this.numRecords = firstRecord[offsets.length];
+        this.offsets = offsets;
+        this.compressedBytes = compressedBytes;
+        this.uncompressedBytes = uncompressedBytes;
+        this.firstRecord = firstRecord;
+    }
+
+    public static boolean isBlockCompressed(String filename) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(filename));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            // Shorter than a header
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static BlockCompressedFile open(String filename) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(filename, "r");
+        try {
+            if(raf.length() < HEADER_BYTES + TRAILER_BYTES || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("Not a block compressed file: " + filename);
+            }
+            raf.seek(raf.length() - TRAILER_BYTES);
+            long indexOffset = raf.readLong();
+            int numBlocks = raf.readInt();
+            if(raf.readInt() != MAGIC || indexOffset + (long) numBlocks * INDEX_ENTRY_BYTES + TRAILER_BYTES
+                    != raf.length()) {
+                throw new IOException("Truncated block compressed file: " + filename);
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(numBlocks * INDEX_ENTRY_BYTES);
+            raf.seek(indexOffset);
+            raf.readFully(index.array());
+            long[] offsets = new long[numBlocks];
+            int[] compressedBytes = new int[numBlocks];
+            int[] uncompressedBytes = new int[numBlocks];
+            long[] firstRecord = new long[numBlocks + 1];
+            for(int b = 0; b < numBlocks; b++) {
+                offsets[b] = index.getLong();
+                compressedBytes[b] = index.getInt();
+                uncompressedBytes[b] = index.getInt();
+                firstRecord[b + 1] = firstRecord[b] + index.getInt();
+            }
+            return new BlockCompressedFile(filename, offsets, compressedBytes, uncompressedBytes, firstRecord);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // filename's delimited records, inflated on all cores if it is block compressed
+    public static InputStream newInputStream(String filename) throws IOException {
+        if(isBlockCompressed(filename)) {
+            return open(filename).newInputStream(0, Long.MAX_VALUE, Runtime.getRuntime().availableProcessors());
+        }
+        return new BufferedInputStream(new FileInputStream(filename));
+    }
+
+    // A stream to write delimited records to filename, block compressed when it ends with SUFFIX
+    public static OutputStream newOutputStream(String filename) throws IOException {
+        if(filename.endsWith(SUFFIX)) {
+            return new Writer(filename, DEFAULT_BLOCK_BYTES, Runtime.getRuntime().availableProcessors());
+        }
+        return new BufferedOutputStream(new FileOutputStream(filename));
+    }
+
+    // Records [fromRecord, toRecord) as a delimited stream, up to 2 * threads blocks inflated ahead of the reader.
+    // The file is closed once the last record is read, or by close().
+    public InputStream newInputStream(long fromRecord, long toRecord, int threads) throws IOException {
+        return new BlockInputStream(fromRecord, Math.min(toRecord, numRecords), threads);
+    }
+
+    // Offset just past the first records records in a block's delimited bytes
+    private static int skipRecords(byte[] data, int records) throws IOException {
+        int pos = 0;
+        for(int r = 0; r < records; r++) {
+            int length = 0;
+            for(int shift = 0; ; shift += 7) {
+                if(pos == data.length || shift > 28) {
+                    throw new IOException("Bad record length in block");
+                }
+                int b = data[pos++];
+                length |= (b & 0x7f) << shift;
+                if((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            pos += length;
+        }
+        if(pos > data.length) {
+            throw new IOException("Record runs past the end of its block");
+        }
+        return pos;
+    }
+
+    private class BlockInputStream extends InputStream {
+        private final FileChannel channel;
+        private final Deque<Future<byte[]>> ahead = new ArrayDeque<Future<byte[]>>();
+        private final int maxAhead;
+        private final long fromRecord;
+        private final long toRecord;
+        private int nextToSubmit;
+        private int nextToRead;
+        private boolean closed;
+
+        private byte[] current = new byte[0];
+        private int currentPos;
+        private int currentEnd;
+
+        BlockInputStream(long fromRecord, long toRecord, int threads) throws IOException {
+            this.fromRecord = fromRecord;
+            this.toRecord = toRecord;
+            this.channel = new FileInputStream(filename).getChannel();
+            this.maxAhead = 2 * threads;
+            // Last block starting at or before fromRecord
+            int first = Arrays.binarySearch(firstRecord, 0, numBlocks, fromRecord);
+            if(first < 0) {
+                first = -first - 2;
+            }
+            this.nextToSubmit = Math.max(0, first);
+            this.nextToRead = nextToSubmit;
+        }
+
+        private boolean wanted(int block) {
+            return block < numBlocks && firstRecord[block] < toRecord;
+        }
+
+        private void submitAhead() {
+            while(ahead.size() < maxAhead && wanted(nextToSubmit)) {
+                final int block = nextToSubmit++;
+                ahead.add(INFLATERS.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException, DataFormatException {
+                        return inflate(block);
+                    }
+                }));
+            }
+        }
+
+        private byte[] inflate(int block) throws IOException, DataFormatException {
+            ByteBuffer compressed = ByteBuffer.allocate(compressedBytes[block]);
+            long position = offsets[block];
+            while(compressed.hasRemaining()) {
+                int read = channel.read(compressed, position);
+                if(read < 0) {
+                    throw new IOException("Truncated block " + block + " in " + filename);
+                }
+                position += read;
+            }
+
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed.array());
+                byte[] data = new byte[uncompressedBytes[block]];
+                int inflated = 0;
+                while(inflated < data.length) {
+                    int n = inflater.inflate(data, inflated, data.length - inflated);
+                    if(n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Block " + block + " of " + filename + " is short");
+                    }
+                    inflated += n;
+                }
+                return data;
+            } finally {
+                inflater.end();
+            }
+        }
+
+        // Moves to the next block with bytes in range; false at the end of the range
+        private boolean advance() throws IOException {
+            while(wanted(nextToRead)) {
+                if(closed) {
+                    throw new IOException(filename + " is closed");
+                }
+                submitAhead();
+                byte[] data;
+                try {
+                    data = ahead.removeFirst().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted inflating " + filename, e);
+                } catch (ExecutionException e) {
+                    close();
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                }
+                int block = nextToRead++;
+                current = data;
+                currentPos = fromRecord > firstRecord[block]
+                        ? skipRecords(data, (int) (fromRecord - firstRecord[block])) : 0;
+                currentEnd = toRecord < firstRecord[block + 1]
+                        ? skipRecords(data, (int) (toRecord - firstRecord[block])) : data.length;
+                if(currentPos < currentEnd) {
+                    return true;
+                }
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(currentPos == currentEnd && !advance()) {
+                return -1;
+            }
+            return current[currentPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(currentPos == currentEnd && !advance()) {
+                return -1;
+            }
+            int n = Math.min(len, currentEnd - currentPos);
+            System.arraycopy(current, currentPos, b, off, n);
+            currentPos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return currentEnd - currentPos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Blocks already inflating fail on the closed channel, and nobody waits for them
+            for(Future<byte[]> block : ahead) {
+                block.cancel(false);
+            }
+            ahead.clear();
+            channel.close();
+            closed = true;
+            currentPos = currentEnd;
+        }
+    }
+
+    private static class Block {
+        final byte[] data;
+        final int length;
+        final int records;
+        byte[] compressed;
+
+        Block(byte[] data, int length, int records) {
+            this.data = data;
+            this.length = length;
+            this.records = records;
+        }
+    }
+
+    // Takes the bytes of writeDelimitedTo calls (in any pieces) and cuts blocks at record boundaries, which it
+    // finds from the length prefixes. Blocks are deflated on threads threads and written in order.
+    public static class Writer extends OutputStream {
+        private final DataOutputStream out;
+        private final int blockBytes;
+        private final OrderedParallelStage<Block, Block> deflate;
+
+        private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        private final DataOutputStream index = new DataOutputStream(indexBytes);
+        private long written;
+        private int numBlocks;
+
+        private ByteArrayOutputStream block;
+        private int blockRecords;
+        // Bytes left in the record being written, or 0 between records and in a length prefix
+        private long recordRemaining;
+        private long lengthSoFar;
+        private int lengthShift;
+
+        public Writer(String filename, int blockBytes, int threads) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+            this.blockBytes = blockBytes;
+            this.block = new ByteArrayOutputStream(blockBytes + (blockBytes >> 2));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            written = HEADER_BYTES;
+
+            this.deflate = new OrderedParallelStage<Block, Block>("deflate", new Function<Block, Block>() {
+                @Override
+                public Block apply(Block block) {
+                    block.compressed = deflate(block.data, block.length);
+                    return block;
+                }
+            }, threads, 2 * threads, new Function<Block, Void>() {
+                @Override
+                public Void apply(Block block) {
+                    try {
+                        append(block);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        private static byte[] deflate(byte[] data, int length) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 3 + 64);
+                byte[] buffer = new byte[1 << 16];
+                while(!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return compressed.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        // On the stage's sink thread
+        private void append(Block block) throws IOException {
+            out.write(block.compressed);
+            index.writeLong(written);
+            index.writeInt(block.compressed.length);
+            index.writeInt(block.length);
+            index.writeInt(block.records);
+            written += block.compressed.length;
+            numBlocks++;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(recordRemaining == 0) {
+                    int next = b[off++] & 0xff;
+                    len--;
+                    block.write(next);
+                    lengthSoFar |= (long) (next & 0x7f) << lengthShift;
+                    lengthShift += 7;
+                    if((next & 0x80) == 0) {
+                        recordRemaining = lengthSoFar;
+                        lengthSoFar = 0;
+                        lengthShift = 0;
+                        if(recordRemaining == 0) {
+                            endRecord();
+                        }
+                    }
+                } else {
+                    int n = (int) Math.min(len, recordRemaining);
+                    block.write(b, off, n);
+                    off += n;
+                    len -= n;
+                    recordRemaining -= n;
+                    if(recordRemaining == 0) {
+                        endRecord();
+                    }
+                }
+            }
+        }
+
+        private void endRecord() throws IOException {
+            blockRecords++;
+            if(block.size() >= blockBytes) {
+                endBlock();
+            }
+        }
+
+        private void endBlock() throws IOException {
+            if(blockRecords == 0) {
+                return;
+            }
+            Block full = new Block(block.toByteArray(), block.size(), blockRecords);
+            block.reset();
+            blockRecords = 0;
+            try {
+                deflate.put(full);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if(recordRemaining != 0 || lengthShift != 0) {
+                    throw new IOException("Closed in the middle of a record");
+                }
+                endBlock();
+                try {
+                    deflate.finish();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                long indexOffset = written;
+                indexBytes.writeTo(out);
+                out.writeLong(indexOffset);
+                out.writeInt(numBlocks);
+                out.writeInt(MAGIC);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
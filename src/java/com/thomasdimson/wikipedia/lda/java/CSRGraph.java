@@ -0,0 +1,88 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+public class CSRGraph {
+    public final int numNodes;
+    // Edges of node i are targets[offsets[i]] .. targets[offsets[i + 1] - 1], all indexed by linearId
+    public final int[] offsets;
+    public final int[] targets;
+
+    public CSRGraph(int[] offsets, int[] targets) {
+        this.numNodes = offsets.length - 1;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    public int numEdges() {
+        return offsets[numNodes];
+    }
+
+    public int outDegree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    // Graph with every edge reversed; sources of each node come out in increasing order
+    public CSRGraph transpose() {
+        int[] inOffsets = new int[numNodes + 1];
+        for(int e = 0; e < targets.length; e++) {
+            inOffsets[targets[e] + 1]++;
+        }
+        for(int i = 0; i < numNodes; i++) {
+            inOffsets[i + 1] += inOffsets[i];
+        }
+
+        int[] sources = new int[targets.length];
+        int[] fill = new int[numNodes];
+        System.arraycopy(inOffsets, 0, fill, 0, numNodes);
+        for(int i = 0; i < numNodes; i++) {
+            for(int e = offsets[i]; e < offsets[i + 1]; e++) {
+                sources[fill[targets[e]]++] = i;
+            }
+        }
+
+        return new CSRGraph(inOffsets, sources);
+    }
+
+    public static CSRGraph fromNodes(List<IntermediateTSPRNode> nodes) {
+        final int numNodes = nodes.size();
+        long[] ids = new long[numNodes];
+        long[][] edges = new long[numNodes][];
+        for(IntermediateTSPRNode node : nodes) {
+            if(node.linearId < 0 || node.linearId >= numNodes) {
+                throw new IllegalArgumentException("Bad linear id " + node.linearId + " for " + node.title);
+            }
+            ids[node.linearId] = node.id;
+            edges[node.linearId] = node.edges;
+        }
+        return fromAdjacency(ids, edges);
+    }
+
+    // Node i has page id ids[i] and links to the page ids in edges[i]
+    public static CSRGraph fromAdjacency(long[] ids, long[][] edges) {
+        final int numNodes = ids.length;
+        Map<Long, Integer> linearIdById = Maps.newHashMapWithExpectedSize(numNodes);
+        int[] offsets = new int[numNodes + 1];
+        for(int i = 0; i < numNodes; i++) {
+            linearIdById.put(ids[i], i);
+            offsets[i + 1] = offsets[i] + edges[i].length;
+        }
+
+        int[] targets = new int[offsets[numNodes]];
+        for(int i = 0; i < numNodes; i++) {
+            int pos = offsets[i];
+            for(long targetId : edges[i]) {
+                Integer target = linearIdById.get(targetId);
+                if(target == null) {
+                    throw new IllegalArgumentException("Unknown edge target " + targetId + " from " + ids[i]);
+                }
+                targets[pos++] = target;
+            }
+        }
+
+        return new CSRGraph(offsets, targets);
+    }
+}
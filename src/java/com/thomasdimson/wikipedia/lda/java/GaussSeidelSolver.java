@@ -0,0 +1,80 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// Gauss-Seidel sweeps over the transposed graph: ranks are updated in place so nodes later in the sweep
+// already see this sweep's values. The leaked mass is 1 - BETA * (rank on nodes with out-edges), kept
+// current as ranks change, which leaves the fixed point identical to the Jacobi solvers'.
+public class GaussSeidelSolver extends RankSolver {
+    private final CSRGraph inbound;
+
+    public GaussSeidelSolver(CSRGraph inbound) {
+        this.inbound = inbound;
+    }
+
+    @Override
+    protected void iterate(TopicWalk walk, double[] rank, double convergence, String label, SolverStats stats,
+                           IterationListener listener) {
+        final int numNodes = inbound.numNodes;
+        final int[] offsets = inbound.offsets;
+        final int[] sources = inbound.targets;
+        final double[] targetWeight = walk.targetWeight;
+        final double[] teleport = walk.teleport;
+
+        // Share of each node's rank handed to every unit of target weight
+        double[] contribution = newBuffer(numNodes);
+        double followedMass = 0.0;
+        for(int i = 0; i < numNodes; i++) {
+            double outWeight = walk.outWeight(i);
+            if(outWeight > 0) {
+                contribution[i] = BETA * rank[i] / outWeight;
+                followedMass += rank[i];
+            }
+        }
+
+        for(int iteration = 0; ; iteration++) {
+            double difference = 0.0;
+            double sweptMass = 0.0;
+            for(int i = 0; i < numNodes; i++) {
+                double updated = 0.0;
+                if(targetWeight == null) {
+                    for(int e = offsets[i]; e < offsets[i + 1]; e++) {
+                        updated += contribution[sources[e]];
+                    }
+                } else {
+                    double weight = targetWeight[i];
+                    for(int e = offsets[i]; e < offsets[i + 1]; e++) {
+                        updated += contribution[sources[e]] * weight;
+                    }
+                }
+                updated += (1.0 - BETA * followedMass) * teleport[i];
+                double previous = rank[i];
+                difference += Math.abs(updated - previous);
+                rank[i] = updated;
+
+                double outWeight = walk.outWeight(i);
+                if(outWeight > 0) {
+                    contribution[i] = BETA * updated / outWeight;
+                    followedMass += updated - previous;
+                    sweptMass += updated;
+                }
+            }
+            // Drop any rounding drift from the running updates
+            followedMass = sweptMass;
+
+            stats.iterations++;
+            stats.edgeVisits += inbound.numEdges();
+            logIteration(label, iteration, difference);
+            boolean settled = notify(listener, iteration, rank, difference);
+
+            if(difference < convergence) {
+                break;
+            }
+            if(settled) {
+                stats.earlyStops++;
+                break;
+            }
+        }
+        releaseBuffer(contribution);
+    }
+}
@@ -0,0 +1,221 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// Relabelings of the graph that give linked nodes nearby linearIds. In dump order the rank updates along one
+// node's edges land all over a vector of several hundred MB; after relabeling most of them hit a few cache lines.
+public class GraphOrdering {
+    public static enum Method {
+        // Dump order, unchanged
+        NONE,
+        // Most linked-to nodes first, so the hottest rank entries share cache lines
+        DEGREE,
+        // Reverse Cuthill-McKee over links in either direction: BFS from low-degree nodes, neighbours by degree
+        RCM
+    }
+
+    // newId[oldId] for method
+    public static int[] permutation(CSRGraph graph, Method method) {
+        switch(method) {
+            case DEGREE:
+                return degreeOrder(graph);
+            case RCM:
+                return reverseCuthillMcKee(graph);
+            default:
+                int[] identity = new int[graph.numNodes];
+                for(int i = 0; i < identity.length; i++) {
+                    identity[i] = i;
+                }
+                return identity;
+        }
+    }
+
+    private static int[] degreeOrder(CSRGraph graph) {
+        final int numNodes = graph.numNodes;
+        int[] inDegree = new int[numNodes];
+        for(int target : graph.targets) {
+            inDegree[target]++;
+        }
+
+        // Descending in-degree, ties in dump order
+        long[] keys = new long[numNodes];
+        for(int i = 0; i < numNodes; i++) {
+            keys[i] = ((long) (Integer.MAX_VALUE - inDegree[i]) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] newId = new int[numNodes];
+        for(int i = 0; i < numNodes; i++) {
+            newId[(int) keys[i]] = i;
+        }
+        return newId;
+    }
+
+    private static int[] reverseCuthillMcKee(CSRGraph graph) {
+        final int numNodes = graph.numNodes;
+        final CSRGraph inbound = graph.transpose();
+        int[] degree = new int[numNodes];
+        int maxDegree = 0;
+        for(int i = 0; i < numNodes; i++) {
+            degree[i] = graph.outDegree(i) + inbound.outDegree(i);
+            maxDegree = Math.max(maxDegree, degree[i]);
+        }
+
+        long[] byDegree = new long[numNodes];
+        for(int i = 0; i < numNodes; i++) {
+            byDegree[i] = ((long) degree[i] << 32) | i;
+        }
+        Arrays.sort(byDegree);
+
+        // order doubles as the BFS queue; each component starts from its lowest-degree unvisited node
+        int[] order = new int[numNodes];
+        boolean[] visited = new boolean[numNodes];
+        long[] neighbours = new long[maxDegree];
+        int head = 0;
+        int tail = 0;
+        for(long key : byDegree) {
+            int start = (int) key;
+            if(visited[start]) {
+                continue;
+            }
+            visited[start] = true;
+            order[tail++] = start;
+
+            while(head < tail) {
+                int node = order[head++];
+                int count = 0;
+                for(int e = graph.offsets[node]; e < graph.offsets[node + 1]; e++) {
+                    int neighbour = graph.targets[e];
+                    if(!visited[neighbour]) {
+                        visited[neighbour] = true;
+                        neighbours[count++] = ((long) degree[neighbour] << 32) | neighbour;
+                    }
+                }
+                for(int e = inbound.offsets[node]; e < inbound.offsets[node + 1]; e++) {
+                    int neighbour = inbound.targets[e];
+                    if(!visited[neighbour]) {
+                        visited[neighbour] = true;
+                        neighbours[count++] = ((long) degree[neighbour] << 32) | neighbour;
+                    }
+                }
+                Arrays.sort(neighbours, 0, count);
+                for(int c = 0; c < count; c++) {
+                    order[tail++] = (int) neighbours[c];
+                }
+            }
+        }
+
+        int[] newId = new int[numNodes];
+        for(int i = 0; i < numNodes; i++) {
+            newId[order[i]] = numNodes - 1 - i;
+        }
+        return newId;
+    }
+
+    // graph with node i renamed newId[i]; each node's edges keep their order
+    public static CSRGraph permute(CSRGraph graph, int[] newId) {
+        final int numNodes = graph.numNodes;
+        int[] oldId = new int[numNodes];
+        for(int i = 0; i < numNodes; i++) {
+            oldId[newId[i]] = i;
+        }
+
+        int[] offsets = new int[numNodes + 1];
+        int[] targets = new int[graph.targets.length];
+        for(int i = 0; i < numNodes; i++) {
+            int old = oldId[i];
+            int pos = offsets[i];
+            for(int e = graph.offsets[old]; e < graph.offsets[old + 1]; e++) {
+                targets[pos++] = newId[graph.targets[e]];
+            }
+            offsets[i + 1] = pos;
+        }
+        return new CSRGraph(offsets, targets);
+    }
+
+    // nodes under the new linearIds, listed in that order. They share lda/tspr/lspr arrays with the originals,
+    // so ranking them fills in the original nodes.
+    public static List<IntermediateTSPRNode> relabel(List<IntermediateTSPRNode> nodes, int[] newId) {
+        IntermediateTSPRNode[] relabeled = new IntermediateTSPRNode[nodes.size()];
+        for(IntermediateTSPRNode node : nodes) {
+            int linearId = newId[node.linearId];
+            relabeled[linearId] = new IntermediateTSPRNode(node, linearId);
+        }
+        return Lists.newArrayList(relabeled);
+    }
+
+    // Average |target - source| over all edges, a rough measure of how far apart updates land
+    public static double meanEdgeSpan(CSRGraph graph) {
+        double total = 0.0;
+        for(int i = 0; i < graph.numNodes; i++) {
+            for(int e = graph.offsets[i]; e < graph.offsets[i + 1]; e++) {
+                total += Math.abs(graph.targets[e] - i);
+            }
+        }
+        return graph.numEdges() == 0 ? 0.0 : total / graph.numEdges();
+    }
+
+    // Fastest of iterations uniform push sweeps over graph, in nanoseconds
+    public static long iterationNanos(CSRGraph graph, int iterations) {
+        final int numNodes = graph.numNodes;
+        double[] lastRank = new double[numNodes];
+        double[] thisRank = new double[numNodes];
+        Arrays.fill(lastRank, 1.0 / numNodes);
+        long best = Long.MAX_VALUE;
+        for(int iteration = 0; iteration < iterations; iteration++) {
+            long start = System.nanoTime();
+            Arrays.fill(thisRank, 0.0);
+            for(int i = 0; i < numNodes; i++) {
+                int begin = graph.offsets[i];
+                int end = graph.offsets[i + 1];
+                if(begin == end) {
+                    continue;
+                }
+                double coeff = BETA * lastRank[i] / (end - begin);
+                for(int e = begin; e < end; e++) {
+                    thisRank[graph.targets[e]] += coeff;
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+
+            double[] tmp = thisRank;
+            thisRank = lastRank;
+            lastRank = tmp;
+        }
+        return best;
+    }
+
+    // Relabels nodes by method and logs what it cost against the per-iteration time it saves, timed over
+    // benchmarkIterations sweeps of each layout (0 skips the timing)
+    public static List<IntermediateTSPRNode> reorder(List<IntermediateTSPRNode> nodes, Method method,
+                                                     int benchmarkIterations) {
+        if(method == Method.NONE || nodes.isEmpty()) {
+            return nodes;
+        }
+
+        CSRGraph graph = CSRGraph.fromNodes(nodes);
+        long start = System.nanoTime();
+        int[] newId = permutation(graph, method);
+        List<IntermediateTSPRNode> relabeled = relabel(nodes, newId);
+        long cost = System.nanoTime() - start;
+
+        CSRGraph permuted = permute(graph, newId);
+        System.out.println("Reordering " + method + ": " + cost / 1000000 + " ms, mean edge span "
+                + Math.round(meanEdgeSpan(graph)) + " -> " + Math.round(meanEdgeSpan(permuted)));
+        if(benchmarkIterations > 0) {
+            long before = iterationNanos(graph, benchmarkIterations);
+            long after = iterationNanos(permuted, benchmarkIterations);
+            String payback = before > after ? "after " + (cost + before - after - 1) / (before - after) + " iterations"
+                    : "never";
+            System.out.println("Reordering " + method + ": push iteration " + before / 1000000 + " ms -> "
+                    + after / 1000000 + " ms (" + String.format("%.2fx", (double) before / after)
+                    + "), pays for itself " + payback);
+        }
+        return relabeled;
+    }
+}
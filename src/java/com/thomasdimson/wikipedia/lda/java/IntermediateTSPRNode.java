@@ -14,16 +14,34 @@ public class IntermediateTSPRNode {
     public final String infoboxType;
 
     public IntermediateTSPRNode(int linearId, long id, String title, long []edges, double[] lda, String infoboxType) {
+        this(linearId, id, title, edges, lda, infoboxType, true);
+    }
+
+    // Without allocateRanks, tspr and lspr are null; ranks then go to a ScoreStore and toProto cannot be used
+    public IntermediateTSPRNode(int linearId, long id, String title, long []edges, double[] lda, String infoboxType,
+                                boolean allocateRanks) {
         this.linearId = linearId;
         this.id = id;
         this.title = title;
         this.edges = edges;
         this.lda = lda;
-        this.tspr = new double[this.lda.length];
-        this.lspr = new double[this.lda.length];
+        this.tspr = allocateRanks ? new double[this.lda.length] : null;
+        this.lspr = allocateRanks ? new double[this.lda.length] : null;
         this.infoboxType = infoboxType;
     }
 
+    // The same node under another linearId, sharing its lda, tspr and lspr arrays
+    IntermediateTSPRNode(IntermediateTSPRNode node, int linearId) {
+        this.linearId = linearId;
+        this.id = node.id;
+        this.title = node.title;
+        this.edges = node.edges;
+        this.lda = node.lda;
+        this.tspr = node.tspr;
+        this.lspr = node.lspr;
+        this.infoboxType = node.infoboxType;
+    }
+
     public Data.TSPRGraphNode toProto() {
         Data.TSPRGraphNode.Builder builder = Data.TSPRGraphNode.newBuilder()
                 .setId(this.id)
@@ -2,8 +2,11 @@ package com.thomasdimson.wikipedia.lda.java;
 
 import cc.mallet.pipe.*;
 import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
@@ -13,20 +16,28 @@ import com.thomasdimson.wikipedia.Data;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 public class LDAModel {
     public static final Pipe INSTANCE_PIPE;
 
     static {
+        INSTANCE_PIPE = instancePipe(new Alphabet());
+    }
+
+    // INSTANCE_PIPE, with its features in alphabet
+    public static Pipe instancePipe(Alphabet alphabet) {
         List<Pipe> pipeList = Lists.newArrayList();
         Pattern splitPattern = Pattern.compile("[^ ]+");
         pipeList.add(new CharSequence2TokenSequence(splitPattern));
-        pipeList.add(new TokenSequence2FeatureSequence());
-        INSTANCE_PIPE = new SerialPipes(pipeList);
+        pipeList.add(new TokenSequence2FeatureSequence(alphabet));
+        return new SerialPipes(pipeList);
     }
 
     public static Instance malletInstanceFromDumpPage(Data.DumpPage page) {
@@ -34,14 +45,11 @@ public class LDAModel {
         return new Instance(page.getText(), target, page.getTitle(), page.getTitle());
     }
 
+    // filename is a cleaned structured dump or a TokenCorpus
     public static ParallelTopicModel initializeTopicModel(String filename, int numTopics) throws IOException {
-        InstanceList instanceList = new InstanceList(INSTANCE_PIPE);
-        Iterator<Data.DumpPage> it = WikipediaHandler.newStructuredDumpIterator(filename);
         System.err.println("Loading data");
-        while(it.hasNext()) {
-            Data.DumpPage p = it.next();
-            instanceList.addThruPipe(malletInstanceFromDumpPage(p));
-        }
+        InstanceList instanceList = loadInstances(filename, Runtime.getRuntime().availableProcessors(),
+                WikipediaHandler.DEFAULT_STAGE_CAPACITY);
 
         ParallelTopicModel model = new ParallelTopicModel(numTopics, 0.01 * numTopics, ParallelTopicModel.DEFAULT_BETA);
         model.addInstances(instanceList);
@@ -50,6 +58,130 @@ public class LDAModel {
         return model;
     }
 
+    // The instances INSTANCE_PIPE makes from filename, a cleaned structured dump or a TokenCorpus, decoded and
+    // tokenized on workers threads with at most capacity documents in flight. Only feature sequences are kept.
+    // Dump words get alphabet indices in order of first appearance, as the pipe gives them: workers share one
+    // LoaderWord per distinct word and the in-order sink indexes each the first time it sees it, so the
+    // single-threaded part of the load is a field read per token. A TokenCorpus comes with its alphabet built.
+    public static InstanceList loadInstances(String filename, int workers, int capacity) throws IOException {
+        long start = System.nanoTime();
+        final Alphabet alphabet = TokenCorpus.isTokenCorpus(filename) ? TokenCorpus.readAlphabet(filename)
+                : new Alphabet();
+        final InstanceList instances = new InstanceList(instancePipe(alphabet));
+        final long[] tokens = new long[1];
+        OrderedParallelStage<?, ?> stage;
+        if(TokenCorpus.isTokenCorpus(filename)) {
+            OrderedParallelStage<TokenCorpus.Document, Instance> convert =
+                    new OrderedParallelStage<TokenCorpus.Document, Instance>("load",
+                            new Function<TokenCorpus.Document, Instance>() {
+                @Override
+                public Instance apply(TokenCorpus.Document document) {
+                    return TokenCorpus.malletInstance(alphabet, document);
+                }
+            }, workers, capacity, new Function<Instance, Void>() {
+                @Override
+                public Void apply(Instance instance) {
+                    tokens[0] += ((FeatureSequence) instance.getData()).getLength();
+                    instances.add(instance);
+                    return null;
+                }
+            });
+            feed(TokenCorpus.iterator(filename), convert);
+            stage = convert;
+        } else {
+            final ConcurrentMap<String, LoaderWord> words = new ConcurrentHashMap<String, LoaderWord>();
+            OrderedParallelStage<Data.DumpPage, TokenizedPage> tokenize =
+                    new OrderedParallelStage<Data.DumpPage, TokenizedPage>("load",
+                            new Function<Data.DumpPage, TokenizedPage>() {
+                @Override
+                public TokenizedPage apply(Data.DumpPage page) {
+                    return new TokenizedPage(page, words);
+                }
+            }, workers, capacity, new Function<TokenizedPage, Void>() {
+                @Override
+                public Void apply(TokenizedPage page) {
+                    int[] features = new int[page.words.length];
+                    for(int i = 0; i < features.length; i++) {
+                        LoaderWord word = page.words[i];
+                        if(word.index < 0) {
+                            word.index = alphabet.lookupIndex(word.text, true);
+                        }
+                        features[i] = word.index;
+                    }
+                    tokens[0] += features.length;
+                    instances.add(new Instance(new FeatureSequence(alphabet, features, features.length),
+                            page.target, page.title, page.title));
+                    return null;
+                }
+            });
+            feed(WikipediaHandler.newStructuredDumpIterator(filename), tokenize);
+            stage = tokenize;
+        }
+
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.err.println("Loaded " + instances.size() + " documents, " + tokens[0] + " tokens, "
+                + alphabet.size() + " words in " + ms + " ms (" + instances.size() * 1000 / ms + " documents/s, "
+                + tokens[0] * 1000 / ms + " tokens/s); " + stage);
+        return instances;
+    }
+
+    // Puts every item into stage and waits for it to finish
+    static <T> void feed(Iterator<T> it, OrderedParallelStage<T, ?> stage) throws IOException {
+        try {
+            while(it.hasNext()) {
+                stage.put(it.next());
+            }
+            stage.finish();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // A distinct word of a dump being loaded; only the sink touches index
+    private static class LoaderWord {
+        final String text;
+        int index = -1;
+
+        LoaderWord(String text) {
+            this.text = text;
+        }
+    }
+
+    // A page's words split as INSTANCE_PIPE splits them, each the one LoaderWord every loader thread shares
+    private static class TokenizedPage {
+        final String target;
+        final String title;
+        final LoaderWord[] words;
+
+        TokenizedPage(Data.DumpPage page, ConcurrentMap<String, LoaderWord> loaderWords) {
+            target = Double.toString(page.getId());
+            title = page.getTitle();
+            String text = page.getText();
+            List<LoaderWord> split = Lists.newArrayList();
+            int from = 0;
+            while(from < text.length()) {
+                int to = text.indexOf(' ', from);
+                if(to < 0) {
+                    to = text.length();
+                }
+                if(to > from) {
+                    String token = text.substring(from, to);
+                    LoaderWord word = loaderWords.get(token);
+                    if(word == null) {
+                        LoaderWord fresh = new LoaderWord(token);
+                        word = loaderWords.putIfAbsent(token, fresh);
+                        if(word == null) {
+                            word = fresh;
+                        }
+                    }
+                    split.add(word);
+                }
+                from = to + 1;
+            }
+            words = split.toArray(new LoaderWord[split.size()]);
+        }
+    }
+
     public static ParallelTopicModel createFromStructuredDump(String filename, int numTopics, String modelFilePrefix) throws IOException {
         ParallelTopicModel model = initializeTopicModel(filename, numTopics);
         if(modelFilePrefix != null) {
@@ -75,6 +207,7 @@ public class LDAModel {
         model.printTopicWordWeights(new File(wordFile));
     }
 
+    // structuredDumpFile may also be a TokenCorpus, whose documents are read as ids with no splitting or hashing
     public static void writeAverageTokenProbability(String wordModelFile, String structuredDumpFile, String outputName, int numTopics) throws IOException {
         Pattern splitPattern = Pattern.compile("\\s+", Pattern.MULTILINE);
         BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputName), Charset.forName("UTF-8")));
@@ -82,12 +215,36 @@ public class LDAModel {
             System.err.println("Reading word probabilities");
             Map<String, double []> wordProbability = readWordLDAMap(wordModelFile, numTopics);
             System.err.println("Calculating document likelihood");
-            Iterator<Data.DumpPage> it = WikipediaHandler.newStructuredDumpIterator(structuredDumpFile);
+            double []averages = new double[numTopics];
             int num = 0;
+            if(TokenCorpus.isTokenCorpus(structuredDumpFile)) {
+                String[] vocabulary = TokenCorpus.readVocabulary(structuredDumpFile);
+                double[][] tokenProbability = new double[vocabulary.length][];
+                for(int i = 0; i < vocabulary.length; i++) {
+                    tokenProbability[i] = wordProbability.get(vocabulary[i]);
+                }
+                Iterator<TokenCorpus.Document> it = TokenCorpus.iterator(structuredDumpFile);
+                while(it.hasNext()) {
+                    TokenCorpus.Document d = it.next();
+                    Arrays.fill(averages, 0);
+                    for(int t = 0; t < d.length; t++) {
+                        double[] probs = tokenProbability[d.tokens[t]];
+                        if(probs != null) {
+                            for(int i = 0; i < numTopics; i++) {
+                                averages[i] += probs[i];
+                            }
+                        }
+                    }
+                    writeAverages(w, num++, d.title, averages, d.length);
+                }
+                return;
+            }
+
+            Iterator<Data.DumpPage> it = WikipediaHandler.newStructuredDumpIterator(structuredDumpFile);
             while(it.hasNext()) {
                 Data.DumpPage p = it.next();
                 String[] split = splitPattern.split(p.getText());
-                double []averages = new double[numTopics];
+                Arrays.fill(averages, 0);
                 for(String word : split) {
                     double[] probs = wordProbability.get(word);
                     if(probs != null) {
@@ -96,31 +253,34 @@ public class LDAModel {
                         }
                     }
                 }
-
-                if(split.length > 0) {
-                    for(int i = 0; i <numTopics; i++) {
-                        averages[i] /= split.length;
-                    }
-                }
-
-                w.write(Integer.toString(num));
-                w.write("\t");
-                w.write(p.getTitle());
-                for(int i = 0; i < numTopics; i++) {
-                    w.write("\t");
-                    w.write(Integer.toString(i));
-                    w.write("\t");
-                    w.write(Double.toString(averages[i]));
-                }
-                w.write("\n");
-
-                num++;
+                writeAverages(w, num++, p.getTitle(), averages, split.length);
             }
         } finally {
             w.close();
         }
     }
 
+    // One line of writeAverageTokenProbability: the sums of numTokens tokens' probabilities, averaged
+    private static void writeAverages(Writer w, int num, String title, double[] averages, int numTokens)
+            throws IOException {
+        if(numTokens > 0) {
+            for(int i = 0; i < averages.length; i++) {
+                averages[i] /= numTokens;
+            }
+        }
+
+        w.write(Integer.toString(num));
+        w.write("\t");
+        w.write(title);
+        for(int i = 0; i < averages.length; i++) {
+            w.write("\t");
+            w.write(Integer.toString(i));
+            w.write("\t");
+            w.write(Double.toString(averages[i]));
+        }
+        w.write("\n");
+    }
+
     public static Map<String, double[]> readWordLDAMap(String filename, int numTopics) throws IOException {
         BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(filename), Charset.forName("UTF-8")));
         String line;
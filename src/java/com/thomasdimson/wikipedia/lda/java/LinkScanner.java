@@ -0,0 +1,243 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+// One pass over wiki markup for its link targets and first infobox type, matching what
+// \[\[([^|\[\]#]+)(?:[|#]|\]\]) and \{\{[Ii]nfobox\s+([a-zA-Z0-9_\s]+) find (see lda.core/textual-links and
+// infobox-type). Links are kept as char ranges into the text; link and capitalizedLink give reusable views of
+// them for TitleDictionary lookups, so no substring is made for a link unless the caller asks for one.
+// Not thread safe; keep one per thread and reuse it across pages.
+public class LinkScanner {
+    // Upper case of each ASCII char as String.toUpperCase gives it, which is what capitalizing a title uses
+    private static final String[] ASCII_UPPER = new String[128];
+    static {
+        for(char c = 0; c < 128; c++) {
+            ASCII_UPPER[c] = String.valueOf(c).toUpperCase();
+        }
+    }
+
+    private CharSequence text;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int numLinks;
+    private int infoboxStart;
+    private int infoboxEnd;
+
+    private final Window link = new Window();
+    private final Window capitalized = new Window();
+
+    public LinkScanner scan(CharSequence text) {
+        this.text = text;
+        numLinks = 0;
+        infoboxStart = -1;
+        int length = text.length();
+        // Like the regex, the next link can only start after the last one's match; an infobox can be anywhere
+        int nextLink = 0;
+        for(int i = 0; i + 1 < length; i++) {
+            char c = text.charAt(i);
+            if(c == '[' && text.charAt(i + 1) == '[') {
+                if(i >= nextLink) {
+                    nextLink = Math.max(nextLink, matchLink(i + 2));
+                }
+            } else if(c == '{' && text.charAt(i + 1) == '{' && infoboxStart < 0) {
+                matchInfobox(i + 2);
+            }
+        }
+        return this;
+    }
+
+    // Records the link whose target starts at from, if there is one, and returns the end of the match; else -1
+    private int matchLink(int from) {
+        int length = text.length();
+        int end = from;
+        while(end < length) {
+            char c = text.charAt(end);
+            if(c == '|' || c == '[' || c == ']' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        if(end == from || end == length) {
+            return -1;
+        }
+        char next = text.charAt(end);
+        int matchEnd;
+        if(next == '|' || next == '#') {
+            matchEnd = end + 1;
+        } else if(next == ']' && end + 1 < length && text.charAt(end + 1) == ']') {
+            matchEnd = end + 2;
+        } else {
+            return -1;
+        }
+        if(numLinks == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * numLinks);
+            ends = Arrays.copyOf(ends, 2 * numLinks);
+        }
+        starts[numLinks] = from;
+        ends[numLinks] = end;
+        numLinks++;
+        return matchEnd;
+    }
+
+    // Records the infobox type if one follows the {{ that ends at from
+    private void matchInfobox(int from) {
+        String word = "nfobox";
+        int length = text.length();
+        if(from + 1 + word.length() > length) {
+            return;
+        }
+        char first = text.charAt(from);
+        if(first != 'I' && first != 'i') {
+            return;
+        }
+        for(int k = 0; k < word.length(); k++) {
+            if(text.charAt(from + 1 + k) != word.charAt(k)) {
+                return;
+            }
+        }
+        int spaceStart = from + 1 + word.length();
+        int spaceEnd = spaceStart;
+        while(spaceEnd < length && isSpace(text.charAt(spaceEnd))) {
+            spaceEnd++;
+        }
+        int typeEnd = spaceEnd;
+        while(typeEnd < length && (isSpace(text.charAt(typeEnd)) || isWordChar(text.charAt(typeEnd)))) {
+            typeEnd++;
+        }
+        if(typeEnd > spaceEnd && spaceEnd > spaceStart) {
+            infoboxStart = spaceEnd;
+            infoboxEnd = typeEnd;
+        } else if(spaceEnd - spaceStart >= 2) {
+            // The regex backtracks one space into the type
+            infoboxStart = spaceEnd - 1;
+            infoboxEnd = spaceEnd;
+        }
+    }
+
+    // \s without UNICODE_CHARACTER_CLASS
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    public int numLinks() {
+        return numLinks;
+    }
+
+    public int linkStart(int i) {
+        return starts[i];
+    }
+
+    public int linkEnd(int i) {
+        return ends[i];
+    }
+
+    // The i-th link target; the view is reused by the next call
+    public CharSequence link(int i) {
+        return link.set(null, starts[i], ends[i]);
+    }
+
+    // The i-th link target with its first char upper-cased, as lda.core/cap-case does; reused like link
+    public CharSequence capitalizedLink(int i) {
+        char first = text.charAt(starts[i]);
+        String head = first < 128 ? ASCII_UPPER[first] : String.valueOf(first).toUpperCase();
+        return capitalized.set(head, starts[i] + 1, ends[i]);
+    }
+
+    // Whether capitalizedLink(i) differs from link(i)
+    public boolean capitalizes(int i) {
+        char first = text.charAt(starts[i]);
+        if(first < 128) {
+            return ASCII_UPPER[first].charAt(0) != first;
+        }
+        String head = String.valueOf(first).toUpperCase();
+        return head.length() != 1 || head.charAt(0) != first;
+    }
+
+    public String linkText(int i) {
+        return text.subSequence(starts[i], ends[i]).toString();
+    }
+
+    public List<String> links() {
+        List<String> links = Lists.newArrayListWithCapacity(numLinks);
+        for(int i = 0; i < numLinks; i++) {
+            links.add(linkText(i));
+        }
+        return links;
+    }
+
+    // Whitespace runs collapsed, trimmed and lower-cased like lda.core/infobox-type, or null without an infobox
+    public String infoboxType() {
+        if(infoboxStart < 0) {
+            return null;
+        }
+        StringBuilder type = new StringBuilder(infoboxEnd - infoboxStart);
+        boolean space = false;
+        for(int i = infoboxStart; i < infoboxEnd; i++) {
+            char c = text.charAt(i);
+            if(isSpace(c)) {
+                space = true;
+            } else {
+                if(space && type.length() > 0) {
+                    type.append(' ');
+                }
+                space = false;
+                type.append(c);
+            }
+        }
+        return type.toString().toLowerCase();
+    }
+
+    public static List<String> textualLinks(CharSequence text) {
+        return new LinkScanner().scan(text).links();
+    }
+
+    public static String infoboxType(CharSequence text) {
+        return new LinkScanner().scan(text).infoboxType();
+    }
+
+    // head followed by text[from, to)
+    private class Window implements CharSequence {
+        private String head;
+        private int from;
+        private int to;
+
+        Window set(String head, int from, int to) {
+            this.head = head;
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        private int headLength() {
+            return head == null ? 0 : head.length();
+        }
+
+        @Override
+        public int length() {
+            return headLength() + to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            int headLength = headLength();
+            return index < headLength ? head.charAt(index) : text.charAt(from + index - headLength);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return (head == null ? "" : head) + text.subSequence(from, to);
+        }
+    }
+}
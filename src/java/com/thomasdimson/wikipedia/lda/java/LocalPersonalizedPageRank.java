@@ -0,0 +1,313 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.thomasdimson.wikipedia.Data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// Approximate anchor-personalized LDA-weighted PageRank (what LSPPRankInPlaceRunnable computes for the
+// whole graph) by forward push in the style of Andersen, Chung and Lang. Only nodes whose residual
+// exceeds epsilon times their out-degree are ever pushed, so a query touches the anchor's neighbourhood.
+public class LocalPersonalizedPageRank {
+    public static final double DEFAULT_FOLLOW_PRIOR = 0.1;
+    public static final double DEFAULT_EPSILON = 1e-6;
+
+    public static class Result {
+        public final long id;
+        public final String title;
+        public final String infoboxType;
+        public final double rank;
+
+        Result(long id, String title, String infoboxType, double rank) {
+            this.id = id;
+            this.title = title;
+            this.infoboxType = infoboxType;
+            this.rank = rank;
+        }
+    }
+
+    private static final Ordering<Result> BY_RANK = new Ordering<Result>() {
+        @Override
+        public int compare(Result result, Result result2) {
+            return Double.compare(result.rank, result2.rank);
+        }
+    };
+
+    private final MappedGraph graph;
+    private final long[] ids;
+    private final String[] titles;
+    private final String[] infoboxTypes;
+    private final DoubleBuffer[] lda;
+    private final double followPrior;
+    // Title hashes sorted, with the linearId for each, in place of a title map
+    private final long[] titleHashes;
+    private final int[] linearIdByHash;
+
+    // Node i of graph has page id ids[i], titles[i] and infoboxTypes[i]; edges and LDA stay in the mapped files
+    public LocalPersonalizedPageRank(MappedGraph graph, long[] ids, String[] titles, String[] infoboxTypes,
+                                     double followPrior) throws IOException {
+        if(ids.length != graph.numNodes || titles.length != graph.numNodes
+                || infoboxTypes.length != graph.numNodes) {
+            throw new IllegalArgumentException("Expected " + graph.numNodes + " nodes from " + graph.dir);
+        }
+        this.graph = graph;
+        this.ids = ids;
+        this.titles = titles;
+        this.infoboxTypes = infoboxTypes;
+        this.followPrior = followPrior;
+        this.lda = new DoubleBuffer[graph.numTopics];
+        for(int t = 0; t < graph.numTopics; t++) {
+            lda[t] = graph.column(MappedGraph.LDA, t, FileChannel.MapMode.READ_ONLY);
+        }
+        this.titleHashes = new long[titles.length];
+        for(int i = 0; i < titles.length; i++) {
+            titleHashes[i] = MappedGraph.titleHash(titles[i]);
+        }
+        this.linearIdByHash = new int[titles.length];
+        for(int i = 0; i < titles.length; i++) {
+            linearIdByHash[i] = i;
+        }
+        MappedGraph.sortPairs(titleHashes, linearIdByHash, titles.length);
+    }
+
+    // Loads a WikiGraphNode file and the document topic file that readLDAMap reads. Edges and LDA are mapped
+    // from workDir, which is (re)built with MappedGraph.build when missing or older than either file; only
+    // ids, titles and infobox types are read onto the heap.
+    public static LocalPersonalizedPageRank fromFiles(String graphFile, String ldaFile, String workDir)
+            throws IOException {
+        File header = new File(workDir, MappedGraph.HEADER);
+        MappedGraph graph;
+        if(!header.exists() || header.lastModified() < new File(graphFile).lastModified()
+                || header.lastModified() < new File(ldaFile).lastModified()) {
+            graph = MappedGraph.build(graphFile, ldaFile, workDir);
+        } else {
+            graph = MappedGraph.open(workDir);
+        }
+
+        final int numNodes = graph.numNodes;
+        long[] ids = new long[numNodes];
+        String[] titles = new String[numNodes];
+        String[] infoboxTypes = new String[numNodes];
+        Interner<String> interner = Interners.newStrongInterner();
+        int i = 0;
+        Iterator<Data.WikiGraphNode> it = TopicSensitivePageRank.newWikiGraphNodeIterator(graphFile);
+        while(it.hasNext()) {
+            Data.WikiGraphNode node = it.next();
+            if(i == numNodes) {
+                throw new IllegalArgumentException(graphFile + " has more nodes than " + workDir);
+            }
+            ids[i] = node.getId();
+            titles[i] = node.getTitle();
+            // A few thousand distinct infobox types over millions of nodes
+            infoboxTypes[i] = node.hasInfoboxType() ? interner.intern(node.getInfoboxType()) : null;
+            i++;
+        }
+        if(i != numNodes) {
+            throw new IllegalArgumentException(graphFile + " has fewer nodes than " + workDir);
+        }
+
+        return new LocalPersonalizedPageRank(graph, ids, titles, infoboxTypes, DEFAULT_FOLLOW_PRIOR);
+    }
+
+    // linearId of the page titled title (the last one, as with a title map, if several share it), or -1
+    public int linearId(String title) {
+        long hash = MappedGraph.titleHash(title);
+        int found = -1;
+        for(int i = MappedGraph.firstIndex(titleHashes, titleHashes.length, hash); i >= 0
+                && i < titleHashes.length && titleHashes[i] == hash; i++) {
+            int linearId = linearIdByHash[i];
+            if(linearId > found && titles[linearId].equals(title)) {
+                found = linearId;
+            }
+        }
+        return found;
+    }
+
+    public List<Result> topK(String anchorTitle, int topicNum, int k) {
+        return topK(anchorTitle, topicNum, k, DEFAULT_EPSILON);
+    }
+
+    // Empty when the anchor is unknown
+    public List<Result> topK(String anchorTitle, int topicNum, int k, double epsilon) {
+        int anchor = linearId(anchorTitle);
+        if(anchor < 0) {
+            return Lists.newArrayList();
+        }
+
+        NodeValues rank = rank(anchor, topicNum, epsilon);
+        List<Result> results = Lists.newArrayListWithCapacity(rank.size);
+        for(int slot = 0; slot < rank.keys.length; slot++) {
+            int node = rank.keys[slot];
+            if(node != NodeValues.EMPTY) {
+                results.add(new Result(ids[node], titles[node], infoboxTypes[node], rank.values[slot]));
+            }
+        }
+        return BY_RANK.greatestOf(results, k);
+    }
+
+    // Sparse estimate of the personalized rank, keyed by linearId. Each push moves (1 - BETA) of a
+    // node's residual into the estimate and spreads BETA over its out-edges by followPrior + lda[topic];
+    // a node with no out-edges returns that share to the anchor, like the reinsertion in LSPPRank.
+    public NodeValues rank(int anchor, int topicNum, double epsilon) {
+        final DoubleBuffer topic = lda[topicNum];
+        NodeValues estimate = new NodeValues();
+        NodeValues residual = new NodeValues();
+        NodeQueue queue = new NodeQueue();
+
+        residual.add(anchor, 1.0);
+        queue.add(anchor);
+        long pushes = 0;
+        long start = System.nanoTime();
+        while(!queue.isEmpty()) {
+            int node = queue.poll();
+            double mass = residual.get(node);
+            residual.put(node, 0.0);
+            estimate.add(node, (1.0 - BETA) * mass);
+            pushes++;
+
+            int from = graph.offset(node);
+            int to = graph.offset(node + 1);
+            if(from == to) {
+                addResidual(residual, queue, anchor, BETA * mass, epsilon);
+                continue;
+            }
+
+            double neighborSum = 0.0;
+            for(int e = from; e < to; e++) {
+                neighborSum += followPrior + topic.get(graph.target(e));
+            }
+            double coeff = BETA * mass / neighborSum;
+            for(int e = from; e < to; e++) {
+                int target = graph.target(e);
+                addResidual(residual, queue, target, coeff * (followPrior + topic.get(target)), epsilon);
+            }
+        }
+
+        System.err.println("Local personalized PageRank for " + titles[anchor] + " topic " + topicNum + ": "
+                + pushes + " pushes, " + estimate.size + " nodes in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return estimate;
+    }
+
+    private void addResidual(NodeValues residual, NodeQueue queue, int node, double mass, double epsilon) {
+        double before = residual.get(node);
+        double after = residual.add(node, mass);
+        double threshold = epsilon * Math.max(graph.offset(node + 1) - graph.offset(node), 1);
+        // Only enqueue on crossing the threshold, so each node sits in the queue at most once
+        if(before < threshold && after >= threshold) {
+            queue.add(node);
+        }
+    }
+
+    // Growable FIFO ring buffer of linearIds
+    private static class NodeQueue {
+        int[] nodes = new int[64];
+        int head = 0;
+        int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int node) {
+            if(size == nodes.length) {
+                int[] grown = new int[nodes.length * 2];
+                for(int i = 0; i < size; i++) {
+                    grown[i] = nodes[(head + i) & (nodes.length - 1)];
+                }
+                nodes = grown;
+                head = 0;
+            }
+            nodes[(head + size) & (nodes.length - 1)] = node;
+            size++;
+        }
+
+        int poll() {
+            int node = nodes[head];
+            head = (head + 1) & (nodes.length - 1);
+            size--;
+            return node;
+        }
+    }
+
+    // Open-addressed linearId -> double map, so a query allocates in proportion to the nodes it touches
+    public static class NodeValues {
+        static final int EMPTY = -1;
+
+        int[] keys = newKeys(64);
+        double[] values = new double[64];
+        int size = 0;
+
+        private static int[] newKeys(int capacity) {
+            int[] keys = new int[capacity];
+            java.util.Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private int slot(int node) {
+            int mask = keys.length - 1;
+            int slot = (node * 0x9E3779B9) & mask;
+            while(keys[slot] != EMPTY && keys[slot] != node) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double get(int node) {
+            int slot = slot(node);
+            return keys[slot] == EMPTY ? 0.0 : values[slot];
+        }
+
+        public void put(int node, double value) {
+            int slot = slot(node);
+            if(keys[slot] == EMPTY) {
+                insert(slot, node, value);
+            } else {
+                values[slot] = value;
+            }
+        }
+
+        // Returns the new value
+        public double add(int node, double value) {
+            int slot = slot(node);
+            if(keys[slot] == EMPTY) {
+                insert(slot, node, value);
+                return value;
+            }
+            values[slot] += value;
+            return values[slot];
+        }
+
+        private void insert(int slot, int node, double value) {
+            keys[slot] = node;
+            values[slot] = value;
+            if(++size * 2 > keys.length) {
+                int[] oldKeys = keys;
+                double[] oldValues = values;
+                keys = newKeys(oldKeys.length * 2);
+                values = new double[oldKeys.length * 2];
+                for(int i = 0; i < oldKeys.length; i++) {
+                    if(oldKeys[i] != EMPTY) {
+                        int newSlot = slot(oldKeys[i]);
+                        keys[newSlot] = oldKeys[i];
+                        values[newSlot] = oldValues[i];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.thomasdimson.wikipedia.Data;
+
+import java.io.*;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// The WikiGraphNode edge structure and LDA priors as memory-mapped files in a directory, so TSPR can run with
+// only its rank vectors on the heap. Node i is the i-th record of the graph file. Files, all big-endian:
+//   header   numNodes, numEdges, numTopics
+//   offsets  int[numNodes + 1], CSR offsets as in CSRGraph
+//   targets  int[numEdges], edge targets by linearId
+//   lda      double[numTopics][numNodes], topic-major so one topic is one contiguous column
+// Ranks are written the same way (see createColumns) next to them.
+public class MappedGraph {
+    static final String HEADER = "header";
+    static final String OFFSETS = "offsets";
+    static final String TARGETS = "targets";
+    static final String LDA = "lda";
+
+    // Targets are mapped in chunks of 2^28 ints since a single mapping is limited to 2GB
+    private static final int SEGMENT_BITS = 28;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private static final HashFunction TITLE_HASH = Hashing.murmur3_128();
+
+    public final File dir;
+    public final int numNodes;
+    public final long numEdges;
+    public final int numTopics;
+    private final IntBuffer offsets;
+    private final IntBuffer[] targetSegments;
+
+    private MappedGraph(File dir, int numNodes, long numEdges, int numTopics) throws IOException {
+        this.dir = dir;
+        this.numNodes = numNodes;
+        this.numEdges = numEdges;
+        this.numTopics = numTopics;
+        this.offsets = map(new File(dir, OFFSETS), FileChannel.MapMode.READ_ONLY, 0, 4L * (numNodes + 1))
+                .asIntBuffer();
+        int numSegments = (int) ((numEdges + SEGMENT_MASK) >>> SEGMENT_BITS);
+        this.targetSegments = new IntBuffer[numSegments];
+        for(int s = 0; s < numSegments; s++) {
+            long first = (long) s << SEGMENT_BITS;
+            long length = Math.min(1L << SEGMENT_BITS, numEdges - first);
+            targetSegments[s] = map(new File(dir, TARGETS), FileChannel.MapMode.READ_ONLY, 4 * first, 4 * length)
+                    .asIntBuffer();
+        }
+    }
+
+    public int offset(int node) {
+        return offsets.get(node);
+    }
+
+    public int target(long edge) {
+        return targetSegments[(int) (edge >>> SEGMENT_BITS)].get((int) (edge & SEGMENT_MASK));
+    }
+
+    // Copies one topic's LDA weights onto the heap
+    public double[] ldaColumn(int topicNum) throws IOException {
+        double[] column = new double[numNodes];
+        column(LDA, topicNum, FileChannel.MapMode.READ_ONLY).get(column);
+        return column;
+    }
+
+    // One topic of a topic-major double file in dir, made by createColumns
+    public DoubleBuffer column(String name, int topicNum, FileChannel.MapMode mode) throws IOException {
+        long columnBytes = 8L * numNodes;
+        return map(new File(dir, name), mode, columnBytes * topicNum, columnBytes).asDoubleBuffer();
+    }
+
+    // (Re)creates a zeroed topic-major double file in dir
+    public void createColumns(String name) throws IOException {
+        createColumns(new File(dir, name), numNodes, numTopics);
+    }
+
+    private static void createColumns(File file, int numNodes, int numTopics) throws IOException {
+        if(file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(8L * numNodes * numTopics);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void writeColumn(String name, int topicNum, double[] values) throws IOException {
+        column(name, topicNum, FileChannel.MapMode.READ_WRITE).put(values);
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode, long position, long size)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            return raf.getChannel().map(mode, position, size);
+        } finally {
+            // The mapping stays valid after the channel closes
+            raf.close();
+        }
+    }
+
+    public static MappedGraph open(String dirName) throws IOException {
+        File dir = new File(dirName);
+        DataInputStream header = new DataInputStream(new FileInputStream(new File(dir, HEADER)));
+        try {
+            return new MappedGraph(dir, header.readInt(), header.readLong(), header.readInt());
+        } finally {
+            header.close();
+        }
+    }
+
+    // Writes the mapped files for graphFile (delimited WikiGraphNodes) and ldaFile (see readLDAMap) into dirName.
+    // Edge ids are resolved against a sorted id array and LDA lines are matched to nodes by a 64-bit title
+    // hash (checked against the real title where nodes share a hash), so neither the graph nor the LDA map is
+    // ever held on the heap. Nodes without LDA get all zeros.
+    public static MappedGraph build(String graphFile, String ldaFile, String dirName) throws IOException {
+        File dir = new File(dirName);
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        // Pass 1: ids, title hashes and offsets
+        long[] ids = new long[1 << 20];
+        long[] titleHashes = new long[1 << 20];
+        int numNodes = 0;
+        long numEdges = 0;
+        DataOutputStream offsetsOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, OFFSETS)), 1 << 16));
+        try {
+            offsetsOut.writeInt(0);
+            Iterator<Data.WikiGraphNode> it = TopicSensitivePageRank.newWikiGraphNodeIterator(graphFile);
+            while(it.hasNext()) {
+                Data.WikiGraphNode node = it.next();
+                if(numNodes == ids.length) {
+                    ids = Arrays.copyOf(ids, numNodes * 2);
+                    titleHashes = Arrays.copyOf(titleHashes, numNodes * 2);
+                }
+                ids[numNodes] = node.getId();
+                titleHashes[numNodes] = titleHash(node.getTitle());
+                numNodes++;
+                numEdges += node.getEdgesCount();
+                if(numEdges > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Too many edges for int offsets: " + numEdges);
+                }
+                offsetsOut.writeInt((int) numEdges);
+                if(numNodes % 100000 == 0) {
+                    System.out.println("Mapped graph: indexed " + numNodes + " nodes");
+                }
+            }
+        } finally {
+            offsetsOut.close();
+        }
+
+        int[] linearIdById = identity(numNodes);
+        sortPairs(ids, linearIdById, numNodes);
+        int[] linearIdByHash = identity(numNodes);
+        sortPairs(titleHashes, linearIdByHash, numNodes);
+        boolean[] sharesHash = null;
+        for(int i = 1; i < numNodes; i++) {
+            if(ids[i] == ids[i - 1]) {
+                throw new IllegalArgumentException("Duplicate node id " + ids[i]);
+            }
+            if(titleHashes[i] == titleHashes[i - 1]) {
+                if(sharesHash == null) {
+                    sharesHash = new boolean[numNodes];
+                }
+                sharesHash[linearIdByHash[i - 1]] = true;
+                sharesHash[linearIdByHash[i]] = true;
+            }
+        }
+
+        // Pass 1b: the actual titles of nodes that share a hash (a repeated title or a real collision), so that
+        // LDA lines can be matched to them exactly
+        Map<Integer, String> sharedTitles = Maps.newHashMap();
+        if(sharesHash != null) {
+            Iterator<Data.WikiGraphNode> it = TopicSensitivePageRank.newWikiGraphNodeIterator(graphFile);
+            for(int linearId = 0; it.hasNext(); linearId++) {
+                Data.WikiGraphNode node = it.next();
+                if(sharesHash[linearId]) {
+                    sharedTitles.put(linearId, node.getTitle());
+                }
+            }
+            System.out.println("Mapped graph: " + sharedTitles.size() + " nodes share a title hash");
+        }
+
+        // Pass 2: edge targets
+        DataOutputStream targetsOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, TARGETS)), 1 << 16));
+        try {
+            Iterator<Data.WikiGraphNode> it = TopicSensitivePageRank.newWikiGraphNodeIterator(graphFile);
+            while(it.hasNext()) {
+                Data.WikiGraphNode node = it.next();
+                for(long targetId : node.getEdgesList()) {
+                    int target = lookup(ids, linearIdById, numNodes, targetId);
+                    if(target < 0) {
+                        throw new IllegalArgumentException("Unknown edge target " + targetId + " from " + node.getId());
+                    }
+                    targetsOut.writeInt(target);
+                }
+            }
+        } finally {
+            targetsOut.close();
+        }
+        ids = null;
+        linearIdById = null;
+
+        // Pass 3: LDA priors, scattered into their topic columns
+        int numTopics = -1;
+        int numMatched = 0;
+        DoubleBuffer[] columns = null;
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(ldaFile), Charsets.UTF_8));
+        try {
+            Splitter splitter = Splitter.on("\t").omitEmptyStrings().trimResults();
+            String line;
+            while((line = r.readLine()) != null) {
+                if(line.startsWith("#")) {
+                    continue;
+                }
+
+                List<String> split = splitter.splitToList(line);
+                double[] topics = TopicSensitivePageRank.ldaTopics(split);
+                if(numTopics == -1) {
+                    numTopics = topics.length;
+                    createColumns(new File(dir, LDA), numNodes, numTopics);
+                    columns = new DoubleBuffer[numTopics];
+                    long columnBytes = 8L * numNodes;
+                    for(int t = 0; t < numTopics; t++) {
+                        columns[t] = map(new File(dir, LDA), FileChannel.MapMode.READ_WRITE, columnBytes * t,
+                                columnBytes).asDoubleBuffer();
+                    }
+                } else if(numTopics != topics.length) {
+                    throw new RuntimeException("Bad topics length for " + line);
+                }
+
+                // Like readLDAMap, every node with this title gets the row
+                String title = split.get(1);
+                long hash = titleHash(title);
+                boolean matched = false;
+                for(int i = firstIndex(titleHashes, numNodes, hash); i >= 0 && i < numNodes
+                        && titleHashes[i] == hash; i++) {
+                    int linearId = linearIdByHash[i];
+                    String sharedTitle = sharedTitles.get(linearId);
+                    if(sharedTitle != null && !sharedTitle.equals(title)) {
+                        continue;
+                    }
+                    for(int t = 0; t < numTopics; t++) {
+                        columns[t].put(linearId, topics[t]);
+                    }
+                    matched = true;
+                }
+                if(matched) {
+                    numMatched++;
+                }
+            }
+        } finally {
+            r.close();
+        }
+        if(numTopics == -1) {
+            throw new IllegalArgumentException("No topics in " + ldaFile);
+        }
+
+        DataOutputStream header = new DataOutputStream(new FileOutputStream(new File(dir, HEADER)));
+        try {
+            header.writeInt(numNodes);
+            header.writeLong(numEdges);
+            header.writeInt(numTopics);
+        } finally {
+            header.close();
+        }
+        System.out.println("Mapped graph: " + numNodes + " nodes, " + numEdges + " edges, " + numTopics
+                + " topics, LDA for " + numMatched + " lines");
+        return new MappedGraph(dir, numNodes, numEdges, numTopics);
+    }
+
+    static long titleHash(String title) {
+        return TITLE_HASH.hashString(title, Charsets.UTF_8).asLong();
+    }
+
+    private static int[] identity(int n) {
+        int[] values = new int[n];
+        for(int i = 0; i < n; i++) {
+            values[i] = i;
+        }
+        return values;
+    }
+
+    // values[j] for the j with keys[j] == key, or -1; keys[0..n) must be sorted
+    static int lookup(long[] keys, int[] values, int n, long key) {
+        int low = 0;
+        int high = n - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(keys[mid] < key) {
+                low = mid + 1;
+            } else if(keys[mid] > key) {
+                high = mid - 1;
+            } else {
+                return values[mid];
+            }
+        }
+        return -1;
+    }
+
+    // Smallest j with keys[j] == key, or -1; keys[0..n) must be sorted
+    static int firstIndex(long[] keys, int n, long key) {
+        int low = 0;
+        int high = n;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < n && keys[low] == key ? low : -1;
+    }
+
+    // Heapsort of keys[0..n), carrying values along
+    static void sortPairs(long[] keys, int[] values, int n) {
+        for(int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(keys, values, i, n);
+        }
+        for(int end = n - 1; end > 0; end--) {
+            long key = keys[0];
+            keys[0] = keys[end];
+            keys[end] = key;
+            int value = values[0];
+            values[0] = values[end];
+            values[end] = value;
+            siftDown(keys, values, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] keys, int[] values, int pos, int size) {
+        long key = keys[pos];
+        int value = values[pos];
+        while(true) {
+            int child = 2 * pos + 1;
+            if(child >= size) {
+                break;
+            }
+            if(child + 1 < size && keys[child + 1] > keys[child]) {
+                child++;
+            }
+            if(keys[child] <= key) {
+                break;
+            }
+            keys[pos] = keys[child];
+            values[pos] = values[child];
+            pos = child;
+        }
+        keys[pos] = key;
+        values[pos] = value;
+    }
+}
@@ -0,0 +1,219 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Lists;
+import com.thomasdimson.wikipedia.Data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// TopicSensitivePageRank.rankInPlace over a MappedGraph. Edges and LDA stay in the mapped files; each running
+// topic holds only its rank vectors (plus walk weights for LSPR) on the heap, and finished topics go straight
+// to the mapped tspr/lspr columns. Same Jacobi iteration as PushSolver, so results match the on-heap run.
+public class MappedTopicSensitivePageRank {
+    public static final String TSPR = "tspr";
+    public static final String LSPR = "lspr";
+
+    // Nodes per chunk when transposing topic-major columns back into per-node messages
+    private static final int WRITE_CHUNK = 4096;
+
+    public static class RankRunnable implements Runnable {
+        final MappedGraph graph;
+        final int topicNum;
+        final boolean ldaWeighted;
+        final double followPrior;
+        final double convergence;
+        final SolverStats totals;
+
+        public RankRunnable(MappedGraph graph, int topicNum, boolean ldaWeighted, double followPrior,
+                            double convergence, SolverStats totals) {
+            this.graph = graph;
+            this.topicNum = topicNum;
+            this.ldaWeighted = ldaWeighted;
+            this.followPrior = followPrior;
+            this.convergence = convergence;
+            this.totals = totals;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String label = (ldaWeighted ? "LDA-sensitive PageRank " : "Topic-Sensitive PageRank topic ")
+                        + topicNum;
+                double[] rank = rank(label);
+                graph.writeColumn(ldaWeighted ? LSPR : TSPR, topicNum, rank);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private double[] rank(String label) throws IOException {
+            final int numNodes = graph.numNodes;
+            final double[] teleport = graph.ldaColumn(topicNum);
+
+            double[] targetWeight = null;
+            double[] outWeight = null;
+            if(ldaWeighted) {
+                targetWeight = new double[numNodes];
+                for(int i = 0; i < numNodes; i++) {
+                    targetWeight[i] = followPrior + teleport[i];
+                }
+                outWeight = new double[numNodes];
+                for(int i = 0; i < numNodes; i++) {
+                    double neighborSum = 0.0;
+                    for(long e = graph.offset(i); e < graph.offset(i + 1); e++) {
+                        neighborSum += targetWeight[graph.target(e)];
+                    }
+                    outWeight[i] = neighborSum;
+                }
+            }
+
+            double sum = 0.0;
+            for(int i = 0; i < numNodes; i++) {
+                sum += teleport[i];
+            }
+            for(int i = 0; i < numNodes; i++) {
+                teleport[i] /= sum;
+            }
+
+            SolverStats stats = new SolverStats();
+            stats.solves = 1;
+            long startTime = System.nanoTime();
+            double [] lastRank = teleport.clone();
+            double [] thisRank = new double[numNodes];
+            for(int iteration = 0; ; iteration++) {
+                if(iteration > 0) {
+                    double []tmp = thisRank;
+                    thisRank = lastRank;
+                    lastRank = tmp;
+                    // Clear old values
+                    for(int i = 0; i < numNodes; i++) {
+                        thisRank[i] = 0.0;
+                    }
+                }
+
+                // Power iteration
+                int start = graph.offset(0);
+                for(int i = 0; i < numNodes; i++) {
+                    int end = graph.offset(i + 1);
+                    if(start != end) {
+                        if(targetWeight == null) {
+                            double coeff = BETA * lastRank[i] / (end - start);
+                            for(long e = start; e < end; e++) {
+                                thisRank[graph.target(e)] += coeff;
+                            }
+                        } else {
+                            double coeff = BETA * lastRank[i] / outWeight[i];
+                            for(long e = start; e < end; e++) {
+                                int target = graph.target(e);
+                                thisRank[target] += coeff * targetWeight[target];
+                            }
+                        }
+                    }
+                    start = end;
+                }
+
+                // Reinsert leaked
+                double topicSum = 0.0;
+                for(int i = 0; i < numNodes; i++) {
+                    topicSum += thisRank[i];
+                }
+
+                double difference = 0.0;
+                for(int i = 0; i < numNodes; i++) {
+                    thisRank[i] += (1.0 - topicSum) * teleport[i];
+                    // Calculate L1 difference too
+                    difference += Math.abs(thisRank[i] - lastRank[i]);
+                }
+
+                stats.iterations++;
+                stats.edgeVisits += graph.numEdges;
+                RankSolver.logIteration(label, iteration, difference);
+
+                if(difference < convergence) {
+                    break;
+                }
+            }
+            stats.nanos = System.nanoTime() - startTime;
+            System.err.println(label + " finished: " + stats);
+            totals.add(stats);
+            return thisRank;
+        }
+    }
+
+    // Fills the graph's tspr and lspr columns for every topic. Each concurrent topic needs three (TSPR) or
+    // five (LSPR) doubles per node of heap, so concurrentTopics is what bounds memory.
+    public static void rank(MappedGraph graph, double convergence, int concurrentTopics)
+            throws IOException, InterruptedException {
+        graph.createColumns(TSPR);
+        graph.createColumns(LSPR);
+
+        SolverStats totals = new SolverStats();
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrentTopics);
+        System.out.println("Nodes " + graph.numNodes + ", edges " + graph.numEdges + ", mapped from " + graph.dir);
+        long start = System.nanoTime();
+        List<Future<?>> jobs = Lists.newArrayList();
+        for(int tnum = 0; tnum < graph.numTopics; tnum++) {
+            jobs.add(executorService.submit(new RankRunnable(graph, tnum, false, 0.0, convergence, totals)));
+            jobs.add(executorService.submit(new RankRunnable(graph, tnum, true,
+                    TopicSensitivePageRank.LSPR_FOLLOW_PRIOR, convergence, totals)));
+        }
+        TopicSensitivePageRank.awaitJobs(executorService, jobs, "Mapped rank job");
+        System.out.println("Mapped solver: " + totals + ", wall time " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    // Writes the same TSPRGraphNode stream as IntermediateTSPRNode.toProto would, taking ids, titles and
+    // infobox types from graphFile (the file the graph was built from) and everything else from the columns.
+    public static void writeTSPRGraphNodes(MappedGraph graph, String graphFile, OutputStream out) throws IOException {
+        final int numTopics = graph.numTopics;
+        DoubleBuffer[] lda = new DoubleBuffer[numTopics];
+        DoubleBuffer[] tspr = new DoubleBuffer[numTopics];
+        DoubleBuffer[] lspr = new DoubleBuffer[numTopics];
+        for(int t = 0; t < numTopics; t++) {
+            lda[t] = graph.column(MappedGraph.LDA, t, FileChannel.MapMode.READ_ONLY);
+            tspr[t] = graph.column(TSPR, t, FileChannel.MapMode.READ_ONLY);
+            lspr[t] = graph.column(LSPR, t, FileChannel.MapMode.READ_ONLY);
+        }
+
+        double[][] ldaChunk = new double[numTopics][WRITE_CHUNK];
+        double[][] tsprChunk = new double[numTopics][WRITE_CHUNK];
+        double[][] lsprChunk = new double[numTopics][WRITE_CHUNK];
+        Iterator<Data.WikiGraphNode> it = TopicSensitivePageRank.newWikiGraphNodeIterator(graphFile);
+        for(int first = 0; first < graph.numNodes; first += WRITE_CHUNK) {
+            int chunkSize = Math.min(WRITE_CHUNK, graph.numNodes - first);
+            // Sequential reads down each column, then emit node by node
+            for(int t = 0; t < numTopics; t++) {
+                lda[t].position(first);
+                lda[t].get(ldaChunk[t], 0, chunkSize);
+                tspr[t].position(first);
+                tspr[t].get(tsprChunk[t], 0, chunkSize);
+                lspr[t].position(first);
+                lspr[t].get(lsprChunk[t], 0, chunkSize);
+            }
+
+            for(int c = 0; c < chunkSize; c++) {
+                Data.WikiGraphNode node = it.next();
+                Data.TSPRGraphNode.Builder builder = Data.TSPRGraphNode.newBuilder()
+                        .setId(node.getId())
+                        .setTitle(node.getTitle());
+                if(node.hasInfoboxType()) {
+                    builder.setInfoboxType(node.getInfoboxType());
+                }
+                for(int t = 0; t < numTopics; t++) {
+                    builder.addLda(ldaChunk[t][c]);
+                    builder.addTspr(tsprChunk[t][c]);
+                    builder.addLspr(lsprChunk[t][c]);
+                }
+                builder.build().writeDelimitedTo(out);
+            }
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package com.thomasdimson.wikipedia.lda.java;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.thomasdimson.wikipedia.Data.DumpPage;
 import edu.stanford.nlp.ling.Word;
+import edu.stanford.nlp.process.Americanize;
 import edu.stanford.nlp.process.PTBTokenizer;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -49,12 +55,54 @@ public class MarkupCleaner {
     private static final PTBTokenizer.PTBTokenizerFactory<Word> tokenizerFactory
             = PTBTokenizer.PTBTokenizerFactory.newWordTokenizerFactory("asciiQuotes=true,normalizeOtherBrackets=true,escapeForwardSlashAsterisk=false");
 
+    // Words PTBTokenizer splits in two although they are all letters
+    private static final Set<String> PTB_SPLIT_WORDS = ImmutableSet.of(
+            "cannot", "gonna", "gotta", "lemme", "gimme", "wanna");
+    // What the fast path asks PTBTokenizer and Americanize is remembered per thread, up to this many answers each
+    private static final int FALLBACK_CACHE_SIZE = 1 << 16;
+    private static final int MAX_CACHED_CHUNK = 64;
+
+    private static final char[] ASCII_LOWER = new char[128];
+    static {
+        for(char c = 0; c < 128; c++) {
+            ASCII_LOWER[c] = String.valueOf(c).toLowerCase().charAt(0);
+        }
+    }
+
     private Set<String> blacklist;
     private Set<String> whitelist;
+    // Whether some whitelisted word has no letters, so that chunks without letters can still produce output
+    private final boolean whitelistHasSymbols;
+
+    private final ThreadLocal<FastScratch> scratch = new ThreadLocal<FastScratch>() {
+        @Override
+        protected FastScratch initialValue() {
+            return new FastScratch();
+        }
+    };
+
+    private static class FastScratch {
+        char[] chunk = new char[256];
+        final StringBuilder out = new StringBuilder(1 << 12);
+        // Lower-cased chunk between its spaces and lookahead -> what cleanMarkup makes of it
+        final Map<String, String> fallback = Maps.newHashMap();
+        // Word -> Americanize.americanize of it, lower-cased
+        final Map<String, String> americanized = Maps.newHashMap();
+        // Word and period in context -> whether PTBTokenizer keeps them together (an abbreviation)
+        final Map<String, Boolean> abbreviations = Maps.newHashMap();
+    }
 
     public MarkupCleaner(Set<String> blacklist, Set<String> whitelist) {
         this.blacklist = blacklist;
         this.whitelist = whitelist;
+        boolean symbols = false;
+        for(String word : whitelist) {
+            if(!hasLetter(word, 0, word.length())) {
+                symbols = true;
+                break;
+            }
+        }
+        this.whitelistHasSymbols = symbols;
     }
 
     public String cleanMarkup(String text) {
@@ -63,13 +111,527 @@ public class MarkupCleaner {
 
         Iterator<Word> it = tokenizerFactory.getIterator(new StringReader(cleaned));
         while(it.hasNext()) {
-            final String w = it.next().word().toLowerCase();
-            if(w.length() >= 3 && w.length() <= 80 && whitelist.contains(w) && !w.contains(".") && !blacklist.contains(w) && !BAD_WORD_MATCH.matcher(w).matches()) {
-                ret.append(w);
-                ret.append(" ");
-            }
+            appendIfKept(ret, it.next().word().toLowerCase());
         }
 
         return ret.toString();
     }
+
+    // BAD_WORD_MATCH, which only needs running on words that start like it
+    private static boolean isBadWord(String w) {
+        char first = w.charAt(0);
+        return ((first >= '0' && first <= '9') || w.startsWith("http")) && BAD_WORD_MATCH.matcher(w).matches();
+    }
+
+    // Every article of dumpFile with its text cleaned, in dump order, on workers threads with at most capacity
+    // pages in flight. fast picks cleanMarkupFast over cleanMarkup (see there for how far they agree).
+    public void cleanDump(String dumpFile, String outputFile, final boolean fast, int workers, int capacity)
+            throws IOException {
+        final OutputStream out = BlockCompressedFile.newOutputStream(outputFile);
+        try {
+            cleanArticles(dumpFile, new Function<DumpPage, DumpPage>() {
+                @Override
+                public DumpPage apply(DumpPage page) {
+                    return DumpPage.newBuilder(page).setText(clean(page.getText(), fast)).build();
+                }
+            }, new Function<DumpPage, Void>() {
+                @Override
+                public Void apply(DumpPage page) {
+                    try {
+                        page.writeDelimitedTo(out);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return null;
+                }
+            }, workers, capacity);
+        } finally {
+            out.close();
+        }
+    }
+
+    // cleanDump into a TokenCorpus, whose vocabulary is the whitelisted words the articles use
+    public void cleanDumpToCorpus(String dumpFile, String corpusFile, final boolean fast, int workers, int capacity)
+            throws IOException {
+        // Every word clean can output, numbered for the workers; the writer renumbers them by first appearance
+        final Map<String, Integer> indices = Maps.newHashMapWithExpectedSize(whitelist.size());
+        for(String word : whitelist) {
+            if(!blacklist.contains(word)) {
+                indices.put(word, indices.size());
+            }
+        }
+        String[] words = new String[indices.size()];
+        for(Map.Entry<String, Integer> e : indices.entrySet()) {
+            words[e.getValue()] = e.getKey();
+        }
+
+        final TokenCorpus.Writer writer = new TokenCorpus.Writer(corpusFile, words);
+        try {
+            cleanArticles(dumpFile, new Function<DumpPage, TokenCorpus.Document>() {
+                @Override
+                public TokenCorpus.Document apply(DumpPage page) {
+                    String text = clean(page.getText(), fast);
+                    int[] tokens = new int[64];
+                    int length = 0;
+                    // clean puts a space after every word
+                    for(int from = 0, to; (to = text.indexOf(' ', from)) >= 0; from = to + 1) {
+                        if(length == tokens.length) {
+                            tokens = Arrays.copyOf(tokens, 2 * length);
+                        }
+                        tokens[length++] = indices.get(text.substring(from, to));
+                    }
+                    return new TokenCorpus.Document(page.getId(), page.getTitle(), tokens, length);
+                }
+            }, new Function<TokenCorpus.Document, Void>() {
+                @Override
+                public Void apply(TokenCorpus.Document document) {
+                    try {
+                        writer.write(document);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return null;
+                }
+            }, workers, capacity);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String clean(String text, boolean fast) {
+        return fast ? cleanMarkupFast(text) : cleanMarkup(text);
+    }
+
+    // Runs clean over the articles of dumpFile on workers threads and hands write the results in dump order
+    private static <T> void cleanArticles(String dumpFile, final Function<DumpPage, T> clean,
+                                          final Function<T, Void> write, int workers, int capacity)
+            throws IOException {
+        long start = System.nanoTime();
+        final long[] written = new long[1];
+        OrderedParallelStage<DumpPage, T> stage = new OrderedParallelStage<DumpPage, T>("clean",
+                new Function<DumpPage, T>() {
+            @Override
+            public T apply(DumpPage page) {
+                return page.hasRedirect() ? null : clean.apply(page);
+            }
+        }, workers, capacity, new Function<T, Void>() {
+            @Override
+            public Void apply(T cleaned) {
+                write.apply(cleaned);
+                if(++written[0] % 100000 == 0) {
+                    System.out.println("Cleaner: wrote " + written[0] + " articles");
+                }
+                return null;
+            }
+        });
+
+        Iterator<DumpPage> it = WikipediaHandler.newStructuredDumpIterator(dumpFile);
+        try {
+            while(it.hasNext()) {
+                stage.put(it.next());
+            }
+            stage.finish();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        System.out.println("Cleaner: " + stage + ", " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private void appendIfKept(StringBuilder out, String w) {
+        if(w.length() >= 3 && w.length() <= 80 && whitelist.contains(w) && !w.contains(".") && !blacklist.contains(w) && !isBadWord(w)) {
+            out.append(w);
+            out.append(" ");
+        }
+    }
+
+    // Meant to give cleanMarkup's output in one scan of text, without PTBTokenizer for ordinary words; that is
+    // checked by comparing the two on generated markup (test-clean-markup-fast), not proven. The text is cut
+    // into chunks at whitespace and markup; a chunk that is a plain word (letters and digits, maybe hyphenated,
+    // with simple punctuation around it) is lower-cased, americanized like PTBTokenizer does and filtered
+    // directly. Anything else goes through PTBTokenizer on its own, which is remembered per thread.
+    public String cleanMarkupFast(String text) {
+        FastScratch s = scratch.get();
+        StringBuilder out = s.out;
+        out.setLength(0);
+        int n = text.length();
+        int i = 0;
+        while(i < n) {
+            int skip = breakLength(text, i, n);
+            if(skip > 0) {
+                i += skip;
+                continue;
+            }
+            int start = i;
+            i = chunkEnd(text, i, n);
+            if(hasDigit(text, start, i) && singleSpaceAfter(text, i, n)) {
+                // PTBTokenizer reads numbers like "(555) 123-4567" and "1 1/2" across one space, so a run of
+                // chunks with digits only one space apart goes to it whole, spaced as cleanMarkup has it
+                StringBuilder joined = new StringBuilder();
+                joined.append(lowerCase(text, start, i));
+                while(singleSpaceAfter(text, i, n)) {
+                    int next = i;
+                    while(breakLength(text, next, n) > 0) {
+                        next += breakLength(text, next, n);
+                    }
+                    int nextEnd = chunkEnd(text, next, n);
+                    if(!hasDigit(text, next, nextEnd)) {
+                        break;
+                    }
+                    joined.append(' ').append(lowerCase(text, next, nextEnd));
+                    i = nextEnd;
+                }
+                fallback(joined.toString(), start > 0, lookahead(text, i), s);
+            } else {
+                cleanChunk(text, start, i, s);
+            }
+        }
+        return out.toString();
+    }
+
+    // text[start, end) lower-cased as it is in text.toLowerCase(). Special casings can change the length, and
+    // whether a capital sigma is final depends on the word around it, which does not reach past whitespace.
+    private static String lowerCase(String text, int start, int end) {
+        String chunk = text.substring(start, end).toLowerCase();
+        if(text.lastIndexOf('\u03a3', end - 1) < start) {
+            return chunk;
+        }
+        int from = start;
+        while(from > 0 && !Character.isWhitespace(text.charAt(from - 1))) {
+            from--;
+        }
+        int to = end;
+        while(to < text.length() && !Character.isWhitespace(text.charAt(to))) {
+            to++;
+        }
+        int offset = text.substring(from, start).toLowerCase().length();
+        return text.substring(from, to).toLowerCase().substring(offset, offset + chunk.length());
+    }
+
+    private static int chunkEnd(String text, int i, int n) {
+        while(i < n && breakLength(text, i, n) == 0) {
+            i++;
+        }
+        return i;
+    }
+
+    // Length of the whitespace char or CLEAN_MARKUP_PATTERN alternative at i, or 0. Other spaces, which
+    // PTBTokenizer lets into URLs and email addresses, are left inside chunks for it.
+    private static int breakLength(String text, int i, int n) {
+        if(i >= n) {
+            return 0;
+        }
+        char c = text.charAt(i);
+        switch(c) {
+            case '{': case '\\': case '=': case '\'': case '#': case '[': case ']': case '`': case '<': case '>':
+            case ' ': case '\t': case '\n': case '\r': case '\f': case '\u000b':
+                return 1;
+            case '-':
+                return i + 1 < n && text.charAt(i + 1) == '-' ? 2 : 0;
+            case '|':
+                return i + 1 < n && text.charAt(i + 1) == '}' ? 2 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    // Whether cleanMarkup leaves just one space between the chunk ending at i and the next
+    private static boolean singleSpaceAfter(String text, int i, int n) {
+        int spaces = 0;
+        boolean markup = false;
+        while(i < n) {
+            int length = breakLength(text, i, n);
+            if(length == 0) {
+                break;
+            }
+            char c = text.charAt(i);
+            if(length == 1 && Character.isWhitespace(c)) {
+                spaces += c == ' ' ? 1 : 2;
+            } else {
+                markup = true;
+            }
+            i += length;
+        }
+        return i < n && (spaces == 0 ? markup : spaces == 1 && !markup);
+    }
+
+    private static boolean hasDigit(String text, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(Character.isDigit(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void cleanChunk(String text, int start, int end, FastScratch s) {
+        int length = end - start;
+        boolean ascii = true;
+        for(int i = start; i < end; i++) {
+            if(text.charAt(i) >= 128) {
+                ascii = false;
+                break;
+            }
+        }
+        char[] chunk;
+        if(ascii) {
+            if(s.chunk.length < length) {
+                s.chunk = new char[Math.max(length, 2 * s.chunk.length)];
+            }
+            chunk = s.chunk;
+            for(int i = 0; i < length; i++) {
+                chunk[i] = ASCII_LOWER[text.charAt(start + i)];
+            }
+        } else {
+            chunk = lowerCase(text, start, end).toCharArray();
+            length = chunk.length;
+        }
+
+        if(!whitelistHasSymbols && !hasLetter(chunk, 0, length) && !hasBracket(chunk, 0, length)) {
+            return;
+        }
+
+        int lo = 0;
+        while(lo < length && (chunk[lo] == '(' || chunk[lo] == '"')) {
+            lo++;
+        }
+        int hi = length;
+        while(hi > lo && isTrailing(chunk[hi - 1])) {
+            hi--;
+        }
+        boolean period = false;
+        if(hi > lo && chunk[hi - 1] == '.' && onlyClosing(chunk, hi, length)) {
+            period = true;
+            hi--;
+        }
+
+        int kind = wordKind(chunk, lo, hi);
+        // Punctuation around a word can make tokens a whitelist with symbols keeps, like "?!?"
+        if(kind == NOT_A_WORD || (whitelistHasSymbols && (lo > 0 || hi < length)) || isEmoticon(chunk, hi, length)
+                || isListMarker(chunk, lo, hi, length)) {
+            fallback(new String(chunk, 0, length), start > 0, lookahead(text, end), s);
+            return;
+        }
+        String word = new String(chunk, lo, hi - lo);
+        if(PTB_SPLIT_WORDS.contains(word)) {
+            fallback(new String(chunk, 0, length), start > 0, lookahead(text, end), s);
+            return;
+        }
+        if(kind == PLAIN_WORD) {
+            word = americanize(word, s);
+        }
+        appendBrackets(s.out, chunk, 0, lo);
+        if(!period || !isAbbreviation(word, chunk, hi + 1, length, lookahead(text, end), s)) {
+            appendIfKept(s.out, word);
+        }
+        appendBrackets(s.out, chunk, period ? hi + 1 : hi, length);
+    }
+
+    // PTBTokenizer's tokens for the parentheses among chunk[from, to); the quotes and punctuation also allowed
+    // around a word come out too short to keep
+    private void appendBrackets(StringBuilder out, char[] chunk, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(chunk[i] == '(') {
+                appendIfKept(out, "-lrb-");
+            } else if(chunk[i] == ')') {
+                appendIfKept(out, "-rrb-");
+            }
+        }
+    }
+
+    // Whether the punctuation after a word has something like ";)", which PTBTokenizer keeps together
+    private static boolean isEmoticon(char[] chunk, int from, int to) {
+        boolean colon = false;
+        for(int i = from; i < to; i++) {
+            colon |= chunk[i] == ':' || chunk[i] == ';';
+            if(colon && chunk[i] == ')') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the word is in parentheses, like "(xx)", which PTBTokenizer may keep as one list item token
+    private static boolean isListMarker(char[] chunk, int lo, int hi, int length) {
+        return lo > 0 && chunk[lo - 1] == '(' && hi < length && chunk[hi] == ')';
+    }
+
+    private static boolean hasBracket(char[] s, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(s[i] == '(' || s[i] == ')' || s[i] == '}') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final int NOT_A_WORD = 0;
+    private static final int PLAIN_WORD = 1;
+    private static final int COMPOUND_WORD = 2;
+
+    // What PTBTokenizer makes of chunk[lo, hi), if the fast path can take it as one word: letters and digits,
+    // with single hyphens or underscores between them
+    private static int wordKind(char[] chunk, int lo, int hi) {
+        if(hi == lo || !isWordChar(chunk[lo]) || !isWordChar(chunk[hi - 1])) {
+            return NOT_A_WORD;
+        }
+        // PTBTokenizer only americanizes words of letters
+        boolean compound = isDigit(chunk[lo]) || isDigit(chunk[hi - 1]);
+        for(int i = lo + 1; i < hi - 1; i++) {
+            char c = chunk[i];
+            if(c == '-' || c == '_') {
+                if(!isWordChar(chunk[i - 1]) || !isWordChar(chunk[i + 1])) {
+                    return NOT_A_WORD;
+                }
+                compound = true;
+            } else if(!isWordChar(c)) {
+                return NOT_A_WORD;
+            } else if(isDigit(c)) {
+                compound = true;
+            }
+        }
+        return compound ? COMPOUND_WORD : PLAIN_WORD;
+    }
+
+    // Letters and digits PTBTokenizer treats as plain word characters: ASCII, Latin, Greek and Cyrillic
+    private static boolean isWordChar(char c) {
+        if(c < 128) {
+            return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z');
+        }
+        return c >= 0xc0 && c < 0x530 && c != 0xd7 && c != 0xf7 && Character.isLetter(c);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isTrailing(char c) {
+        return c == ',' || c == ';' || c == ':' || c == '!' || c == '?' || c == ')' || c == '"';
+    }
+
+    private static boolean onlyClosing(char[] chunk, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(chunk[i] != ')' && chunk[i] != '"') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasLetter(CharSequence s, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(Character.isLetter(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasLetter(char[] s, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(Character.isLetter(s[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // What follows the chunk ending at end for PTBTokenizer's lookahead: nothing at the end of the text, else the
+    // separator as cleanMarkup leaves it and the kind of char after it. The separator has to be exact, since
+    // PTBTokenizer only reads "fig." before a number as an abbreviation when a single space comes between.
+    private static String lookahead(String text, int end) {
+        int n = text.length();
+        if(end == n) {
+            return "";
+        }
+        StringBuilder lookahead = new StringBuilder(4);
+        boolean markup = false;
+        int next = end;
+        int length;
+        while((length = breakLength(text, next, n)) > 0) {
+            char c = text.charAt(next);
+            if(length == 1 && Character.isWhitespace(c)) {
+                lookahead.append(c);
+                markup = false;
+            } else if(!markup) {
+                // CLEAN_MARKUP_PATTERN replaces a whole run of markup with one space
+                lookahead.append(' ');
+                markup = true;
+            }
+            next += length;
+        }
+        if(next == n) {
+            return lookahead.toString();
+        }
+        char c = text.charAt(next);
+        if(Character.isDigit(c)) {
+            lookahead.append('1');
+        } else if(Character.isLetter(c)) {
+            lookahead.append('x');
+        } else {
+            lookahead.append(Character.toLowerCase(c));
+        }
+        return lookahead.toString();
+    }
+
+    private static String americanize(String word, FastScratch s) {
+        String americanized = s.americanized.get(word);
+        if(americanized == null) {
+            americanized = Americanize.americanize(word).toLowerCase();
+            if(s.americanized.size() == FALLBACK_CACHE_SIZE) {
+                s.americanized.clear();
+            }
+            s.americanized.put(word, americanized);
+        }
+        return americanized;
+    }
+
+    // cleanMarkup of the lower-cased chunk, tokenized with a space before it when it has one in the text and its
+    // lookahead after, whose own tokens are left out
+    private void fallback(String chunk, boolean spaceBefore, String lookahead, FastScratch s) {
+        String key = (spaceBefore ? " " : "") + chunk + lookahead;
+        String cleaned = s.fallback.get(key);
+        if(cleaned == null) {
+            int limit = key.length() - lookahead.length();
+            StringBuilder out = new StringBuilder();
+            Iterator<Word> it = tokenizerFactory.getIterator(new StringReader(key));
+            while(it.hasNext()) {
+                Word w = it.next();
+                if(w.beginPosition() >= limit) {
+                    break;
+                }
+                appendIfKept(out, w.word().toLowerCase());
+            }
+            cleaned = out.toString();
+            if(chunk.length() <= MAX_CACHED_CHUNK) {
+                if(s.fallback.size() == FALLBACK_CACHE_SIZE) {
+                    s.fallback.clear();
+                }
+                s.fallback.put(key, cleaned);
+            }
+        }
+        s.out.append(cleaned);
+    }
+
+    // Whether PTBTokenizer keeps word and the period after it together, in which case neither is output. That
+    // depends on what follows, like a number after "fig.", so it is asked with the rest of the chunk after the
+    // period and the lookahead.
+    private boolean isAbbreviation(String word, char[] chunk, int from, int to, String lookahead, FastScratch s) {
+        if(word.length() < 3 || !whitelist.contains(word)) {
+            // Would not be output either way
+            return false;
+        }
+        StringBuilder context = new StringBuilder(word.length() + 8).append(word).append('.');
+        context.append(chunk, from, to - from).append(lookahead);
+        String key = context.toString();
+        Boolean abbreviation = s.abbreviations.get(key);
+        if(abbreviation == null) {
+            Iterator<Word> it = tokenizerFactory.getIterator(new StringReader(key));
+            abbreviation = !it.next().word().toLowerCase().equals(word);
+            if(s.abbreviations.size() == FALLBACK_CACHE_SIZE) {
+                s.abbreviations.clear();
+            }
+            s.abbreviations.put(key, abbreviation);
+        }
+        return abbreviation;
+    }
 }
@@ -0,0 +1,141 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.base.Function;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One stage of an ingestion pipeline: applies function to each item on workers threads and hands the results
+// to sink on a single thread, in the order the items were put. A null result drops the item. At most capacity
+// items are in flight, so put blocks when the stage (or anything downstream of its sink) falls behind. Stages
+// chain by making one stage's sink put into the next.
+public class OrderedParallelStage<I, O> {
+    private final String name;
+    private final Function<I, O> function;
+    private final Function<O, Void> sink;
+    private final ExecutorService workerPool;
+    private final BlockingQueue<Future<O>> inFlight;
+    private final Thread drainer;
+
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long itemsIn;
+    private volatile long itemsOut;
+    private volatile long sinkNanos;
+    private volatile Throwable failure;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    // Marks the end of input in inFlight; never run
+    private final Future<O> end = new FutureTask<O>(new Callable<O>() {
+        @Override
+        public O call() {
+            return null;
+        }
+    });
+
+    public OrderedParallelStage(String name, Function<I, O> function, int workers, int capacity,
+                                Function<O, Void> sink) {
+        this.name = name;
+        this.function = function;
+        this.sink = sink;
+        final String threadName = name;
+        this.workerPool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + "-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.inFlight = new ArrayBlockingQueue<Future<O>>(capacity);
+        this.drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, name + "-sink");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    // Called from one thread only
+    public void put(final I item) throws InterruptedException {
+        checkFailure();
+        if(itemsIn++ == 0) {
+            startNanos = System.nanoTime();
+        }
+        inFlight.put(workerPool.submit(new Callable<O>() {
+            @Override
+            public O call() {
+                long start = System.nanoTime();
+                try {
+                    return function.apply(item);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        }));
+    }
+
+    private void drain() {
+        while(true) {
+            Future<O> next;
+            try {
+                next = inFlight.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(next == end) {
+                return;
+            }
+            if(failure != null) {
+                // Keep taking so producers never block on a dead stage
+                continue;
+            }
+            try {
+                O result = next.get();
+                if(result != null) {
+                    long start = System.nanoTime();
+                    sink.apply(result);
+                    sinkNanos += System.nanoTime() - start;
+                    itemsOut++;
+                }
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+
+    // Waits until every item put so far has reached the sink, then stops the stage's threads
+    public void finish() throws InterruptedException {
+        inFlight.put(end);
+        drainer.join();
+        workerPool.shutdown();
+        endNanos = System.nanoTime();
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        Throwable t = failure;
+        if(t != null) {
+            throw new RuntimeException(name + " stage failed", t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long wall = Math.max(1, (endNanos > 0 ? endNanos : System.nanoTime()) - startNanos);
+        return String.format("%s: %d in, %d out, %.0f items/s, workers busy %.0f ms, sink busy %.0f ms",
+                name, itemsIn, itemsOut, itemsIn * 1e9 / wall, busyNanos.get() / 1e6, sinkNanos / 1e6);
+    }
+}
@@ -0,0 +1,374 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Decompresses a bzip2 file (single or multistream, like the pages-articles dumps) on several cores.
+// bzip2 blocks are independent and start with a 48-bit magic number at any bit offset, so a scanner thread
+// cuts the input at every block and end-of-stream magic, each block is wrapped up as a one-block stream of its
+// own and decoded on a pool, and reads return the decoded blocks in file order. The magic can also turn up
+// inside compressed data; a block cut short by such a false match fails its CRC, and is then decoded again
+// joined with the piece after it.
+public class ParallelBZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = (1L << 48) - 1;
+    // A block holds at most 900k bytes before compression; no real one spans this many false matches
+    private static final int MAX_MERGES = 16;
+    private static final int READ_CHUNK = 1 << 16;
+
+    // Bits of the input from one magic up to the next, raw[0] holding the first one at bit startBit (msb first)
+    static class Segment {
+        final byte[] raw;
+        final int startBit;
+        final long bitLength;
+        final boolean block;
+        final long position;
+
+        Segment(byte[] raw, int startBit, long bitLength, boolean block, long position) {
+            this.raw = raw;
+            this.startBit = startBit;
+            this.bitLength = bitLength;
+            this.block = block;
+            this.position = position;
+        }
+
+        // This segment run on into next, which must follow it in the file
+        Segment join(Segment next) {
+            int overlap = (int) ((position + bitLength) / 8 - position / 8);
+            byte[] joined = Arrays.copyOf(raw, overlap + next.raw.length);
+            System.arraycopy(next.raw, 0, joined, overlap, next.raw.length);
+            return new Segment(joined, startBit, bitLength + next.bitLength, block, position);
+        }
+    }
+
+    private static class Pending {
+        final Segment segment;
+        final Future<byte[]> decoded;
+        final Throwable error;
+
+        Pending(Segment segment, Future<byte[]> decoded, Throwable error) {
+            this.segment = segment;
+            this.decoded = decoded;
+            this.error = error;
+        }
+    }
+
+    private final InputStream in;
+    private final ExecutorService decoders;
+    private final BlockingQueue<Pending> pending;
+    private final Thread scanner;
+
+    private byte[] current = new byte[0];
+    private int currentPos;
+    private boolean finished;
+    private volatile boolean closed;
+
+    // Up to 2 * threads blocks are buffered ahead of the reader
+    public ParallelBZip2InputStream(InputStream in, int threads) {
+        this.in = in;
+        ThreadFactory daemons = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bzip2-decoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.decoders = Executors.newFixedThreadPool(threads, daemons);
+        this.pending = new ArrayBlockingQueue<Pending>(2 * threads + 2);
+        this.scanner = daemons.newThread(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        });
+        scanner.setName("bzip2-scanner");
+        scanner.start();
+    }
+
+    private void scan() {
+        try {
+            byte[] raw = new byte[4 * READ_CHUNK];
+            int rawLength = 0;
+            // Absolute byte offset of raw[0]
+            long rawBase = 0;
+            long segmentStart = -1;
+            boolean segmentIsBlock = false;
+            long bitPos = 0;
+            long window = 0;
+
+            byte[] chunk = new byte[READ_CHUNK];
+            int read;
+            while(!closed && (read = in.read(chunk)) >= 0) {
+                if(rawLength + read > raw.length) {
+                    raw = Arrays.copyOf(raw, Math.max(2 * raw.length, rawLength + read));
+                }
+                System.arraycopy(chunk, 0, raw, rawLength, read);
+                rawLength += read;
+
+                for(int i = 0; i < read; i++) {
+                    window = (window << 8) | (chunk[i] & 0xff);
+                    bitPos += 8;
+                    // Earliest possible start first
+                    for(int shift = 7; shift >= 0; shift--) {
+                        long candidate = (window >>> shift) & MAGIC_MASK;
+                        if(candidate != BLOCK_MAGIC && candidate != EOS_MAGIC) {
+                            continue;
+                        }
+                        long start = bitPos - shift - 48;
+                        if(start < 0 || (segmentStart >= 0 && start < segmentStart + 48)) {
+                            continue;
+                        }
+
+                        if(segmentStart >= 0) {
+                            put(segment(raw, rawBase, segmentStart, start, segmentIsBlock), segmentIsBlock);
+                        }
+                        // Keep only the bytes from the new segment on
+                        int drop = (int) (start / 8 - rawBase);
+                        System.arraycopy(raw, drop, raw, 0, rawLength - drop);
+                        rawLength -= drop;
+                        rawBase += drop;
+                        segmentStart = start;
+                        segmentIsBlock = candidate == BLOCK_MAGIC;
+                    }
+                }
+
+                if(segmentStart < 0 && bitPos > 8 * READ_CHUNK) {
+                    throw new IOException("No bzip2 block found in the first " + READ_CHUNK + " bytes");
+                }
+            }
+
+            if(segmentStart >= 0) {
+                put(segment(raw, rawBase, segmentStart, bitPos, segmentIsBlock), segmentIsBlock);
+            }
+            pending.put(new Pending(null, null, null));
+        } catch (Throwable t) {
+            if(closed) {
+                return;
+            }
+            try {
+                pending.put(new Pending(null, null, t));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Segment segment(byte[] raw, long rawBase, long start, long end, boolean block) {
+        int from = (int) (start / 8 - rawBase);
+        int to = (int) ((end + 7) / 8 - rawBase);
+        return new Segment(Arrays.copyOfRange(raw, from, to), (int) (start % 8), end - start, block, start);
+    }
+
+    private void put(final Segment segment, boolean block) throws InterruptedException {
+        Future<byte[]> decoded = null;
+        if(block) {
+            decoded = decoders.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return decode(segment);
+                }
+            });
+        }
+        pending.put(new Pending(segment, decoded, null));
+    }
+
+    // Wraps segment, which should hold exactly one block, as a complete stream and decompresses it. A one-block
+    // stream's combined CRC is that block's CRC, found right after its magic.
+    static byte[] decode(Segment segment) throws IOException {
+        if(segment.bitLength < 48 + 32) {
+            throw new IOException("Truncated bzip2 block at bit " + segment.position);
+        }
+        BitWriter stream = new BitWriter((int) (segment.bitLength / 8) + 32);
+        stream.write('B', 8);
+        stream.write('Z', 8);
+        stream.write('h', 8);
+        // Largest block size, which decodes blocks of any level
+        stream.write('9', 8);
+        stream.copy(segment.raw, segment.startBit, segment.bitLength);
+        stream.write(EOS_MAGIC, 48);
+        stream.copy(segment.raw, segment.startBit + 48, 32);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+        InputStream blockStream;
+        try {
+            blockStream = new BZip2CompressorInputStream(new ByteArrayInputStream(stream.toByteArray()));
+            byte[] buffer = new byte[READ_CHUNK];
+            int read;
+            while((read = blockStream.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (RuntimeException e) {
+            // Garbage from a false match can trip the decoder's table handling
+            throw new IOException("Bad bzip2 block at bit " + segment.position, e);
+        }
+        return out.toByteArray();
+    }
+
+    // Fills current with the next decoded block; false at the end of the input
+    private boolean advance() throws IOException {
+        while(!finished) {
+            Pending next = take();
+            if(next.segment == null) {
+                finished = true;
+                break;
+            }
+            if(!next.segment.block) {
+                continue;
+            }
+
+            byte[] decoded = result(next);
+            Segment merged = next.segment;
+            for(int merges = 0; decoded == null; merges++) {
+                Pending following = take();
+                if(merges == MAX_MERGES || following.segment == null) {
+                    throw new IOException("Corrupt bzip2 block at bit " + next.segment.position);
+                }
+                merged = merged.join(following.segment);
+                try {
+                    decoded = decode(merged);
+                    System.err.println("bzip2: block at bit " + merged.position + " spans " + (merges + 1)
+                            + " false magic match(es)");
+                } catch (IOException e) {
+                    decoded = null;
+                }
+            }
+
+            if(decoded.length > 0) {
+                current = decoded;
+                currentPos = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Pending take() throws IOException {
+        Pending next;
+        try {
+            next = pending.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading bzip2 blocks", e);
+        }
+        if(next.error != null) {
+            finished = true;
+            throw next.error instanceof IOException ? (IOException) next.error : new IOException(next.error);
+        }
+        return next;
+    }
+
+    // The decoded bytes, or null when the segment did not decode on its own
+    private static byte[] result(Pending pending) throws IOException {
+        try {
+            return pending.decoded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading bzip2 blocks", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                return null;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(currentPos == current.length && !advance()) {
+            return -1;
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(currentPos == current.length && !advance()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        finished = true;
+        decoders.shutdownNow();
+        scanner.interrupt();
+        pending.clear();
+        in.close();
+    }
+
+    // Big-endian bit packing for the rebuilt streams
+    static class BitWriter {
+        private byte[] buffer;
+        private long bits;
+
+        BitWriter(int capacity) {
+            buffer = new byte[Math.max(16, capacity)];
+        }
+
+        // Low count bits of value, count <= 56
+        void write(long value, int count) {
+            for(int written = 0; written < count; ) {
+                int index = (int) (bits >>> 3);
+                if(index >= buffer.length) {
+                    buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                }
+                int free = 8 - (int) (bits & 7);
+                int n = Math.min(free, count - written);
+                int piece = (int) (value >>> (count - written - n)) & ((1 << n) - 1);
+                buffer[index] |= piece << (free - n);
+                bits += n;
+                written += n;
+            }
+        }
+
+        // count bits of src from bit offset srcBit
+        void copy(byte[] src, long srcBit, long count) {
+            long end = srcBit + count;
+            // Whole bytes of src where possible
+            while(srcBit < end && (srcBit & 7) != 0) {
+                write((src[(int) (srcBit >>> 3)] >>> (7 - (srcBit & 7))) & 1, 1);
+                srcBit++;
+            }
+            while(end - srcBit >= 8) {
+                write(src[(int) (srcBit >>> 3)] & 0xff, 8);
+                srcBit += 8;
+            }
+            while(srcBit < end) {
+                write((src[(int) (srcBit >>> 3)] >>> (7 - (srcBit & 7))) & 1, 1);
+                srcBit++;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (int) ((bits + 7) >>> 3));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// Jacobi power iteration over the transposed graph: each node gathers from its in-edges, so the node
+// range can be split across a ForkJoinPool with no two tasks writing the same slot. Leaked mass and
+// the L1 delta are reduced across the same split.
+//
+// When adaptive, a node whose rank moved by less than convergence relative to its own rank is frozen
+// (Kamvar et al.) and its in-edges are no longer gathered; the leaked mass is then taken from the
+// followed mass rather than from the gathered sum.
+public class ParallelPullSolver extends RankSolver {
+    private static final int MIN_GRAIN = 4096;
+
+    private final CSRGraph inbound;
+    private final ForkJoinPool pool;
+    private final boolean adaptive;
+
+    public ParallelPullSolver(CSRGraph inbound, ForkJoinPool pool) {
+        this(inbound, pool, false);
+    }
+
+    public ParallelPullSolver(CSRGraph inbound, ForkJoinPool pool, boolean adaptive) {
+        this.inbound = inbound;
+        this.pool = pool;
+        this.adaptive = adaptive;
+    }
+
+    @Override
+    protected void iterate(TopicWalk walk, double[] rank, double convergence, String label, SolverStats stats,
+                           IterationListener listener) {
+        final int numNodes = inbound.numNodes;
+        final int grain = Math.max(MIN_GRAIN, numNodes / (pool.getParallelism() * 16));
+        final AtomicLong edgeVisits = new AtomicLong();
+        Pass pass = new Pass(walk, inbound, rank, newBuffer(numNodes), newBuffer(numNodes),
+                adaptive ? new boolean[numNodes] : null, convergence, edgeVisits);
+
+        pool.invoke(new RangeTask(Phase.CONTRIBUTE, pass, 0.0, 0, numNodes, grain));
+
+        for(int iteration = 0; ; iteration++) {
+            // Gather from in-edges
+            double gathered = pool.invoke(new RangeTask(Phase.GATHER, pass, 0.0, 0, numNodes, grain));
+            double leaked = adaptive ? 1.0 - BETA * gathered : 1.0 - gathered;
+
+            // Reinsert leaked, calculate L1 difference and next iteration's contributions
+            double difference = pool.invoke(new RangeTask(Phase.REINSERT, pass, leaked, 0, numNodes, grain));
+
+            stats.iterations++;
+            logIteration(label, iteration, difference);
+
+            pass = pass.swapped();
+            boolean settled = notify(listener, iteration, pass.lastRank, difference);
+
+            if(difference < convergence) {
+                break;
+            }
+            if(settled) {
+                stats.earlyStops++;
+                break;
+            }
+        }
+        stats.edgeVisits += edgeVisits.get();
+
+        if(pass.lastRank != rank) {
+            System.arraycopy(pass.lastRank, 0, rank, 0, numNodes);
+            releaseBuffer(pass.lastRank);
+        } else {
+            releaseBuffer(pass.thisRank);
+        }
+        releaseBuffer(pass.contribution);
+    }
+
+    private static enum Phase { CONTRIBUTE, GATHER, REINSERT }
+
+    // Buffers shared by every task of one iteration
+    private static class Pass {
+        final TopicWalk walk;
+        final CSRGraph inbound;
+        final double[] lastRank;
+        final double[] thisRank;
+        final double[] contribution;
+        final boolean[] frozen;
+        final double convergence;
+        final AtomicLong edgeVisits;
+
+        Pass(TopicWalk walk, CSRGraph inbound, double[] lastRank, double[] thisRank, double[] contribution,
+             boolean[] frozen, double convergence, AtomicLong edgeVisits) {
+            this.walk = walk;
+            this.inbound = inbound;
+            this.lastRank = lastRank;
+            this.thisRank = thisRank;
+            this.contribution = contribution;
+            this.frozen = frozen;
+            this.convergence = convergence;
+            this.edgeVisits = edgeVisits;
+        }
+
+        Pass swapped() {
+            return new Pass(walk, inbound, thisRank, lastRank, contribution, frozen, convergence, edgeVisits);
+        }
+    }
+
+    private static class RangeTask extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        final Phase phase;
+        final Pass pass;
+        final double leaked;
+        final int from;
+        final int to;
+        final int grain;
+
+        RangeTask(Phase phase, Pass pass, double leaked, int from, int to, int grain) {
+            this.phase = phase;
+            this.pass = pass;
+            this.leaked = leaked;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Double compute() {
+            if(to - from <= grain) {
+                switch(phase) {
+                    case CONTRIBUTE:
+                        contribute(pass.lastRank);
+                        return 0.0;
+                    case GATHER:
+                        return gather();
+                    default:
+                        return reinsert();
+                }
+            }
+
+            int mid = (from + to) >>> 1;
+            RangeTask left = new RangeTask(phase, pass, leaked, from, mid, grain);
+            RangeTask right = new RangeTask(phase, pass, leaked, mid, to, grain);
+            left.fork();
+            double rightResult = right.compute();
+            return left.join() + rightResult;
+        }
+
+        private void contribute(double[] source) {
+            final TopicWalk walk = pass.walk;
+            final double[] contribution = pass.contribution;
+            for(int i = from; i < to; i++) {
+                double outWeight = walk.outWeight(i);
+                contribution[i] = outWeight > 0 ? BETA * source[i] / outWeight : 0.0;
+            }
+        }
+
+        // Returns the gathered sum, or when adaptive the rank mass that follows out-edges
+        private double gather() {
+            final int[] offsets = pass.inbound.offsets;
+            final int[] sources = pass.inbound.targets;
+            final double[] targetWeight = pass.walk.targetWeight;
+            final double[] contribution = pass.contribution;
+            final double[] lastRank = pass.lastRank;
+            final double[] thisRank = pass.thisRank;
+            final boolean[] frozen = pass.frozen;
+            double sum = 0.0;
+            long visits = 0;
+            for(int i = from; i < to; i++) {
+                if(frozen != null) {
+                    if(pass.walk.outWeight(i) > 0) {
+                        sum += lastRank[i];
+                    }
+                    if(frozen[i]) {
+                        thisRank[i] = lastRank[i];
+                        continue;
+                    }
+                }
+
+                double rank = 0.0;
+                if(targetWeight == null) {
+                    for(int e = offsets[i]; e < offsets[i + 1]; e++) {
+                        rank += contribution[sources[e]];
+                    }
+                } else {
+                    double weight = targetWeight[i];
+                    for(int e = offsets[i]; e < offsets[i + 1]; e++) {
+                        rank += contribution[sources[e]] * weight;
+                    }
+                }
+                visits += offsets[i + 1] - offsets[i];
+                thisRank[i] = rank;
+                if(frozen == null) {
+                    sum += rank;
+                }
+            }
+            pass.edgeVisits.addAndGet(visits);
+            return sum;
+        }
+
+        private double reinsert() {
+            final double[] teleport = pass.walk.teleport;
+            final double[] lastRank = pass.lastRank;
+            final double[] thisRank = pass.thisRank;
+            final boolean[] frozen = pass.frozen;
+            double difference = 0.0;
+            for(int i = from; i < to; i++) {
+                if(frozen != null && frozen[i]) {
+                    continue;
+                }
+                thisRank[i] += leaked * teleport[i];
+                double delta = Math.abs(thisRank[i] - lastRank[i]);
+                difference += delta;
+                if(frozen != null && delta < pass.convergence * thisRank[i]) {
+                    frozen[i] = true;
+                }
+            }
+            contribute(thisRank);
+            return difference;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// Jacobi power iteration scattering each node's rank along its out-edges
+public class PushSolver extends RankSolver {
+    @Override
+    protected void iterate(TopicWalk walk, double[] rank, double convergence, String label, SolverStats stats,
+                           IterationListener listener) {
+        final CSRGraph graph = walk.graph;
+        final int numNodes = graph.numNodes;
+        final int[] offsets = graph.offsets;
+        final int[] targets = graph.targets;
+        final double[] targetWeight = walk.targetWeight;
+        final double[] teleport = walk.teleport;
+
+        double [] lastRank = rank;
+        double [] thisRank = newBuffer(numNodes);
+
+        for(int iteration = 0; ; iteration++) {
+            if(iteration > 0) {
+                double []tmp = thisRank;
+                thisRank = lastRank;
+                lastRank = tmp;
+                // Clear old values
+                for(int i = 0; i < numNodes; i++) {
+                    thisRank[i] = 0.0;
+                }
+            }
+
+            // Power iteration
+            for(int i = 0; i < numNodes; i++) {
+                int start = offsets[i];
+                int end = offsets[i + 1];
+                if(start == end) {
+                    continue;
+                }
+
+                double coeff = BETA * lastRank[i] / walk.outWeight(i);
+                if(targetWeight == null) {
+                    for(int e = start; e < end; e++)  {
+                        thisRank[targets[e]] += coeff;
+                    }
+                } else {
+                    for(int e = start; e < end; e++)  {
+                        int target = targets[e];
+                        thisRank[target] += coeff * targetWeight[target];
+                    }
+                }
+            }
+
+            // Reinsert leaked
+            double topicSum = 0.0;
+            for(int i = 0; i < numNodes; i++) {
+                topicSum += thisRank[i];
+            }
+
+            double difference = 0.0;
+            for(int i = 0; i < numNodes; i++) {
+                thisRank[i] += (1.0 - topicSum) * teleport[i];
+                // Calculate L1 difference too
+                difference += Math.abs(thisRank[i] - lastRank[i]);
+            }
+
+            stats.iterations++;
+            stats.edgeVisits += graph.numEdges();
+            logIteration(label, iteration, difference);
+            boolean settled = notify(listener, iteration, thisRank, difference);
+
+            if(difference < convergence) {
+                break;
+            }
+            if(settled) {
+                stats.earlyStops++;
+                break;
+            }
+        }
+
+        if(thisRank != rank) {
+            System.arraycopy(thisRank, 0, rank, 0, numNodes);
+            releaseBuffer(thisRank);
+        } else {
+            releaseBuffer(lastRank);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Recycles double[numNodes] vectors between rank jobs, so a run allocates only as many as are ever in use
+// at once. Buffers come back zeroed.
+public class RankBufferPool {
+    public final int length;
+    private final List<double[]> free = Lists.newArrayList();
+    private int allocated;
+    private int outstanding;
+    private int peakOutstanding;
+
+    public RankBufferPool(int length) {
+        this.length = length;
+    }
+
+    public double[] take() {
+        double[] buffer;
+        synchronized(this) {
+            outstanding++;
+            peakOutstanding = Math.max(peakOutstanding, outstanding);
+            if(free.isEmpty()) {
+                allocated++;
+                buffer = null;
+            } else {
+                buffer = free.remove(free.size() - 1);
+            }
+        }
+        if(buffer == null) {
+            return new double[length];
+        }
+        Arrays.fill(buffer, 0.0);
+        return buffer;
+    }
+
+    public synchronized void give(double[] buffer) {
+        if(buffer.length != length) {
+            throw new IllegalArgumentException("Buffer of length " + buffer.length + " in a pool of " + length);
+        }
+        outstanding--;
+        free.add(buffer);
+    }
+
+    public synchronized long peakBytes() {
+        return 8L * length * peakOutstanding;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return allocated + " buffers allocated, peak " + peakOutstanding + " in use (" + (peakBytes() >> 20) + " MB)";
+    }
+}
@@ -0,0 +1,284 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// Per-topic rank vectors saved under a directory so an interrupted rankInPlace can pick up where it stopped.
+// One file per kind and topic ("tspr-12"), rewritten at most every intervalMillis while the topic iterates
+// and once more when it converges. Files are written under a temporary name and atomically renamed over the
+// old one, so a crash mid-write leaves the previous checkpoint intact. Every file records the inputChecksum of
+// the run that wrote it, and resuming with different LDA weights, links or parameters fails instead of picking
+// up stale ranks. Ranks are stored by linearId, so every file also records the GraphOrdering.Method and a
+// layoutChecksum of the node order it was written under, and resuming under another ordering fails too.
+// Layout, big-endian:
+//   int magic, int version, int numNodes, long numEdges, long inputChecksum, int ordering, long layoutChecksum,
+//   double convergence, int iterations, byte finished, double[numNodes] rank
+public class RankCheckpoints {
+    public static final long DEFAULT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private static final int MAGIC = 0x52434b50;
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 8 + 4 + 8 + 8 + 4 + 1;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    public static enum State { MISSING, IN_PROGRESS, FINISHED }
+
+    final File dir;
+    final int numNodes;
+    final long numEdges;
+    final long inputChecksum;
+    final GraphOrdering.Method ordering;
+    final long layoutChecksum;
+    final long intervalMillis;
+
+    // Checkpoints only load into a graph with the same node and edge counts. With resume, every checkpoint
+    // already in dir must have been written with inputChecksum (see inputChecksum) under the same ordering and
+    // layoutChecksum (see layoutChecksum); otherwise they are removed.
+    public RankCheckpoints(String dirName, CSRGraph graph, long inputChecksum, GraphOrdering.Method ordering,
+                           long layoutChecksum, long intervalMillis, boolean resume) throws IOException {
+        this.dir = new File(dirName);
+        this.numNodes = graph.numNodes;
+        this.numEdges = graph.numEdges();
+        this.inputChecksum = inputChecksum;
+        this.ordering = ordering;
+        this.layoutChecksum = layoutChecksum;
+        this.intervalMillis = intervalMillis;
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        if(!resume) {
+            File[] existing = dir.listFiles();
+            if(existing != null) {
+                for(File file : existing) {
+                    if(file.getName().endsWith(".ckpt") && !file.delete()) {
+                        throw new IOException("Cannot remove " + file);
+                    }
+                }
+            }
+        } else {
+            File[] existing = dir.listFiles();
+            if(existing != null) {
+                for(File file : existing) {
+                    if(file.getName().endsWith(".ckpt")) {
+                        verify(file);
+                    }
+                }
+            }
+        }
+    }
+
+    // Identifies what a run's ranks depend on: every node's page id, links and LDA weights, and parameters
+    // (whatever else changes the fixed point, such as the teleport probability). Nodes are combined without
+    // regard to their linearIds, so relabeling the graph leaves the checksum alone.
+    public static long inputChecksum(List<IntermediateTSPRNode> nodes, String parameters) {
+        long sum = 0;
+        for(IntermediateTSPRNode node : nodes) {
+            long h = mix(node.id);
+            for(long edge : node.edges) {
+                h = mix(h * 31 + edge);
+            }
+            h = mix(h * 31 + node.lda.length);
+            for(double weight : node.lda) {
+                h = mix(h * 31 + Double.doubleToLongBits(weight));
+            }
+            sum += h;
+        }
+        return mix(sum * 31 + parameters.hashCode());
+    }
+
+    // Identifies which page sits at each linearId, so ranks saved under one relabeling are not read back under
+    // another
+    public static long layoutChecksum(List<IntermediateTSPRNode> nodes) {
+        long sum = 0;
+        for(IntermediateTSPRNode node : nodes) {
+            sum += mix(mix(node.id) * 31 + node.linearId);
+        }
+        return mix(sum);
+    }
+
+    // The splitmix64 finalizer
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    private ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header);
+        header.flip();
+        if(header.getInt() != MAGIC) {
+            throw new IOException("Not a rank checkpoint: " + file);
+        }
+        int version = header.getInt();
+        if(version != VERSION) {
+            throw new IOException("Rank checkpoint " + file + " has version " + version + ", not " + VERSION
+                    + "; rerun without resume");
+        }
+        return header;
+    }
+
+    // Fails unless file was written from this run's input
+    private void verify(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer header = readHeader(raf.getChannel(), file);
+            header.getInt();
+            header.getLong();
+            checkInput(file, header.getLong());
+            checkLayout(file, header.getInt(), header.getLong());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void checkInput(File file, long savedChecksum) throws IOException {
+        if(savedChecksum != inputChecksum) {
+            throw new IOException("Rank checkpoint " + file + " was written from different LDA weights, links or "
+                    + "parameters; rerun without resume or with another checkpoint directory");
+        }
+    }
+
+    private void checkLayout(File file, int savedOrdering, long savedLayout) throws IOException {
+        GraphOrdering.Method[] methods = GraphOrdering.Method.values();
+        String saved = savedOrdering >= 0 && savedOrdering < methods.length ? methods[savedOrdering].toString()
+                : "unknown ordering " + savedOrdering;
+        if(savedOrdering != ordering.ordinal()) {
+            throw new IOException("Rank checkpoint " + file + " was written under ordering " + saved + ", not "
+                    + ordering + "; resume with the same ordering or rerun without resume");
+        }
+        if(savedLayout != layoutChecksum) {
+            throw new IOException("Rank checkpoint " + file + " was written under a different " + saved
+                    + " node order; rerun without resume or with another checkpoint directory");
+        }
+    }
+
+    private File file(String kind, int topicNum) {
+        return new File(dir, kind + "-" + topicNum + ".ckpt");
+    }
+
+    // Reads the saved iterate for kind/topicNum into rank. A vector that converged to a looser tolerance than
+    // convergence comes back IN_PROGRESS so iteration carries on from it.
+    public State load(String kind, int topicNum, double[] rank, double convergence) throws IOException {
+        File file = file(kind, topicNum);
+        if(!file.exists()) {
+            return State.MISSING;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = readHeader(channel, file);
+            int savedNodes = header.getInt();
+            long savedEdges = header.getLong();
+            long savedChecksum = header.getLong();
+            int savedOrdering = header.getInt();
+            long savedLayout = header.getLong();
+            double savedConvergence = header.getDouble();
+            int iterations = header.getInt();
+            boolean finished = header.get() != 0;
+            if(savedNodes != numNodes || savedEdges != numEdges || rank.length != numNodes) {
+                System.err.println("Ignoring checkpoint " + file + " for a different graph (" + savedNodes
+                        + " nodes, " + savedEdges + " edges)");
+                return State.MISSING;
+            }
+            checkInput(file, savedChecksum);
+            checkLayout(file, savedOrdering, savedLayout);
+
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            int i = 0;
+            while(i < numNodes) {
+                buffer.clear();
+                buffer.limit(Math.min(BUFFER_BYTES, 8 * (numNodes - i)));
+                readFully(channel, buffer);
+                buffer.flip();
+                while(buffer.hasRemaining()) {
+                    rank[i++] = buffer.getDouble();
+                }
+            }
+
+            System.out.println("Checkpoint " + file.getName() + ": " + (finished ? "finished" : "in progress")
+                    + " after " + iterations + " iterations");
+            return finished && savedConvergence <= convergence ? State.FINISHED : State.IN_PROGRESS;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void finished(String kind, int topicNum, double[] rank, double convergence, int iterations)
+            throws IOException {
+        write(kind, topicNum, rank, convergence, iterations, true);
+    }
+
+    // Saves the in-progress iterate whenever intervalMillis has passed since the last save
+    public RankSolver.IterationListener listener(final String kind, final int topicNum, final double convergence) {
+        return new RankSolver.IterationListener() {
+            long lastWrite = System.currentTimeMillis();
+
+            @Override
+            public boolean iterated(int iteration, double[] rank, double difference) {
+                long now = System.currentTimeMillis();
+                if(now - lastWrite < intervalMillis || difference < convergence) {
+                    return false;
+                }
+                try {
+                    write(kind, topicNum, rank, convergence, iteration + 1, false);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                lastWrite = System.currentTimeMillis();
+                return false;
+            }
+        };
+    }
+
+    private void write(String kind, int topicNum, double[] rank, double convergence, int iterations,
+                       boolean finished) throws IOException {
+        File target = file(kind, topicNum);
+        File temp = new File(dir, target.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(numNodes).putLong(numEdges).putLong(inputChecksum)
+                    .putInt(ordering.ordinal()).putLong(layoutChecksum).putDouble(convergence)
+                    .putInt(iterations).put((byte) (finished ? 1 : 0));
+            for(double value : rank) {
+                if(buffer.remaining() < 8) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+                buffer.putDouble(value);
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new IOException("Truncated rank checkpoint");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
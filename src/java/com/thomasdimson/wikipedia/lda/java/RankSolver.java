@@ -0,0 +1,132 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import java.util.concurrent.ForkJoinPool;
+
+public abstract class RankSolver {
+    public static enum Strategy {
+        // Push-based Jacobi power iteration, one thread per topic
+        JACOBI,
+        // Pull-based Jacobi, every topic spread over a ForkJoinPool
+        PARALLEL_PULL,
+        // In-place sweeps that use each updated rank immediately, one thread per topic
+        GAUSS_SEIDEL,
+        // Pull-based Jacobi that stops recomputing nodes whose rank has stopped changing
+        ADAPTIVE;
+
+        public boolean usesPool() {
+            return this == PARALLEL_PULL || this == ADAPTIVE;
+        }
+
+        // Per-node scratch one solve holds on top of the caller's rank vector
+        public int scratchBytesPerNode() {
+            switch(this) {
+                case PARALLEL_PULL:
+                    return 16;
+                case ADAPTIVE:
+                    return 17;
+                default:
+                    return 8;
+            }
+        }
+
+        public RankSolver create(CSRGraph graph, ForkJoinPool pool) {
+            switch(this) {
+                case JACOBI:
+                    return new PushSolver();
+                case PARALLEL_PULL:
+                    return new ParallelPullSolver(graph.transpose(), pool, false);
+                case GAUSS_SEIDEL:
+                    return new GaussSeidelSolver(graph.transpose());
+                default:
+                    return new ParallelPullSolver(graph.transpose(), pool, true);
+            }
+        }
+    }
+
+    // Sees every iterate as it is produced, e.g. to checkpoint it. The array must not be kept or modified.
+    // Returning true ends the solve at this iterate even though difference has not reached convergence.
+    public static interface IterationListener {
+        boolean iterated(int iteration, double[] rank, double difference);
+    }
+
+    private final SolverStats totals = new SolverStats();
+    private volatile RankBufferPool buffers;
+    private volatile TopKStability stoppingRule;
+
+    // Scratch vectors (and those of the rank jobs using this solver) come from buffers instead of new arrays
+    public void setBuffers(RankBufferPool buffers) {
+        this.buffers = buffers;
+    }
+
+    // Every later solve may also stop early, once a fresh copy of rule finds its top nodes settled
+    public void setStoppingRule(TopKStability rule) {
+        this.stoppingRule = rule;
+    }
+
+    // A zeroed vector of length numNodes
+    protected double[] newBuffer(int numNodes) {
+        RankBufferPool pool = buffers;
+        if(pool == null || pool.length != numNodes) {
+            return new double[numNodes];
+        }
+        return pool.take();
+    }
+
+    protected void releaseBuffer(double[] buffer) {
+        RankBufferPool pool = buffers;
+        if(pool != null && pool.length == buffer.length) {
+            pool.give(buffer);
+        }
+    }
+
+    // Iterates rank, which holds the starting vector, in place until the L1 delta between iterations
+    // drops below convergence.
+    public SolverStats solve(TopicWalk walk, double[] rank, double convergence, String label) {
+        return solve(walk, rank, convergence, label, null);
+    }
+
+    public SolverStats solve(TopicWalk walk, double[] rank, double convergence, String label,
+                             IterationListener listener) {
+        SolverStats stats = new SolverStats();
+        stats.solves = 1;
+        TopKStability rule = stoppingRule == null ? null : stoppingRule.fresh();
+        long start = System.nanoTime();
+        iterate(walk, rank, convergence, label, stats, both(listener, rule));
+        stats.nanos = System.nanoTime() - start;
+        String criterion = stats.earlyStops > 0 ? String.valueOf(rule) : "L1 delta < " + convergence;
+        System.err.println(label + " finished (" + criterion + "): " + stats);
+        totals.add(stats);
+        return stats;
+    }
+
+    // Accumulated over every solve run by this solver
+    public SolverStats totals() {
+        return totals;
+    }
+
+    protected abstract void iterate(TopicWalk walk, double[] rank, double convergence, String label,
+                                    SolverStats stats, IterationListener listener);
+
+    protected static void logIteration(String label, int iteration, double difference) {
+        System.err.println(label + " iteration " + iteration + ": delta=" + difference);
+    }
+
+    // Whether listener asked to stop
+    protected static boolean notify(IterationListener listener, int iteration, double[] rank, double difference) {
+        return listener != null && listener.iterated(iteration, rank, difference);
+    }
+
+    // Runs first then stopper (either may be null) on every iterate; only stopper decides when to stop
+    private static IterationListener both(final IterationListener first, final IterationListener stopper) {
+        if(first == null || stopper == null) {
+            return first == null ? stopper : first;
+        }
+        return new IterationListener() {
+            @Override
+            public boolean iterated(int iteration, double[] rank, double difference) {
+                first.iterated(iteration, rank, difference);
+                return stopper.iterated(iteration, rank, difference);
+            }
+        };
+    }
+}
@@ -0,0 +1,205 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+// Topic-major matrix of per-node scores kept off the heap, one direct (or mapped) buffer per topic holding
+// 8- or 4-byte entries in linearId order. Stands in for the tspr/lspr arrays on IntermediateTSPRNode in big
+// runs, where 6M nodes x 201 topics of small double[]s cost tens of GB of heap and long GC scans.
+// File layout, big-endian: int magic, int version, int bytes per entry, int numNodes, int numTopics, then each
+// topic's column in turn.
+public class ScoreStore {
+    public static enum Precision {
+        FLOAT64(8),
+        FLOAT32(4);
+
+        public final int bytes;
+
+        Precision(int bytes) {
+            this.bytes = bytes;
+        }
+
+        static Precision ofBytes(int bytes) throws IOException {
+            for(Precision precision : values()) {
+                if(precision.bytes == bytes) {
+                    return precision;
+                }
+            }
+            throw new IOException("No score precision of " + bytes + " bytes");
+        }
+    }
+
+    private static final int MAGIC = 0x53434f52;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * 4;
+
+    public final int numNodes;
+    public final int numTopics;
+    public final Precision precision;
+    private final ByteBuffer[] columns;
+
+    private ScoreStore(int numNodes, int numTopics, Precision precision, ByteBuffer[] columns) {
+        this.numNodes = numNodes;
+        this.numTopics = numTopics;
+        this.precision = precision;
+        this.columns = columns;
+    }
+
+    // A zeroed store in direct buffers
+    public ScoreStore(int numNodes, int numTopics, Precision precision) {
+        this(numNodes, numTopics, precision, new ByteBuffer[numTopics]);
+        for(int t = 0; t < numTopics; t++) {
+            columns[t] = ByteBuffer.allocateDirect(columnBytes());
+        }
+    }
+
+    private int columnBytes() {
+        long bytes = (long) numNodes * precision.bytes;
+        if(bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(numNodes + " nodes do not fit one score column");
+        }
+        return (int) bytes;
+    }
+
+    public long bytes() {
+        return (long) numTopics * columnBytes();
+    }
+
+    public double get(int topicNum, int linearId) {
+        if(precision == Precision.FLOAT64) {
+            return columns[topicNum].getDouble(linearId * 8);
+        }
+        return columns[topicNum].getFloat(linearId * 4);
+    }
+
+    public void set(int topicNum, int linearId, double value) {
+        if(precision == Precision.FLOAT64) {
+            columns[topicNum].putDouble(linearId * 8, value);
+        } else {
+            columns[topicNum].putFloat(linearId * 4, (float) value);
+        }
+    }
+
+    // Replaces one topic's column. Different topics may be written from different threads at once.
+    public void putColumn(int topicNum, double[] values) {
+        if(values.length != numNodes) {
+            throw new IllegalArgumentException("Column of " + values.length + " scores for " + numNodes + " nodes");
+        }
+        ByteBuffer column = columns[topicNum].duplicate();
+        column.clear();
+        if(precision == Precision.FLOAT64) {
+            column.asDoubleBuffer().put(values);
+        } else {
+            FloatBuffer floats = column.asFloatBuffer();
+            for(double value : values) {
+                floats.put((float) value);
+            }
+        }
+    }
+
+    public double[] getColumn(int topicNum, double[] into) {
+        ByteBuffer column = columns[topicNum].duplicate();
+        column.clear();
+        if(precision == Precision.FLOAT64) {
+            column.asDoubleBuffer().get(into, 0, numNodes);
+        } else {
+            FloatBuffer floats = column.asFloatBuffer();
+            for(int i = 0; i < numNodes; i++) {
+                into[i] = floats.get(i);
+            }
+        }
+        return into;
+    }
+
+    public void write(String filename) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(precision.bytes).putInt(numNodes).putInt(numTopics);
+            header.flip();
+            writeFully(channel, header);
+            for(ByteBuffer column : columns) {
+                ByteBuffer source = column.duplicate();
+                source.clear();
+                writeFully(channel, source);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    // A zeroed store mapped from a new file, for score matrices larger than memory
+    public static ScoreStore create(String filename, int numNodes, int numTopics, Precision precision)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+        try {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(precision.bytes);
+            raf.writeInt(numNodes);
+            raf.writeInt(numTopics);
+            raf.setLength(HEADER_BYTES + (long) numTopics * numNodes * precision.bytes);
+        } finally {
+            raf.close();
+        }
+        return open(filename, true);
+    }
+
+    // Loads filename into direct buffers, or with mapped, maps its columns read-write in place so that
+    // writes go back to the file
+    public static ScoreStore open(String filename, boolean mapped) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(filename, mapped ? "rw" : "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            header.flip();
+            if(header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a score store: " + filename);
+            }
+            Precision precision = Precision.ofBytes(header.getInt());
+            int numNodes = header.getInt();
+            int numTopics = header.getInt();
+
+            ScoreStore store = new ScoreStore(numNodes, numTopics, precision, new ByteBuffer[numTopics]);
+            int columnBytes = store.columnBytes();
+            if(channel.size() != HEADER_BYTES + store.bytes()) {
+                throw new IOException("Truncated score store: " + filename);
+            }
+            for(int t = 0; t < numTopics; t++) {
+                long position = HEADER_BYTES + (long) t * columnBytes;
+                if(mapped) {
+                    store.columns[t] = channel.map(FileChannel.MapMode.READ_WRITE, position, columnBytes);
+                } else {
+                    store.columns[t] = ByteBuffer.allocateDirect(columnBytes);
+                    readFully(channel, store.columns[t], position);
+                }
+            }
+            return store;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) {
+                throw new IOException("Truncated score store");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.protobuf.MessageLite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// A stream of length-delimited protobuf records (DumpPage, WikiGraphNode, TSPRGraphNode) split across numShards
+// files so that several threads can read it at once. Records go out in blocks of recordsPerBlock, block b to
+// shard b % numShards, and the sidecar index holds every block's byte offset in its shard. Readers can take
+// whole shards, any range of blocks, or the original order back by visiting the shards in turn, all without
+// scanning the data first.
+// Files: prefix-00000 ... for the shards and prefix.index, big-endian: int magic, int version, int numShards,
+// int recordsPerBlock, long numRecords, then for each shard int numBlocks and its blocks' long offsets.
+public class ShardedDumpFile {
+    public static final int DEFAULT_RECORDS_PER_BLOCK = 4096;
+
+    private static final int MAGIC = 0x53484152;
+    private static final int VERSION = 1;
+
+    public final String prefix;
+    public final int numShards;
+    public final int recordsPerBlock;
+    public final long numRecords;
+    private final long[][] blockOffsets;
+
+    private ShardedDumpFile(String prefix, int numShards, int recordsPerBlock, long numRecords,
+                            long[][] blockOffsets) {
+        this.prefix = prefix;
+        this.numShards = numShards;
+        this.recordsPerBlock = recordsPerBlock;
+        this.numRecords = numRecords;
+        this.blockOffsets = blockOffsets;
+    }
+
+    public static String shardFileName(String prefix, int shard) {
+        return String.format("%s-%05d", prefix, shard);
+    }
+
+    public static String indexFileName(String prefix) {
+        return prefix + ".index";
+    }
+
+    // Whether filename names a sharded file rather than a plain delimited one
+    public static boolean isSharded(String filename) {
+        return !new File(filename).exists() && new File(indexFileName(filename)).exists();
+    }
+
+    public static ShardedDumpFile open(String prefix) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFileName(prefix))));
+        try {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a shard index: " + indexFileName(prefix));
+            }
+            int numShards = in.readInt();
+            int recordsPerBlock = in.readInt();
+            long numRecords = in.readLong();
+            long[][] blockOffsets = new long[numShards][];
+            for(int shard = 0; shard < numShards; shard++) {
+                blockOffsets[shard] = new long[in.readInt()];
+                for(int b = 0; b < blockOffsets[shard].length; b++) {
+                    blockOffsets[shard][b] = in.readLong();
+                }
+            }
+            return new ShardedDumpFile(prefix, numShards, recordsPerBlock, numRecords, blockOffsets);
+        } finally {
+            in.close();
+        }
+    }
+
+    public int numBlocks(int shard) {
+        return blockOffsets[shard].length;
+    }
+
+    // Records in block (numbered within its shard); only the very last block of the file can be short
+    public int recordsInBlock(int shard, int block) {
+        long global = (long) block * numShards + shard;
+        return (int) Math.min(recordsPerBlock, numRecords - global * recordsPerBlock);
+    }
+
+    // Records in blocks [fromBlock, toBlock) of shard, read with prototype's parser
+    public <M extends MessageLite> Iterator<M> blockIterator(int shard, int fromBlock, int toBlock, M prototype)
+            throws IOException {
+        long count = 0;
+        for(int b = fromBlock; b < toBlock; b++) {
+            count += recordsInBlock(shard, b);
+        }
+        if(count == 0) {
+            return Iterators.emptyIterator();
+        }
+        FileInputStream file = new FileInputStream(shardFileName(prefix, shard));
+        file.getChannel().position(blockOffsets[shard][fromBlock]);
+        return new RecordIterator<M>(new BufferedInputStream(file), prototype, count);
+    }
+
+    public <M extends MessageLite> Iterator<M> shardIterator(int shard, M prototype) throws IOException {
+        return blockIterator(shard, 0, numBlocks(shard), prototype);
+    }
+
+    // Every record, in the order they were written
+    public <M extends MessageLite> Iterator<M> iterator(M prototype) throws IOException {
+        final List<Iterator<M>> shards = Lists.newArrayListWithCapacity(numShards);
+        for(int shard = 0; shard < numShards; shard++) {
+            shards.add(shardIterator(shard, prototype));
+        }
+        return new Iterator<M>() {
+            long position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < numRecords;
+            }
+
+            @Override
+            public M next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                M ret = shards.get((int) (position / recordsPerBlock % numShards)).next();
+                position++;
+                return ret;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // About n iterators over consecutive runs of blocks in the original order: every record of split k was
+    // written before any record of split k + 1, and each split reads one block at a time, so n threads can read
+    // them at once.
+    public <M extends MessageLite> List<Iterator<M>> splits(int n, final M prototype) {
+        long totalBlocks = (numRecords + recordsPerBlock - 1) / recordsPerBlock;
+        long perSplit = Math.max(1, (totalBlocks + n - 1) / n);
+
+        List<Iterator<M>> splits = Lists.newArrayList();
+        for(long from = 0; from < totalBlocks; from += perSplit) {
+            final long first = from;
+            final long end = Math.min(totalBlocks, from + perSplit);
+            splits.add(Iterators.concat(new AbstractIterator<Iterator<M>>() {
+                long block = first;
+
+                @Override
+                protected Iterator<M> computeNext() {
+                    if(block == end) {
+                        return endOfData();
+                    }
+                    int shard = (int) (block % numShards);
+                    int inShard = (int) (block / numShards);
+                    block++;
+                    try {
+                        return blockIterator(shard, inShard, inShard + 1, prototype);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        return splits;
+    }
+
+    private static class RecordIterator<M extends MessageLite> implements Iterator<M> {
+        private final InputStream in;
+        private final M prototype;
+        private long remaining;
+
+        RecordIterator(InputStream in, M prototype, long count) {
+            this.in = in;
+            this.prototype = prototype;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public M next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                MessageLite.Builder builder = prototype.newBuilderForType();
+                if(!builder.mergeDelimitedFrom(in)) {
+                    throw new IOException("Shard ended " + remaining + " records early");
+                }
+                if(--remaining == 0) {
+                    in.close();
+                }
+                return (M) builder.build();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Not thread safe; writes must come in the order readers should see them
+    public static class Writer {
+        private final String prefix;
+        private final int recordsPerBlock;
+        private final OutputStream[] shards;
+        private final long[] shardBytes;
+        private final long[][] blockOffsets;
+        private final int[] numBlocks;
+        private long numRecords;
+
+        public Writer(String prefix, int numShards) throws IOException {
+            this(prefix, numShards, DEFAULT_RECORDS_PER_BLOCK);
+        }
+
+        public Writer(String prefix, int numShards, int recordsPerBlock) throws IOException {
+            if(numShards <= 0 || recordsPerBlock <= 0) {
+                throw new IllegalArgumentException("Need a positive shard count and block size, got "
+                        + numShards + " and " + recordsPerBlock);
+            }
+            this.prefix = prefix;
+            this.recordsPerBlock = recordsPerBlock;
+            this.shards = new OutputStream[numShards];
+            this.shardBytes = new long[numShards];
+            this.blockOffsets = new long[numShards][16];
+            this.numBlocks = new int[numShards];
+            for(int shard = 0; shard < numShards; shard++) {
+                shards[shard] = new BufferedOutputStream(new FileOutputStream(shardFileName(prefix, shard)), 1 << 16);
+            }
+        }
+
+        public void write(MessageLite message) throws IOException {
+            write(message.toByteArray(), true);
+        }
+
+        // One record already in writeDelimitedTo form
+        public void writeDelimited(byte[] record) throws IOException {
+            write(record, false);
+        }
+
+        private void write(byte[] bytes, boolean addLength) throws IOException {
+            int shard = (int) (numRecords / recordsPerBlock % shards.length);
+            if(numRecords % recordsPerBlock == 0) {
+                if(numBlocks[shard] == blockOffsets[shard].length) {
+                    blockOffsets[shard] = Arrays.copyOf(blockOffsets[shard], 2 * numBlocks[shard]);
+                }
+                blockOffsets[shard][numBlocks[shard]++] = shardBytes[shard];
+            }
+            if(addLength) {
+                shardBytes[shard] += writeVarint(shards[shard], bytes.length);
+            }
+            shards[shard].write(bytes);
+            shardBytes[shard] += bytes.length;
+            numRecords++;
+        }
+
+        private static int writeVarint(OutputStream out, int value) throws IOException {
+            int written = 1;
+            while((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+                written++;
+            }
+            out.write(value);
+            return written;
+        }
+
+        public long numRecords() {
+            return numRecords;
+        }
+
+        // Closes the shards and writes the index, which readers need
+        public void close() throws IOException {
+            for(OutputStream shard : shards) {
+                shard.close();
+            }
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(indexFileName(prefix))));
+            try {
+                index.writeInt(MAGIC);
+                index.writeInt(VERSION);
+                index.writeInt(shards.length);
+                index.writeInt(recordsPerBlock);
+                index.writeLong(numRecords);
+                for(int shard = 0; shard < shards.length; shard++) {
+                    index.writeInt(numBlocks[shard]);
+                    for(int b = 0; b < numBlocks[shard]; b++) {
+                        index.writeLong(blockOffsets[shard][b]);
+                    }
+                }
+            } finally {
+                index.close();
+            }
+        }
+    }
+}
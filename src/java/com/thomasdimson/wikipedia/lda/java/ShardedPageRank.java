@@ -0,0 +1,524 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.collect.Lists;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.LSPR_FOLLOW_PRIOR;
+
+// TSPR/LSPR over a MappedGraph split across worker processes. Worker k owns the linearIds [bounds[k], bounds[k+1])
+// and their in-edges, and iterates pull-style Jacobi on that slice. Each iteration a worker sends every peer
+// the contributions of its nodes that link into the peer's slice, over a socket mesh between the workers; the
+// coordinator only sums the per-slice rank mass (to get the leaked mass) and L1 deltas, and decides when a
+// topic has converged. Workers write finished slices straight into the graph's tspr/lspr columns, so the
+// result is read back with MappedTopicSensitivePageRank.writeTSPRGraphNodes.
+//
+// rank() launches the workers as local JVMs with this class as main:  worker <host> <port> <index>
+public class ShardedPageRank {
+    private static final int SOLVE = 1;
+    private static final int SHUTDOWN = 2;
+
+    private static final int BUFFER_BYTES = 1 << 16;
+    // How long to wait for launched workers to check in
+    private static final int ACCEPT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    // Solves every topic of graph with numWorkers local worker processes, each started with jvmArgs
+    public static void rank(MappedGraph graph, double convergence, int numWorkers, List<String> jvmArgs)
+            throws IOException, InterruptedException {
+        graph.createColumns(MappedTopicSensitivePageRank.TSPR);
+        graph.createColumns(MappedTopicSensitivePageRank.LSPR);
+
+        ServerSocket server = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+        List<Process> processes = Lists.newArrayList();
+        Socket[] sockets = new Socket[numWorkers];
+        try {
+            for(int k = 0; k < numWorkers; k++) {
+                List<String> command = Lists.newArrayList();
+                command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+                command.addAll(jvmArgs);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(ShardedPageRank.class.getName());
+                command.add("worker");
+                command.add(server.getInetAddress().getHostAddress());
+                command.add(Integer.toString(server.getLocalPort()));
+                command.add(Integer.toString(k));
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+
+            int[] bounds = partition(graph, numWorkers);
+            int[] peerPorts = new int[numWorkers];
+            DataInputStream[] ins = new DataInputStream[numWorkers];
+            DataOutputStream[] outs = new DataOutputStream[numWorkers];
+            for(int k = 0; k < numWorkers; k++) {
+                Socket socket = server.accept();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int index = in.readInt();
+                sockets[index] = socket;
+                ins[index] = in;
+                outs[index] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                peerPorts[index] = in.readInt();
+            }
+            for(int k = 0; k < numWorkers; k++) {
+                outs[k].writeUTF(graph.dir.getAbsolutePath());
+                outs[k].writeInt(numWorkers);
+                for(int bound : bounds) {
+                    outs[k].writeInt(bound);
+                }
+                for(int port : peerPorts) {
+                    outs[k].writeInt(port);
+                }
+                outs[k].flush();
+            }
+            System.out.println("Sharded PageRank: " + numWorkers + " workers over " + graph.numNodes + " nodes, bounds "
+                    + Arrays.toString(bounds));
+
+            SolverStats totals = new SolverStats();
+            long start = System.nanoTime();
+            for(int tnum = 0; tnum < graph.numTopics; tnum++) {
+                coordinate(ins, outs, graph, false, tnum, 0.0, convergence, totals);
+                coordinate(ins, outs, graph, true, tnum, LSPR_FOLLOW_PRIOR, convergence, totals);
+            }
+            for(DataOutputStream out : outs) {
+                out.writeInt(SHUTDOWN);
+                out.flush();
+            }
+            for(Process process : processes) {
+                if(process.waitFor() != 0) {
+                    throw new IOException("Worker exited with " + process.exitValue());
+                }
+            }
+            System.out.println("Sharded solver: " + totals + ", wall time " + (System.nanoTime() - start) / 1000000
+                    + " ms");
+        } finally {
+            for(Socket socket : sockets) {
+                if(socket != null) {
+                    socket.close();
+                }
+            }
+            server.close();
+            for(Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    // One topic: every iteration sums the workers' rank mass into the leaked mass, then their deltas
+    private static void coordinate(DataInputStream[] ins, DataOutputStream[] outs, MappedGraph graph,
+                                   boolean ldaWeighted, int topicNum, double followPrior, double convergence,
+                                   SolverStats totals) throws IOException {
+        String label = (ldaWeighted ? "LDA-sensitive PageRank " : "Topic-Sensitive PageRank topic ") + topicNum;
+        for(DataOutputStream out : outs) {
+            out.writeInt(SOLVE);
+            out.writeBoolean(ldaWeighted);
+            out.writeInt(topicNum);
+            out.writeDouble(followPrior);
+            out.flush();
+        }
+
+        SolverStats stats = new SolverStats();
+        stats.solves = 1;
+        long start = System.nanoTime();
+        for(int iteration = 0; ; iteration++) {
+            double topicSum = 0.0;
+            for(DataInputStream in : ins) {
+                topicSum += in.readDouble();
+            }
+            for(DataOutputStream out : outs) {
+                out.writeDouble(1.0 - topicSum);
+                out.flush();
+            }
+
+            double difference = 0.0;
+            for(DataInputStream in : ins) {
+                difference += in.readDouble();
+            }
+            boolean done = difference < convergence;
+            for(DataOutputStream out : outs) {
+                out.writeBoolean(done);
+                out.flush();
+            }
+
+            stats.iterations++;
+            stats.edgeVisits += graph.numEdges;
+            RankSolver.logIteration(label, iteration, difference);
+            if(done) {
+                break;
+            }
+        }
+
+        // Wait until every slice is in the column
+        for(DataInputStream in : ins) {
+            in.readBoolean();
+        }
+        stats.nanos = System.nanoTime() - start;
+        System.err.println(label + " finished: " + stats);
+        totals.add(stats);
+    }
+
+    // Slice bounds balancing nodes plus out-edges
+    static int[] partition(MappedGraph graph, int numWorkers) {
+        int[] bounds = new int[numWorkers + 1];
+        long total = graph.numNodes + graph.numEdges;
+        int k = 1;
+        for(int i = 0; i < graph.numNodes && k < numWorkers; i++) {
+            if(i + (long) graph.offset(i) >= total * k / numWorkers) {
+                bounds[k++] = i;
+            }
+        }
+        for(; k <= numWorkers; k++) {
+            bounds[k] = graph.numNodes;
+        }
+        return bounds;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 4 || !args[0].equals("worker")) {
+            System.err.println("Usage: ShardedPageRank worker <host> <port> <index>");
+            System.exit(1);
+        }
+        new Worker(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3])).run();
+    }
+
+    static class Worker {
+        final int index;
+        final Socket coordinatorSocket;
+        final DataInputStream coordinatorIn;
+        final DataOutputStream coordinatorOut;
+        final ServerSocket peerServer;
+
+        MappedGraph graph;
+        int numWorkers;
+        int[] bounds;
+        int lo;
+        int owned;
+
+        // In-edges of owned node v are inSources[inOffsets[v - lo] .. inOffsets[v - lo + 1]), as indices into
+        // the contribution array: owned sources first, then the peers' boundary nodes in peer order
+        int[] inOffsets;
+        int[] inSources;
+        int[] ghostStart;
+        int numGhosts;
+        // Local indices of the owned nodes whose contributions each peer needs, ascending
+        int[][] sendLists;
+
+        DataInputStream[] peerIns;
+        DataOutputStream[] peerOuts;
+        ExecutorService senders;
+
+        Worker(String host, int port, int index) throws IOException {
+            this.index = index;
+            this.peerServer = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+            this.coordinatorSocket = new Socket(host, port);
+            this.coordinatorIn = new DataInputStream(new BufferedInputStream(coordinatorSocket.getInputStream()));
+            this.coordinatorOut = new DataOutputStream(new BufferedOutputStream(coordinatorSocket.getOutputStream()));
+            coordinatorOut.writeInt(index);
+            coordinatorOut.writeInt(peerServer.getLocalPort());
+            coordinatorOut.flush();
+        }
+
+        void run() throws IOException {
+            try {
+                graph = MappedGraph.open(coordinatorIn.readUTF());
+                numWorkers = coordinatorIn.readInt();
+                bounds = new int[numWorkers + 1];
+                for(int k = 0; k <= numWorkers; k++) {
+                    bounds[k] = coordinatorIn.readInt();
+                }
+                int[] peerPorts = new int[numWorkers];
+                for(int k = 0; k < numWorkers; k++) {
+                    peerPorts[k] = coordinatorIn.readInt();
+                }
+                lo = bounds[index];
+                owned = bounds[index + 1] - lo;
+
+                connectPeers(peerPorts);
+                buildSlice();
+                senders = Executors.newFixedThreadPool(Math.max(1, numWorkers - 1));
+
+                while(true) {
+                    int command = coordinatorIn.readInt();
+                    if(command == SHUTDOWN) {
+                        break;
+                    }
+                    boolean ldaWeighted = coordinatorIn.readBoolean();
+                    int topicNum = coordinatorIn.readInt();
+                    double followPrior = coordinatorIn.readDouble();
+                    solve(ldaWeighted, topicNum, followPrior);
+                }
+            } finally {
+                if(senders != null) {
+                    senders.shutdownNow();
+                }
+                coordinatorSocket.close();
+                peerServer.close();
+            }
+        }
+
+        // Every worker connects to the lower-indexed ones and accepts the higher-indexed ones
+        private void connectPeers(int[] peerPorts) throws IOException {
+            peerIns = new DataInputStream[numWorkers];
+            peerOuts = new DataOutputStream[numWorkers];
+            for(int k = 0; k < index; k++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), peerPorts[k]);
+                socket.setTcpNoDelay(true);
+                peerOuts[k] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES));
+                peerIns[k] = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+                peerOuts[k].writeInt(index);
+                peerOuts[k].flush();
+            }
+            for(int accepted = index + 1; accepted < numWorkers; accepted++) {
+                Socket socket = peerServer.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+                int peer = in.readInt();
+                peerIns[peer] = in;
+                peerOuts[peer] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES));
+            }
+        }
+
+        private int owner(int node) {
+            int k = Arrays.binarySearch(bounds, node);
+            // Empty slices repeat a bound, so step past them to the slice that actually holds node
+            if(k >= 0) {
+                while(k + 1 < bounds.length && bounds[k + 1] == node) {
+                    k++;
+                }
+                return k;
+            }
+            return -k - 2;
+        }
+
+        private void buildSlice() {
+            final int hi = lo + owned;
+            final int numNodes = graph.numNodes;
+
+            // In-degrees, and which outside nodes link in (numbered in ascending order, hence grouped by peer)
+            inOffsets = new int[owned + 1];
+            ghostStart = new int[numWorkers + 1];
+            numGhosts = 0;
+            int start = graph.offset(0);
+            for(int u = 0; u < numNodes; u++) {
+                int end = graph.offset(u + 1);
+                boolean linksIn = false;
+                for(long e = start; e < end; e++) {
+                    int v = graph.target(e);
+                    if(v >= lo && v < hi) {
+                        inOffsets[v - lo + 1]++;
+                        linksIn = true;
+                    }
+                }
+                if(linksIn && (u < lo || u >= hi)) {
+                    numGhosts++;
+                    ghostStart[owner(u) + 1]++;
+                }
+                start = end;
+            }
+            for(int v = 0; v < owned; v++) {
+                inOffsets[v + 1] += inOffsets[v];
+            }
+            for(int k = 0; k < numWorkers; k++) {
+                ghostStart[k + 1] += ghostStart[k];
+            }
+
+            // Sources of each owned node, ascending like CSRGraph.transpose
+            inSources = new int[inOffsets[owned]];
+            int[] fill = Arrays.copyOf(inOffsets, owned);
+            int ghost = 0;
+            start = graph.offset(0);
+            for(int u = 0; u < numNodes; u++) {
+                int end = graph.offset(u + 1);
+                boolean isGhost = u < lo || u >= hi;
+                boolean linksIn = false;
+                for(long e = start; e < end; e++) {
+                    int v = graph.target(e);
+                    if(v >= lo && v < hi) {
+                        inSources[fill[v - lo]++] = isGhost ? owned + ghost : u - lo;
+                        linksIn = true;
+                    }
+                }
+                if(linksIn && isGhost) {
+                    ghost++;
+                }
+                start = end;
+            }
+
+            // What each peer needs from us, found from our own out-edges
+            int[][] lists = new int[numWorkers][16];
+            int[] sizes = new int[numWorkers];
+            int[] lastSent = new int[numWorkers];
+            Arrays.fill(lastSent, -1);
+            for(int u = lo; u < hi; u++) {
+                for(long e = graph.offset(u); e < graph.offset(u + 1); e++) {
+                    int peer = owner(graph.target(e));
+                    if(peer != index && lastSent[peer] != u) {
+                        lastSent[peer] = u;
+                        if(sizes[peer] == lists[peer].length) {
+                            lists[peer] = Arrays.copyOf(lists[peer], sizes[peer] * 2);
+                        }
+                        lists[peer][sizes[peer]++] = u - lo;
+                    }
+                }
+            }
+            sendLists = new int[numWorkers][];
+            for(int k = 0; k < numWorkers; k++) {
+                sendLists[k] = Arrays.copyOf(lists[k], sizes[k]);
+            }
+            System.out.println("Worker " + index + ": nodes [" + lo + ", " + hi + "), " + inSources.length
+                    + " in-edges, " + numGhosts + " boundary nodes");
+        }
+
+        private void solve(boolean ldaWeighted, int topicNum, double followPrior) throws IOException {
+            final int hi = lo + owned;
+            final DoubleBuffer lda = graph.column(MappedGraph.LDA, topicNum, FileChannel.MapMode.READ_ONLY);
+
+            // Same teleport and walk weights as TopicWalk, restricted to the slice
+            double sum = 0.0;
+            for(int i = 0; i < graph.numNodes; i++) {
+                sum += lda.get(i);
+            }
+            double[] teleport = new double[owned];
+            double[] targetWeight = ldaWeighted ? new double[owned] : null;
+            double[] outWeight = new double[owned];
+            for(int v = 0; v < owned; v++) {
+                teleport[v] = lda.get(lo + v) / sum;
+                if(ldaWeighted) {
+                    targetWeight[v] = followPrior + lda.get(lo + v);
+                }
+            }
+            for(int u = lo; u < hi; u++) {
+                if(ldaWeighted) {
+                    double neighborSum = 0.0;
+                    for(long e = graph.offset(u); e < graph.offset(u + 1); e++) {
+                        neighborSum += followPrior + lda.get(graph.target(e));
+                    }
+                    outWeight[u - lo] = neighborSum;
+                } else {
+                    outWeight[u - lo] = graph.offset(u + 1) - graph.offset(u);
+                }
+            }
+
+            double[] lastRank = teleport.clone();
+            double[] thisRank = new double[owned];
+            final double[] contribution = new double[owned + numGhosts];
+            while(true) {
+                for(int u = 0; u < owned; u++) {
+                    contribution[u] = outWeight[u] > 0 ? BETA * lastRank[u] / outWeight[u] : 0.0;
+                }
+                exchange(contribution);
+
+                // Gather from in-edges
+                double topicSum = 0.0;
+                for(int v = 0; v < owned; v++) {
+                    double updated = 0.0;
+                    if(targetWeight == null) {
+                        for(int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                            updated += contribution[inSources[e]];
+                        }
+                    } else {
+                        double weight = targetWeight[v];
+                        for(int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                            updated += contribution[inSources[e]] * weight;
+                        }
+                    }
+                    thisRank[v] = updated;
+                    topicSum += updated;
+                }
+                coordinatorOut.writeDouble(topicSum);
+                coordinatorOut.flush();
+                double leaked = coordinatorIn.readDouble();
+
+                // Reinsert leaked, calculate L1 difference too
+                double difference = 0.0;
+                for(int v = 0; v < owned; v++) {
+                    thisRank[v] += leaked * teleport[v];
+                    difference += Math.abs(thisRank[v] - lastRank[v]);
+                }
+                coordinatorOut.writeDouble(difference);
+                coordinatorOut.flush();
+
+                double[] tmp = lastRank;
+                lastRank = thisRank;
+                thisRank = tmp;
+                if(coordinatorIn.readBoolean()) {
+                    break;
+                }
+            }
+
+            DoubleBuffer column = graph.column(ldaWeighted ? MappedTopicSensitivePageRank.LSPR :
+                    MappedTopicSensitivePageRank.TSPR, topicNum, FileChannel.MapMode.READ_WRITE);
+            column.position(lo);
+            column.put(lastRank);
+            coordinatorOut.writeBoolean(true);
+            coordinatorOut.flush();
+        }
+
+        // Sends each peer our boundary contributions while reading theirs into the ghost part of contribution
+        private void exchange(final double[] contribution) throws IOException {
+            List<Future<?>> sends = Lists.newArrayList();
+            for(int k = 0; k < numWorkers; k++) {
+                if(k == index) {
+                    continue;
+                }
+                final DataOutputStream out = peerOuts[k];
+                final int[] sendList = sendLists[k];
+                sends.add(senders.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+                        for(int local : sendList) {
+                            if(!buffer.hasRemaining()) {
+                                out.write(buffer.array(), 0, buffer.position());
+                                buffer.clear();
+                            }
+                            buffer.putDouble(contribution[local]);
+                        }
+                        out.write(buffer.array(), 0, buffer.position());
+                        out.flush();
+                        return null;
+                    }
+                }));
+            }
+
+            byte[] bytes = new byte[BUFFER_BYTES];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for(int k = 0; k < numWorkers; k++) {
+                if(k == index) {
+                    continue;
+                }
+                int pos = owned + ghostStart[k];
+                int end = owned + ghostStart[k + 1];
+                while(pos < end) {
+                    int count = Math.min(BUFFER_BYTES / 8, end - pos);
+                    peerIns[k].readFully(bytes, 0, count * 8);
+                    buffer.clear();
+                    for(int i = 0; i < count; i++) {
+                        contribution[pos++] = buffer.getDouble();
+                    }
+                }
+            }
+
+            for(Future<?> send : sends) {
+                try {
+                    send.get();
+                } catch (Exception e) {
+                    throw new IOException("Sending contributions failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+public class SolverStats {
+    public int solves;
+    public long iterations;
+    public long edgeVisits;
+    public long nanos;
+    // Solves ended by an IterationListener before reaching the L1 convergence threshold
+    public int earlyStops;
+
+    public synchronized void add(SolverStats other) {
+        solves += other.solves;
+        iterations += other.iterations;
+        edgeVisits += other.edgeVisits;
+        nanos += other.nanos;
+        earlyStops += other.earlyStops;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return iterations + " iterations, " + edgeVisits + " edge visits, " + (nanos / 1000000) + " ms"
+                + (solves > 1 ? " over " + solves + " solves" : "")
+                + (earlyStops > 0 ? ", " + earlyStops + " stopped early" : "");
+    }
+}
@@ -0,0 +1,276 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import java.util.Arrays;
+
+// An immutable map from titles to longs for the millions of titles and redirects in a dump, which as a hash map
+// of Strings to Longs costs over 100 bytes an entry. Titles are kept sorted, back to back as UTF-8 in one byte
+// array, and found by binary search. UTF-8 byte order is code point order, so lookups compare any CharSequence
+// (a String, or a window onto page text) against the arena without encoding it.
+// Lone surrogates are stored as their three-byte encodings rather than replaced, so every String keeps its key.
+public class TitleDictionary {
+    private final byte[] arena;
+    // Title i is arena[offsets[i], offsets[i + 1])
+    private final int[] offsets;
+    private final long[] values;
+
+    private TitleDictionary(byte[] arena, int[] offsets, long[] values) {
+        this.arena = arena;
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public long bytes() {
+        return arena.length + 4L * offsets.length + 8L * values.length;
+    }
+
+    // Position of title in sorted order, or -1
+    public int indexOf(CharSequence title) {
+        int lo = 0;
+        int hi = values.length - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(title, mid);
+            if(c == 0) {
+                return mid;
+            } else if(c < 0) {
+                hi = mid - 1;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    public long get(CharSequence title, long missing) {
+        int index = indexOf(title);
+        return index < 0 ? missing : values[index];
+    }
+
+    public String title(int index) {
+        return decode(arena, offsets[index], offsets[index + 1]);
+    }
+
+    public long value(int index) {
+        return values[index];
+    }
+
+    // Code point order of title against entry
+    private int compare(CharSequence title, int entry) {
+        int pos = offsets[entry];
+        int end = offsets[entry + 1];
+        int i = 0;
+        int n = title.length();
+        while(i < n && pos < end) {
+            int cp = Character.codePointAt(title, i);
+            i += Character.charCount(cp);
+            int b = arena[pos] & 0xff;
+            int stored;
+            if(b < 0x80) {
+                stored = b;
+                pos += 1;
+            } else if(b < 0xe0) {
+                stored = (b & 0x1f) << 6 | (arena[pos + 1] & 0x3f);
+                pos += 2;
+            } else if(b < 0xf0) {
+                stored = (b & 0x0f) << 12 | (arena[pos + 1] & 0x3f) << 6 | (arena[pos + 2] & 0x3f);
+                pos += 3;
+            } else {
+                stored = (b & 0x07) << 18 | (arena[pos + 1] & 0x3f) << 12 | (arena[pos + 2] & 0x3f) << 6
+                        | (arena[pos + 3] & 0x3f);
+                pos += 4;
+            }
+            if(cp != stored) {
+                return cp < stored ? -1 : 1;
+            }
+        }
+        return (i < n ? 1 : 0) - (pos < end ? 1 : 0);
+    }
+
+    private static String decode(byte[] bytes, int from, int to) {
+        StringBuilder builder = new StringBuilder(to - from);
+        int pos = from;
+        while(pos < to) {
+            int b = bytes[pos] & 0xff;
+            int cp;
+            if(b < 0x80) {
+                cp = b;
+                pos += 1;
+            } else if(b < 0xe0) {
+                cp = (b & 0x1f) << 6 | (bytes[pos + 1] & 0x3f);
+                pos += 2;
+            } else if(b < 0xf0) {
+                cp = (b & 0x0f) << 12 | (bytes[pos + 1] & 0x3f) << 6 | (bytes[pos + 2] & 0x3f);
+                pos += 3;
+            } else {
+                cp = (b & 0x07) << 18 | (bytes[pos + 1] & 0x3f) << 12 | (bytes[pos + 2] & 0x3f) << 6
+                        | (bytes[pos + 3] & 0x3f);
+                pos += 4;
+            }
+            builder.appendCodePoint(cp);
+        }
+        return builder.toString();
+    }
+
+    // Collects entries in any order; a title put twice keeps its last value, as with (into {} ...)
+    public static class Builder {
+        private byte[] arena = new byte[1 << 16];
+        private int arenaLength;
+        private int[] starts = new int[1024];
+        private long[] values = new long[1024];
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        public void put(CharSequence title, long value) {
+            if(size + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * starts.length);
+                values = Arrays.copyOf(values, 2 * values.length);
+            }
+            starts[size] = arenaLength;
+            for(int i = 0; i < title.length(); ) {
+                int cp = Character.codePointAt(title, i);
+                i += Character.charCount(cp);
+                encode(cp);
+            }
+            values[size] = value;
+            size++;
+            starts[size] = arenaLength;
+        }
+
+        private void encode(int cp) {
+            if(arenaLength + 4 > arena.length) {
+                if(arena.length == Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Title dictionary is full at " + size + " titles");
+                }
+                arena = Arrays.copyOf(arena, (int) Math.min(Integer.MAX_VALUE - 8, 2L * arena.length));
+            }
+            if(cp < 0x80) {
+                arena[arenaLength++] = (byte) cp;
+            } else if(cp < 0x800) {
+                arena[arenaLength++] = (byte) (0xc0 | cp >>> 6);
+                arena[arenaLength++] = (byte) (0x80 | cp & 0x3f);
+            } else if(cp < 0x10000) {
+                arena[arenaLength++] = (byte) (0xe0 | cp >>> 12);
+                arena[arenaLength++] = (byte) (0x80 | cp >>> 6 & 0x3f);
+                arena[arenaLength++] = (byte) (0x80 | cp & 0x3f);
+            } else {
+                arena[arenaLength++] = (byte) (0xf0 | cp >>> 18);
+                arena[arenaLength++] = (byte) (0x80 | cp >>> 12 & 0x3f);
+                arena[arenaLength++] = (byte) (0x80 | cp >>> 6 & 0x3f);
+                arena[arenaLength++] = (byte) (0x80 | cp & 0x3f);
+            }
+        }
+
+        // Title of the index-th put
+        public String key(int index) {
+            return decode(arena, starts[index], starts[index + 1]);
+        }
+
+        public void setValue(int index, long value) {
+            values[index] = value;
+        }
+
+        public TitleDictionary build() {
+            int[] order = new int[size];
+            for(int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            sort(order, 0, size - 1);
+
+            // Equal titles sort by when they were put, so the last of each run wins
+            int kept = 0;
+            for(int i = 0; i < size; i++) {
+                if(i + 1 == size || compareBytes(order[i], order[i + 1]) != 0) {
+                    order[kept++] = order[i];
+                }
+            }
+
+            int bytes = 0;
+            for(int i = 0; i < kept; i++) {
+                bytes += starts[order[i] + 1] - starts[order[i]];
+            }
+            byte[] sortedArena = new byte[bytes];
+            int[] offsets = new int[kept + 1];
+            long[] sortedValues = new long[kept];
+            for(int i = 0; i < kept; i++) {
+                int entry = order[i];
+                int length = starts[entry + 1] - starts[entry];
+                System.arraycopy(arena, starts[entry], sortedArena, offsets[i], length);
+                offsets[i + 1] = offsets[i] + length;
+                sortedValues[i] = values[entry];
+            }
+            return new TitleDictionary(sortedArena, offsets, sortedValues);
+        }
+
+        // Unsigned byte order of two entries' titles
+        private int compareBytes(int a, int b) {
+            int i = starts[a];
+            int aEnd = starts[a + 1];
+            int j = starts[b];
+            int bEnd = starts[b + 1];
+            while(i < aEnd && j < bEnd) {
+                int c = (arena[i++] & 0xff) - (arena[j++] & 0xff);
+                if(c != 0) {
+                    return c;
+                }
+            }
+            return (aEnd - i) - (bEnd - j);
+        }
+
+        private int compareEntries(int a, int b) {
+            int c = compareBytes(a, b);
+            return c != 0 ? c : (a < b ? -1 : (a == b ? 0 : 1));
+        }
+
+        private void sort(int[] order, int lo, int hi) {
+            while(hi - lo > 16) {
+                int pivot = medianOfThree(order[lo], order[(lo + hi) >>> 1], order[hi]);
+                int i = lo;
+                int j = hi;
+                while(i <= j) {
+                    while(compareEntries(order[i], pivot) < 0) {
+                        i++;
+                    }
+                    while(compareEntries(order[j], pivot) > 0) {
+                        j--;
+                    }
+                    if(i <= j) {
+                        int tmp = order[i];
+                        order[i++] = order[j];
+                        order[j--] = tmp;
+                    }
+                }
+                // Recurse into the smaller side to bound the stack
+                if(j - lo < hi - i) {
+                    sort(order, lo, j);
+                    lo = i;
+                } else {
+                    sort(order, i, hi);
+                    hi = j;
+                }
+            }
+            for(int i = lo + 1; i <= hi; i++) {
+                int entry = order[i];
+                int j = i - 1;
+                while(j >= lo && compareEntries(order[j], entry) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = entry;
+            }
+        }
+
+        private int medianOfThree(int a, int b, int c) {
+            if(compareEntries(a, b) < 0) {
+                return compareEntries(b, c) < 0 ? b : (compareEntries(a, c) < 0 ? c : a);
+            }
+            return compareEntries(a, c) < 0 ? a : (compareEntries(b, c) < 0 ? c : b);
+        }
+    }
+}
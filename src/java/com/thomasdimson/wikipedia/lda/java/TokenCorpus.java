@@ -0,0 +1,277 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// The cleaned dump for LDA with every article's words stored as ids into one vocabulary, instead of space-joined
+// text that each reader splits and hashes again. Documents are delimited TokenDocument messages (see
+// wikipedia.proto), block-compressed by the usual suffix rule. The vocabulary is kept in corpus +
+// VOCABULARY_SUFFIX, one "id word count" line per word, so MarkupCleaner.readWhitelist(file, 1) also reads it.
+// Ids go by first appearance, the order a MALLET Alphabet fed the text corpus gives, so both formats load into
+// the same instances.
+public class TokenCorpus {
+    public static final String VOCABULARY_SUFFIX = ".vocab";
+
+    private static final int ID_FIELD = 1;
+    private static final int TITLE_FIELD = 2;
+    private static final int TOKENS_FIELD = 3;
+
+    public static String vocabularyFile(String corpusFile) {
+        return corpusFile + VOCABULARY_SUFFIX;
+    }
+
+    // Whether filename is a token corpus rather than a structured dump
+    public static boolean isTokenCorpus(String filename) {
+        return new File(vocabularyFile(filename)).exists();
+    }
+
+    public static class Document {
+        public final long id;
+        public final String title;
+        // Only the first length are the document's
+        public final int[] tokens;
+        public final int length;
+
+        public Document(long id, String title, int[] tokens, int length) {
+            this.id = id;
+            this.title = title;
+            this.tokens = tokens;
+            this.length = length;
+        }
+    }
+
+    // Words by id
+    public static String[] readVocabulary(String corpusFile) throws IOException {
+        List<String> words = Lists.newArrayList();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(vocabularyFile(corpusFile)),
+                Charset.forName("UTF-8")));
+        try {
+            String line;
+            while((line = r.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                int id = Integer.parseInt(line.substring(0, tab));
+                if(id != words.size()) {
+                    throw new IOException("Vocabulary of " + corpusFile + " has id " + id + " on line " + words.size());
+                }
+                words.add(line.substring(tab + 1, line.indexOf('\t', tab + 1)));
+            }
+        } finally {
+            r.close();
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    // An alphabet with every word at its id
+    public static Alphabet readAlphabet(String corpusFile) throws IOException {
+        String[] words = readVocabulary(corpusFile);
+        Alphabet alphabet = new Alphabet(words.length);
+        for(String word : words) {
+            alphabet.lookupIndex(word, true);
+        }
+        return alphabet;
+    }
+
+    public static Instance malletInstance(Alphabet alphabet, Document document) {
+        // As LDAModel.malletInstanceFromDumpPage does for the text
+        String target = Double.toString(document.id);
+        return new Instance(new FeatureSequence(alphabet, document.tokens, document.length), target,
+                document.title, document.title);
+    }
+
+    // The instances LDAModel.INSTANCE_PIPE makes from the text corpus
+    public static InstanceList readInstances(String corpusFile) throws IOException {
+        Alphabet alphabet = readAlphabet(corpusFile);
+        InstanceList instances = new InstanceList(new Noop(alphabet, null));
+        Iterator<Document> it = iterator(corpusFile);
+        while(it.hasNext()) {
+            instances.add(malletInstance(alphabet, it.next()));
+        }
+        return instances;
+    }
+
+    public static Iterator<Document> iterator(String corpusFile) throws IOException {
+        final InputStream in = BlockCompressedFile.newInputStream(corpusFile);
+        final CodedInputStream coded = CodedInputStream.newInstance(in);
+        return new Iterator<Document>() {
+            Document next = read();
+
+            private Document read() {
+                try {
+                    if(coded.isAtEnd()) {
+                        in.close();
+                        return null;
+                    }
+                    coded.resetSizeCounter();
+                    int limit = coded.pushLimit(coded.readRawVarint32());
+                    Document document = readDocument(coded);
+                    coded.popLimit(limit);
+                    return document;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Document next() {
+                if(next == null) {
+                    throw new NoSuchElementException();
+                }
+                Document ret = next;
+                next = read();
+                return ret;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // One TokenDocument up to the current limit, without the boxed list its generated parser builds
+    private static Document readDocument(CodedInputStream coded) throws IOException {
+        long id = -1;
+        String title = null;
+        int[] tokens = new int[64];
+        int length = 0;
+        int tag;
+        while((tag = coded.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            int wireType = tag & 7;
+            if(field == ID_FIELD) {
+                id = coded.readUInt64();
+            } else if(field == TITLE_FIELD) {
+                title = coded.readString();
+            } else if(field == TOKENS_FIELD && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                int limit = coded.pushLimit(coded.readRawVarint32());
+                while(coded.getBytesUntilLimit() > 0) {
+                    if(length == tokens.length) {
+                        tokens = Arrays.copyOf(tokens, 2 * length);
+                    }
+                    tokens[length++] = coded.readUInt32();
+                }
+                coded.popLimit(limit);
+            } else if(field == TOKENS_FIELD) {
+                if(length == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, 2 * length);
+                }
+                tokens[length++] = coded.readUInt32();
+            } else if(!coded.skipField(tag)) {
+                break;
+            }
+        }
+        if(id < 0 || title == null) {
+            throw new InvalidProtocolBufferException("TokenDocument is missing its id or title");
+        }
+        return new Document(id, title, Arrays.copyOf(tokens, length), length);
+    }
+
+    // Writes documents whose tokens are indices into inputWords; each word gets its corpus id when it first
+    // appears, and close writes the vocabulary of the words that did with their counts
+    public static class Writer implements Closeable {
+        private final String corpusFile;
+        private final OutputStream out;
+        private final CodedOutputStream coded;
+        private final String[] inputWords;
+        // Input index -> corpus id, or -1 before the word appears
+        private final int[] ids;
+        // Corpus id -> input index, and how many times it appeared
+        private final int[] words;
+        private final long[] counts;
+        private int vocabularySize;
+        private long documents;
+        private long tokens;
+
+        public Writer(String corpusFile, String[] inputWords) throws IOException {
+            this.corpusFile = corpusFile;
+            this.out = BlockCompressedFile.newOutputStream(corpusFile);
+            this.coded = CodedOutputStream.newInstance(out);
+            this.inputWords = inputWords;
+            this.ids = new int[inputWords.length];
+            Arrays.fill(ids, -1);
+            this.words = new int[inputWords.length];
+            this.counts = new long[inputWords.length];
+        }
+
+        public void write(Document document) throws IOException {
+            int[] corpusIds = new int[document.length];
+            int packedSize = 0;
+            for(int i = 0; i < document.length; i++) {
+                int word = document.tokens[i];
+                int id = ids[word];
+                if(id < 0) {
+                    id = vocabularySize++;
+                    ids[word] = id;
+                    words[id] = word;
+                }
+                counts[id]++;
+                corpusIds[i] = id;
+                packedSize += CodedOutputStream.computeUInt32SizeNoTag(id);
+            }
+
+            int size = CodedOutputStream.computeUInt64Size(ID_FIELD, document.id)
+                    + CodedOutputStream.computeStringSize(TITLE_FIELD, document.title);
+            if(document.length > 0) {
+                size += CodedOutputStream.computeTagSize(TOKENS_FIELD)
+                        + CodedOutputStream.computeRawVarint32Size(packedSize) + packedSize;
+            }
+            coded.writeRawVarint32(size);
+            coded.writeUInt64(ID_FIELD, document.id);
+            coded.writeString(TITLE_FIELD, document.title);
+            if(document.length > 0) {
+                coded.writeTag(TOKENS_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                coded.writeRawVarint32(packedSize);
+                for(int id : corpusIds) {
+                    coded.writeUInt32NoTag(id);
+                }
+            }
+            documents++;
+            tokens += document.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                coded.flush();
+            } finally {
+                out.close();
+            }
+            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(vocabularyFile(corpusFile)), Charset.forName("UTF-8")));
+            try {
+                for(int id = 0; id < vocabularySize; id++) {
+                    w.write(Integer.toString(id));
+                    w.write("\t");
+                    w.write(inputWords[words[id]]);
+                    w.write("\t");
+                    w.write(Long.toString(counts[id]));
+                    w.write("\n");
+                }
+            } finally {
+                w.close();
+            }
+            System.out.println("Token corpus: " + documents + " documents, " + tokens + " tokens, "
+                    + vocabularySize + " words");
+        }
+    }
+}
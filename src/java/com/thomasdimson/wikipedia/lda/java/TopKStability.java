@@ -0,0 +1,152 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank.BETA;
+
+// Stopping rule for a topic whose only consumer is its top k list (topByTSPR and friends show at most 100).
+// Stops once the top k nodes, in order, have not changed for stableIterations iterations and the distance
+// left to the fixed point is too small to reorder them. For Jacobi iteration that distance is at most
+// difference * BETA / (1 - BETA) in L1, and no two ranks can move relative to each other by more than that,
+// so every gap between consecutive top k ranks (and below the k-th) must exceed it. Gauss-Seidel and adaptive
+// deltas make the bound an estimate rather than a guarantee.
+public class TopKStability implements RankSolver.IterationListener {
+    public final int k;
+    public final int stableIterations;
+    // Only nodes with this infobox type count towards the top k, when not null
+    public final String infoboxType;
+
+    private final boolean[] eligible;
+    private int[] lastTop;
+    private int stableFor;
+
+    public TopKStability(int k, int stableIterations, String infoboxType) {
+        this(k, stableIterations, infoboxType, null);
+    }
+
+    private TopKStability(int k, int stableIterations, String infoboxType, boolean[] eligible) {
+        if(k <= 0) {
+            throw new IllegalArgumentException("k must be positive, got " + k);
+        }
+        this.k = k;
+        this.stableIterations = stableIterations;
+        this.infoboxType = infoboxType;
+        this.eligible = eligible;
+    }
+
+    // This rule with infoboxType resolved against nodes, whose linearIds the rank vectors will use
+    public TopKStability forNodes(List<IntermediateTSPRNode> nodes) {
+        if(infoboxType == null) {
+            return this;
+        }
+        boolean[] mask = new boolean[nodes.size()];
+        for(IntermediateTSPRNode node : nodes) {
+            mask[node.linearId] = infoboxType.equals(node.infoboxType);
+        }
+        return new TopKStability(k, stableIterations, infoboxType, mask);
+    }
+
+    // A copy with no history, for one solve
+    public TopKStability fresh() {
+        return new TopKStability(k, stableIterations, infoboxType, eligible);
+    }
+
+    @Override
+    public boolean iterated(int iteration, double[] rank, double difference) {
+        // One past k, so the gap below the k-th node is known too
+        int[] top = top(rank, k + 1);
+        int shown = Math.min(k, top.length);
+        if(lastTop != null && lastTop.length == shown && equalPrefix(lastTop, top, shown)) {
+            stableFor++;
+        } else {
+            lastTop = Arrays.copyOf(top, shown);
+            stableFor = 0;
+        }
+        if(stableFor < stableIterations) {
+            return false;
+        }
+
+        double bound = difference * BETA / (1.0 - BETA);
+        for(int i = 1; i < top.length; i++) {
+            if(rank[top[i - 1]] - rank[top[i]] <= bound) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalPrefix(int[] a, int[] b, int length) {
+        for(int i = 0; i < length; i++) {
+            if(a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // linearIds of the n highest eligible ranks, highest first (ties to the lower id)
+    private int[] top(double[] rank, int n) {
+        int[] heap = new int[n];
+        int size = 0;
+        for(int i = 0; i < rank.length; i++) {
+            if(eligible != null && !eligible[i]) {
+                continue;
+            }
+            if(size < n) {
+                // Sift up
+                int pos = size++;
+                while(pos > 0) {
+                    int parent = (pos - 1) / 2;
+                    if(!below(rank, i, heap[parent])) {
+                        break;
+                    }
+                    heap[pos] = heap[parent];
+                    pos = parent;
+                }
+                heap[pos] = i;
+            } else if(below(rank, heap[0], i)) {
+                siftDown(rank, heap, size, i);
+            }
+        }
+
+        // Pop the smallest to the back so the result comes out highest first
+        for(int end = size - 1; end > 0; end--) {
+            int smallest = heap[0];
+            siftDown(rank, heap, end, heap[end]);
+            heap[end] = smallest;
+        }
+        return size == n ? heap : Arrays.copyOf(heap, size);
+    }
+
+    // Whether a ranks below b
+    private static boolean below(double[] rank, int a, int b) {
+        return rank[a] < rank[b] || (rank[a] == rank[b] && a > b);
+    }
+
+    // Places node at the root of the min-heap heap[0..size) and restores the heap property
+    private static void siftDown(double[] rank, int[] heap, int size, int node) {
+        int pos = 0;
+        while(true) {
+            int child = 2 * pos + 1;
+            if(child >= size) {
+                break;
+            }
+            if(child + 1 < size && below(rank, heap[child + 1], heap[child])) {
+                child++;
+            }
+            if(!below(rank, heap[child], node)) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = node;
+    }
+
+    @Override
+    public String toString() {
+        return "top " + k + (infoboxType == null ? "" : " " + infoboxType) + " stable for " + stableIterations
+                + " iterations";
+    }
+}
@@ -0,0 +1,316 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.thomasdimson.wikipedia.Data;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Topic proportions for new or changed articles under a trained ParallelTopicModel, without retraining it. The
+// parts of the model a TopicInferencer samples against are cached next to the model file, so later runs skip
+// reading the training data; every thread gets its own TopicInferencer over those shared, read-only counts.
+// Output is the document topic file TopicSensitivePageRank.readLDAMap reads.
+public class TopicInference {
+    public static final String CACHE_SUFFIX = ".inferencer";
+
+    // MALLET's infer-topics defaults
+    public static final int NUM_ITERATIONS = 100;
+    public static final int THINNING = 10;
+    public static final int BURN_IN = 10;
+
+    private final Alphabet alphabet;
+    private final int[][] typeTopicCounts;
+    private final int[] tokensPerTopic;
+    private final double[] alpha;
+    private final double beta;
+    private final double betaSum;
+
+    private final ThreadLocal<TopicInferencer> inferencers = new ThreadLocal<TopicInferencer>() {
+        @Override
+        protected TopicInferencer initialValue() {
+            return new TopicInferencer(typeTopicCounts, tokensPerTopic, alphabet, alpha, beta, betaSum);
+        }
+    };
+
+    public TopicInference(Alphabet alphabet, int[][] typeTopicCounts, int[] tokensPerTopic, double[] alpha,
+                          double beta, double betaSum) {
+        this.alphabet = alphabet;
+        this.typeTopicCounts = typeTopicCounts;
+        this.tokensPerTopic = tokensPerTopic;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.betaSum = betaSum;
+    }
+
+    public TopicInference(ParallelTopicModel model) {
+        this(model.getAlphabet(), model.typeTopicCounts, model.tokensPerTopic, model.alpha, model.beta,
+                model.betaSum);
+    }
+
+    public static String cacheFile(String modelFile) {
+        return modelFile + CACHE_SUFFIX;
+    }
+
+    // Inference for a model saved by ParallelTopicModel.write, from its cache unless the model is newer or the
+    // cache cannot be read, in which case it is rebuilt from the model
+    public static TopicInference forModel(String modelFile) throws IOException {
+        long start = System.nanoTime();
+        File cache = new File(cacheFile(modelFile));
+        TopicInference inference = null;
+        if(cache.exists() && cache.lastModified() >= new File(modelFile).lastModified()) {
+            try {
+                inference = readCache(cache);
+            } catch (IOException e) {
+                System.err.println("Topic inference: ignoring unreadable cache " + cache + ": " + e);
+            }
+        }
+        if(inference == null) {
+            ParallelTopicModel model;
+            try {
+                model = ParallelTopicModel.read(new File(modelFile));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Could not read topic model " + modelFile, e);
+            }
+            inference = new TopicInference(model);
+            inference.writeCache(cache);
+        }
+        System.err.println("Topic inference: " + inference.numTopics() + " topics, " + inference.alphabet.size()
+                + " words in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return inference;
+    }
+
+    private static TopicInference readCache(File cache) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(cache)));
+        try {
+            return new TopicInference((Alphabet) in.readObject(), (int[][]) in.readObject(),
+                    (int[]) in.readObject(), (double[]) in.readObject(), in.readDouble(), in.readDouble());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Bad inferencer cache " + cache, e);
+        } catch (ClassCastException e) {
+            throw new IOException("Bad inferencer cache " + cache, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Written under a temporary name and renamed over the old cache, so a reader never sees a partial one
+    private void writeCache(File cache) throws IOException {
+        File temp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeObject(alphabet);
+                out.writeObject(typeTopicCounts);
+                out.writeObject(tokensPerTopic);
+                out.writeObject(alpha);
+                out.writeDouble(beta);
+                out.writeDouble(betaSum);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(temp.exists() && !temp.delete()) {
+                System.err.println("Topic inference: could not remove " + temp);
+            }
+        }
+    }
+
+    public int numTopics() {
+        return tokensPerTopic.length;
+    }
+
+    // Topic proportions of the first length model word indices, seeded so a document gets the same answer on
+    // any thread
+    public double[] infer(int[] features, int length, int seed) {
+        TopicInferencer inferencer = inferencers.get();
+        inferencer.setRandomSeed(seed);
+        Instance instance = new Instance(new FeatureSequence(alphabet, features, length), null, null, null);
+        return inferencer.getSampledDistribution(instance, NUM_ITERATIONS, THINNING, BURN_IN);
+    }
+
+    // Topic proportions of a cleaned page, split as LDAModel.INSTANCE_PIPE splits it; words the model has not
+    // seen are left out
+    public double[] infer(Data.DumpPage page) {
+        String text = page.getText();
+        int[] features = new int[64];
+        int length = 0;
+        int from = 0;
+        while(from < text.length()) {
+            int to = text.indexOf(' ', from);
+            if(to < 0) {
+                to = text.length();
+            }
+            if(to > from) {
+                int index = alphabet.lookupIndex(text.substring(from, to), false);
+                if(index >= 0) {
+                    if(length == features.length) {
+                        features = Arrays.copyOf(features, 2 * length);
+                    }
+                    features[length++] = index;
+                }
+            }
+            from = to + 1;
+        }
+        return infer(features, length, (int) page.getId());
+    }
+
+    // Corpus word id -> model word index, or -1 for words the model has not seen
+    private int[] corpusIndices(String corpusFile) throws IOException {
+        String[] vocabulary = TokenCorpus.readVocabulary(corpusFile);
+        int[] indices = new int[vocabulary.length];
+        for(int i = 0; i < vocabulary.length; i++) {
+            indices[i] = alphabet.lookupIndex(vocabulary[i], false);
+        }
+        return indices;
+    }
+
+    private static class Inferred {
+        final String title;
+        final double[] topics;
+
+        Inferred(String title, double[] topics) {
+            this.title = title;
+            this.topics = topics;
+        }
+    }
+
+    // Infers every article of deltaFile, a cleaned structured dump or a TokenCorpus of new and changed pages, on
+    // workers threads. With baseFile null, outputFile gets just their rows, in dump order; otherwise it is
+    // baseFile with each inferred article's row replaced, and rows for articles baseFile lacks added at the end.
+    public void inferDump(String deltaFile, String outputFile, String baseFile, int workers, int capacity)
+            throws IOException {
+        if(baseFile != null && new File(baseFile).getCanonicalFile().equals(new File(outputFile).getCanonicalFile())) {
+            throw new IllegalArgumentException("Cannot merge into the base file " + baseFile + " in place");
+        }
+        long start = System.nanoTime();
+        final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile),
+                Charset.forName("UTF-8")));
+        try {
+            // Rows are held for the merge, or written as they come without one
+            final Map<String, double[]> inferred = baseFile == null ? null : Maps.<String, double[]>newLinkedHashMap();
+            final int[] num = new int[1];
+            Function<Inferred, Void> sink = new Function<Inferred, Void>() {
+                @Override
+                public Void apply(Inferred row) {
+                    if(inferred != null) {
+                        inferred.put(row.title, row.topics);
+                    } else {
+                        try {
+                            writeTopics(w, num[0]++, row.title, row.topics);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return null;
+                }
+            };
+
+            OrderedParallelStage<?, ?> stage;
+            if(TokenCorpus.isTokenCorpus(deltaFile)) {
+                final int[] indices = corpusIndices(deltaFile);
+                OrderedParallelStage<TokenCorpus.Document, Inferred> infer =
+                        new OrderedParallelStage<TokenCorpus.Document, Inferred>("infer",
+                                new Function<TokenCorpus.Document, Inferred>() {
+                    @Override
+                    public Inferred apply(TokenCorpus.Document document) {
+                        int[] features = new int[document.length];
+                        int length = 0;
+                        for(int i = 0; i < document.length; i++) {
+                            int index = indices[document.tokens[i]];
+                            if(index >= 0) {
+                                features[length++] = index;
+                            }
+                        }
+                        return new Inferred(document.title, infer(features, length, (int) document.id));
+                    }
+                }, workers, capacity, sink);
+                LDAModel.feed(TokenCorpus.iterator(deltaFile), infer);
+                stage = infer;
+            } else {
+                OrderedParallelStage<Data.DumpPage, Inferred> infer =
+                        new OrderedParallelStage<Data.DumpPage, Inferred>("infer",
+                                new Function<Data.DumpPage, Inferred>() {
+                    @Override
+                    public Inferred apply(Data.DumpPage page) {
+                        return page.hasRedirect() ? null : new Inferred(page.getTitle(), infer(page));
+                    }
+                }, workers, capacity, sink);
+                LDAModel.feed(WikipediaHandler.newStructuredDumpIterator(deltaFile), infer);
+                stage = infer;
+            }
+            System.err.println("Topic inference: " + stage + ", " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            if(inferred != null) {
+                merge(baseFile, inferred, w);
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    // Copies baseFile to w, swapping in the inferred rows by title as readLDAMap keys them
+    private void merge(String baseFile, Map<String, double[]> inferred, Writer w) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(baseFile),
+                Charset.forName("UTF-8")));
+        Splitter splitter = Splitter.on("\t").omitEmptyStrings().trimResults();
+        int num = 0;
+        int replaced = 0;
+        try {
+            String line;
+            while((line = r.readLine()) != null) {
+                if(line.startsWith("#")) {
+                    w.write(line);
+                    w.write("\n");
+                    continue;
+                }
+                List<String> split = splitter.splitToList(line);
+                double[] topics = inferred.remove(split.get(1));
+                if(topics == null) {
+                    w.write(line);
+                    w.write("\n");
+                } else {
+                    writeTopics(w, num, split.get(1), topics);
+                    replaced++;
+                }
+                num++;
+            }
+        } finally {
+            r.close();
+        }
+        for(Map.Entry<String, double[]> row : inferred.entrySet()) {
+            writeTopics(w, num++, row.getKey(), row.getValue());
+        }
+        System.err.println("Topic inference: replaced " + replaced + " and added " + inferred.size() + " of "
+                + num + " rows in " + baseFile);
+    }
+
+    // A line as LDAModel.writeAverageTokenProbability writes them
+    private static void writeTopics(Writer w, int num, String title, double[] topics) throws IOException {
+        w.write(Integer.toString(num));
+        w.write("\t");
+        w.write(title);
+        for(int i = 0; i < topics.length; i++) {
+            w.write("\t");
+            w.write(Integer.toString(i));
+            w.write("\t");
+            w.write(Double.toString(topics[i]));
+        }
+        w.write("\n");
+    }
+}
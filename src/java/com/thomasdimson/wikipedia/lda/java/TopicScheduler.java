@@ -0,0 +1,194 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs rank jobs under a memory budget instead of a fixed thread count. Concurrency is the number of the
+// largest jobs that fit in the budget, and jobs start slowest-first (by the timings in historyFile from an
+// earlier run) so the long topics are not left running alone at the end.
+public class TopicScheduler {
+    public static final double DEFAULT_BUDGET_FRACTION = 0.8;
+    // How often the heap is sampled for the peak reported in progress lines
+    private static final long HEAP_SAMPLE_MILLIS = 100;
+
+    private static class Job implements Runnable, Comparable<Job> {
+        final String key;
+        final Runnable runnable;
+        final int order;
+        final long expectedMillis;
+        long millis;
+        Throwable failure;
+
+        Job(String key, Runnable runnable, int order, long expectedMillis) {
+            this.key = key;
+            this.runnable = runnable;
+            this.order = order;
+            this.expectedMillis = expectedMillis;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            runnable.run();
+            millis = (System.nanoTime() - start) / 1000000;
+        }
+
+        // Jobs with no history first, in the order added, then the slowest known ones
+        @Override
+        public int compareTo(Job other) {
+            if(expectedMillis != other.expectedMillis) {
+                if(expectedMillis < 0 || other.expectedMillis < 0) {
+                    return expectedMillis < 0 ? -1 : 1;
+                }
+                return expectedMillis > other.expectedMillis ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    private final RankBufferPool buffers;
+    private final String historyFile;
+    private final Map<String, Long> history;
+    private final List<Job> jobs = Lists.newArrayList();
+    private final int concurrency;
+
+    private int done;
+    private int failed;
+    private long peakHeapBytes;
+    private long startNanos;
+
+    // jobBytes is the most a single job holds at once. A memoryBudgetBytes <= 0 means DEFAULT_BUDGET_FRACTION of
+    // the heap that is still free. historyFile may be null or not exist yet; it is rewritten when run finishes.
+    public TopicScheduler(RankBufferPool buffers, long jobBytes, long memoryBudgetBytes, int maxConcurrent,
+                          String historyFile) throws IOException {
+        if(memoryBudgetBytes <= 0) {
+            Runtime runtime = Runtime.getRuntime();
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            memoryBudgetBytes = (long) (DEFAULT_BUDGET_FRACTION * (runtime.maxMemory() - used));
+        }
+        this.buffers = buffers;
+        this.historyFile = historyFile;
+        this.history = readHistory(historyFile);
+        this.concurrency = (int) Math.max(1, Math.min(maxConcurrent, memoryBudgetBytes / Math.max(1, jobBytes)));
+        System.out.println("Scheduler: budget " + (memoryBudgetBytes >> 20) + " MB, " + (jobBytes >> 20)
+                + " MB per job, " + concurrency + " concurrent jobs"
+                + (history.isEmpty() ? "" : ", " + history.size() + " timings from " + historyFile));
+    }
+
+    public int concurrency() {
+        return concurrency;
+    }
+
+    // key names the job in the history file, e.g. "lspr-12"
+    public void add(String key, Runnable runnable) {
+        Long expected = history.get(key);
+        jobs.add(new Job(key, runnable, jobs.size(), expected == null ? -1 : expected));
+    }
+
+    public void run() throws InterruptedException, IOException {
+        PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>(Math.max(1, jobs.size()));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                queue) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                finished((Job) r, t);
+            }
+        };
+        // Sampled on a timer, since the heap peaks while jobs iterate rather than when one finishes
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sampleHeap();
+            }
+        }, 0, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            // Queue everything before any thread starts so the first jobs taken are the highest priority ones
+            queue.addAll(jobs);
+            startNanos = System.nanoTime();
+            executor.prestartAllCoreThreads();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } finally {
+            sampler.shutdownNow();
+        }
+        writeHistory();
+
+        for(Job job : jobs) {
+            if(job.failure != null) {
+                throw new IOException(failed + " of " + jobs.size() + " rank jobs failed, first " + job.key,
+                        job.failure);
+            }
+        }
+    }
+
+    private synchronized void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        peakHeapBytes = Math.max(peakHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    private synchronized void finished(Job job, Throwable failure) {
+        done++;
+        sampleHeap();
+        if(failure != null) {
+            job.failure = failure;
+            failed++;
+            System.err.println("Scheduler: " + job.key + " failed: " + failure);
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        long etaSeconds = elapsed / done * (jobs.size() - done) / 1000000000L;
+        System.out.println("Scheduler: " + done + "/" + jobs.size() + " done (" + job.key
+                + (failure == null ? " in " + job.millis + " ms" : " failed") + "), ETA " + (etaSeconds / 60) + "m"
+                + (etaSeconds % 60) + "s, peak heap " + (peakHeapBytes >> 20) + " MB, " + buffers);
+    }
+
+    private static Map<String, Long> readHistory(String historyFile) throws IOException {
+        Map<String, Long> history = Maps.newHashMap();
+        if(historyFile == null || !new File(historyFile).exists()) {
+            return history;
+        }
+        for(String line : Files.readLines(new File(historyFile), Charsets.UTF_8)) {
+            Iterator<String> fields = Splitter.on('\t').trimResults().split(line).iterator();
+            String key = fields.next();
+            if(key.isEmpty() || !fields.hasNext()) {
+                continue;
+            }
+            history.put(key, Long.parseLong(fields.next()));
+        }
+        return history;
+    }
+
+    // Failed jobs keep their earlier timing, if any, rather than recording how long they took to fail
+    private void writeHistory() throws IOException {
+        if(historyFile == null) {
+            return;
+        }
+        PrintWriter writer = new PrintWriter(historyFile, "UTF-8");
+        try {
+            for(Job job : jobs) {
+                if(job.failure == null) {
+                    writer.println(job.key + "\t" + job.millis);
+                } else if(history.containsKey(job.key)) {
+                    writer.println(job.key + "\t" + history.get(job.key));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
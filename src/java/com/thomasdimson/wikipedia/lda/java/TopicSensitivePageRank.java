@@ -13,12 +13,18 @@ import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 public class TopicSensitivePageRank {
     public static double BETA = 0.85;
+    // Prior on following links in the LSPR walk
+    static final double LSPR_FOLLOW_PRIOR = 0.15;
 
     private static double chiSquareScore(int index, Data.TSPRGraphNode node) {
         double observed = node.getTspr(index);
@@ -186,14 +192,26 @@ public class TopicSensitivePageRank {
         return ret;
     }
 
+    // filename may also be the prefix of a ShardedDumpFile, or a BlockCompressedFile
     public static Iterator<Data.TSPRGraphNode> newTSPRGraphNodeIterator(String filename) throws IOException {
-        final InputStream inputStream = new BufferedInputStream(new FileInputStream(filename));
+        if(ShardedDumpFile.isSharded(filename)) {
+            return ShardedDumpFile.open(filename).iterator(Data.TSPRGraphNode.getDefaultInstance());
+        }
+        final InputStream inputStream = BlockCompressedFile.newInputStream(filename);
 
         try {
             return new Iterator<Data.TSPRGraphNode>() {
-                Data.TSPRGraphNode nextMessage = Data.TSPRGraphNode.parseDelimitedFrom(inputStream);
+                Data.TSPRGraphNode nextMessage = read();
                 int count = 0;
 
+                private Data.TSPRGraphNode read() throws IOException {
+                    Data.TSPRGraphNode message = Data.TSPRGraphNode.parseDelimitedFrom(inputStream);
+                    if(message == null) {
+                        inputStream.close();
+                    }
+                    return message;
+                }
+
                 @Override
                 public boolean hasNext() {
                     return nextMessage != null;
@@ -201,9 +219,12 @@ public class TopicSensitivePageRank {
 
                 @Override
                 public Data.TSPRGraphNode next() {
+                    if(nextMessage == null) {
+                        throw new NoSuchElementException();
+                    }
                     Data.TSPRGraphNode ret = nextMessage;
                     try {
-                        nextMessage = Data.TSPRGraphNode.parseDelimitedFrom(inputStream);
+                        nextMessage = read();
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
@@ -224,6 +245,89 @@ public class TopicSensitivePageRank {
         }
     }
 
+    // The stream IntermediateTSPRNode.toProto would give, with ranks read from score stores filled by rankInPlace
+    public static void writeTSPRGraphNodes(List<IntermediateTSPRNode> nodes, ScoreStore tsprScores,
+                                           ScoreStore lsprScores, OutputStream out) throws IOException {
+        for(IntermediateTSPRNode node : nodes) {
+            Data.TSPRGraphNode.Builder builder = Data.TSPRGraphNode.newBuilder()
+                    .setId(node.id)
+                    .setTitle(node.title);
+            if(node.infoboxType != null) {
+                builder.setInfoboxType(node.infoboxType);
+            }
+            for(int t = 0; t < node.lda.length; t++) {
+                builder.addLda(node.lda[t]);
+                builder.addTspr(tsprScores.get(t, node.linearId));
+                builder.addLspr(lsprScores.get(t, node.linearId));
+            }
+            builder.build().writeDelimitedTo(out);
+        }
+    }
+
+    // filename may also be the prefix of a ShardedDumpFile, or a BlockCompressedFile
+    public static Iterator<Data.WikiGraphNode> newWikiGraphNodeIterator(String filename) throws IOException {
+        if(ShardedDumpFile.isSharded(filename)) {
+            return ShardedDumpFile.open(filename).iterator(Data.WikiGraphNode.getDefaultInstance());
+        }
+        final InputStream inputStream = BlockCompressedFile.newInputStream(filename);
+
+        try {
+            return new Iterator<Data.WikiGraphNode>() {
+                Data.WikiGraphNode nextMessage = read();
+
+                private Data.WikiGraphNode read() throws IOException {
+                    Data.WikiGraphNode message = Data.WikiGraphNode.parseDelimitedFrom(inputStream);
+                    if(message == null) {
+                        inputStream.close();
+                    }
+                    return message;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return nextMessage != null;
+                }
+
+                @Override
+                public Data.WikiGraphNode next() {
+                    if(nextMessage == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Data.WikiGraphNode ret = nextMessage;
+                    try {
+                        nextMessage = read();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return ret;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    // Topic weights of one tab-split LDA line (doc, title, then topic/weight pairs), plus a trailing 1.0
+    // for the topic-independent ranking
+    static double[] ldaTopics(List<String> split) {
+        double[] topics = new double[(split.size() - 2) / 2 + 1];
+        topics[topics.length - 1] = 1.0;
+        int nextTopicId = -1;
+        for(int i = 2; i < split.size(); i++) {
+            if(i % 2 == 0) {
+                nextTopicId = Integer.parseInt(split.get(i));
+            } else {
+                topics[nextTopicId] = Double.parseDouble(split.get(i));
+            }
+        }
+        return topics;
+    }
 
     public static Map<String, double[]> readLDAMap(String filename) throws IOException {
         BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(filename), Charset.forName("UTF-8")));
@@ -240,22 +344,12 @@ public class TopicSensitivePageRank {
 
             List<String> split = splitter.splitToList(line);
             String title = split.get(1);
-            double[] topics = new double[(split.size() - 2) / 2 + 1];
-            topics[topics.length - 1] = 1.0;
+            double[] topics = ldaTopics(split);
             if(lastTopicLength == -1) {
                 lastTopicLength = topics.length;
             } else if(lastTopicLength != topics.length) {
                 throw new RuntimeException("Bad topics length for " + line);
             }
-
-            int nextTopicId = -1;
-            for(int i = 2; i < split.size(); i++) {
-                if(i % 2 == 0) {
-                    nextTopicId = Integer.parseInt(split.get(i));
-                } else {
-                    topics[nextTopicId] = Double.parseDouble(split.get(i));
-                }
-            }
             ret.put(title, topics);
             lineNum++;
             if(lineNum % 10000 == 0) {
@@ -270,13 +364,45 @@ public class TopicSensitivePageRank {
         final double sum;
         final int topicNum;
         final List<IntermediateTSPRNode> nodes;
-        final Map<Long, IntermediateTSPRNode> nodeById;
+        final CSRGraph graph;
+        final RankSolver solver;
+        final boolean warmStart;
+        final RankCheckpoints checkpoints;
+        final ScoreStore scores;
         final int numNodes;
         final double convergence;
-        public TsprInPlaceRunnable(Map<Long, IntermediateTSPRNode> nodeById,
+        public TsprInPlaceRunnable(CSRGraph graph,
                                    List<IntermediateTSPRNode> nodes, double sum, int topicNum,
                                    double convergence) {
-            this.nodeById = nodeById;
+            this(graph, new PushSolver(), false, nodes, sum, topicNum, convergence);
+        }
+
+        // When warmStart, iteration starts from the node.tspr values instead of the teleport vector
+        public TsprInPlaceRunnable(CSRGraph graph, RankSolver solver, boolean warmStart,
+                                   List<IntermediateTSPRNode> nodes, double sum, int topicNum,
+                                   double convergence) {
+            this(graph, solver, warmStart, null, nodes, sum, topicNum, convergence);
+        }
+
+        // checkpoints, when not null, supplies a saved result or iterate and records this one's progress
+        public TsprInPlaceRunnable(CSRGraph graph, RankSolver solver, boolean warmStart, RankCheckpoints checkpoints,
+                                   List<IntermediateTSPRNode> nodes, double sum, int topicNum,
+                                   double convergence) {
+            this(graph, solver, warmStart, checkpoints, null, nodes, sum, topicNum, convergence);
+        }
+
+        // scores, when not null, receives the result instead of node.tspr (and warmStart is not supported)
+        public TsprInPlaceRunnable(CSRGraph graph, RankSolver solver, boolean warmStart, RankCheckpoints checkpoints,
+                                   ScoreStore scores, List<IntermediateTSPRNode> nodes, double sum, int topicNum,
+                                   double convergence) {
+            if(warmStart && scores != null) {
+                throw new IllegalArgumentException("Warm start reads node ranks, not a score store");
+            }
+            this.graph = graph;
+            this.scores = scores;
+            this.solver = solver;
+            this.warmStart = warmStart;
+            this.checkpoints = checkpoints;
             this.nodes = nodes;
             this.sum = sum;
             this.topicNum = topicNum;
@@ -286,61 +412,31 @@ public class TopicSensitivePageRank {
 
         @Override
         public void run() {
-            double [] lastRank = new double[numNodes];
-            double [] thisRank = new double[numNodes];
-
-
-            for(int iteration = 0; ; iteration++) {
-                if(iteration == 0) {
-                    // Initialize
-                    for(IntermediateTSPRNode node : nodes) {
-                        lastRank[node.linearId] = node.lda[topicNum] / sum;
-                    }
-                } else {
-                    double []tmp = thisRank;
-                    thisRank = lastRank;
-                    lastRank = tmp;
-                    // Clear old values
-                    for(int i = 0; i < numNodes; i++) {
-                        thisRank[i] = 0.0;
-                    }
-                }
-
-                // Power iteration
-                for(IntermediateTSPRNode node : nodes) {
-                    int numNeighbors = node.edges.length;
-                    double contribution = BETA * lastRank[node.linearId] / numNeighbors;
-                    for(long targetId : node.edges)  {
-                        IntermediateTSPRNode neighbor = nodeById.get(targetId);
-                        thisRank[neighbor.linearId] += contribution;
-                    }
-                }
+            double [] teleport = solver.newBuffer(numNodes);
+            for(IntermediateTSPRNode node : nodes) {
+                teleport[node.linearId] = node.lda[topicNum] / sum;
+            }
 
-                // Reinsert leaked
-                double topicSum = 0.0;
+            // Initialize
+            double [] rank = solver.newBuffer(numNodes);
+            System.arraycopy(teleport, 0, rank, 0, numNodes);
+            if(warmStart) {
                 for(IntermediateTSPRNode node : nodes) {
-                    topicSum += thisRank[node.linearId];
+                    rank[node.linearId] = node.tspr[topicNum];
                 }
+            }
+            solve(solver, TopicWalk.uniform(graph, teleport), rank, convergence,
+                    "Topic-Sensitive PageRank topic " + topicNum, checkpoints, "tspr", topicNum);
 
-                double difference = 0.0;
+            if(scores != null) {
+                scores.putColumn(topicNum, rank);
+            } else {
                 for(IntermediateTSPRNode node : nodes) {
-                    thisRank[node.linearId] += (1.0 - topicSum) * (node.lda[topicNum] / sum);
-                    // Calculate L1 difference too
-                    difference += Math.abs(thisRank[node.linearId] - lastRank[node.linearId]);
-                }
-
-                System.err.println("Topic-Sensitive PageRank topic " + topicNum + " iteration "
-                        + iteration + ": delta=" + difference);
-
-                if(difference < convergence) {
-                    break;
+                    node.tspr[topicNum] = rank[node.linearId];
                 }
             }
-
-
-            for(IntermediateTSPRNode node : nodes) {
-                node.tspr[topicNum] = thisRank[node.linearId];
-            }
+            solver.releaseBuffer(rank);
+            solver.releaseBuffer(teleport);
         }
     }
 
@@ -349,14 +445,45 @@ public class TopicSensitivePageRank {
         final double sum;
         final int topicNum;
         final List<IntermediateTSPRNode> nodes;
-        final Map<Long, IntermediateTSPRNode> nodeById;
+        final CSRGraph graph;
+        final RankSolver solver;
+        final boolean warmStart;
+        final RankCheckpoints checkpoints;
+        final ScoreStore scores;
         final int numNodes;
         final double convergence;
         final double followPrior;
-        public LsprInPlaceRunnable(Map<Long, IntermediateTSPRNode> nodeById,
+        public LsprInPlaceRunnable(CSRGraph graph,
                                    List<IntermediateTSPRNode> nodes, double sum, int topicNum,
                                    double convergence, double followPrior) {
-            this.nodeById = nodeById;
+            this(graph, new PushSolver(), false, nodes, sum, topicNum, convergence, followPrior);
+        }
+
+        // When warmStart, iteration starts from the node.lspr values instead of the teleport vector
+        public LsprInPlaceRunnable(CSRGraph graph, RankSolver solver, boolean warmStart,
+                                   List<IntermediateTSPRNode> nodes, double sum, int topicNum,
+                                   double convergence, double followPrior) {
+            this(graph, solver, warmStart, null, nodes, sum, topicNum, convergence, followPrior);
+        }
+
+        public LsprInPlaceRunnable(CSRGraph graph, RankSolver solver, boolean warmStart, RankCheckpoints checkpoints,
+                                   List<IntermediateTSPRNode> nodes, double sum, int topicNum,
+                                   double convergence, double followPrior) {
+            this(graph, solver, warmStart, checkpoints, null, nodes, sum, topicNum, convergence, followPrior);
+        }
+
+        // scores, when not null, receives the result instead of node.lspr (and warmStart is not supported)
+        public LsprInPlaceRunnable(CSRGraph graph, RankSolver solver, boolean warmStart, RankCheckpoints checkpoints,
+                                   ScoreStore scores, List<IntermediateTSPRNode> nodes, double sum, int topicNum,
+                                   double convergence, double followPrior) {
+            if(warmStart && scores != null) {
+                throw new IllegalArgumentException("Warm start reads node ranks, not a score store");
+            }
+            this.graph = graph;
+            this.scores = scores;
+            this.solver = solver;
+            this.warmStart = warmStart;
+            this.checkpoints = checkpoints;
             this.nodes = nodes;
             this.sum = sum;
             this.topicNum = topicNum;
@@ -367,69 +494,37 @@ public class TopicSensitivePageRank {
 
         @Override
         public void run() {
-            double [] lastRank = new double[numNodes];
-            double [] thisRank = new double[numNodes];
-
-
-            for(int iteration = 0; ; iteration++) {
-                if(iteration == 0) {
-                    // Initialize
-                    for(IntermediateTSPRNode node : nodes) {
-                        lastRank[node.linearId] = node.lda[topicNum] / sum;
-                    }
-                } else {
-                    double []tmp = thisRank;
-                    thisRank = lastRank;
-                    lastRank = tmp;
-                    // Clear old values
-                    for(int i = 0; i < numNodes; i++) {
-                        thisRank[i] = 0.0;
-                    }
-                }
-
-                // Power iteration
-                for(IntermediateTSPRNode node : nodes) {
-                    if(node.edges.length == 0) {
-                        continue;
-                    }
-
-                    double neighborSum = 0.0;
-                    for(long targetId : node.edges)  {
-                        IntermediateTSPRNode neighbor = nodeById.get(targetId);
-                        neighborSum += followPrior + neighbor.lda[topicNum];
-                    }
-                    double coeff = BETA * lastRank[node.linearId] / neighborSum;
-                    for(long targetId : node.edges)  {
-                        IntermediateTSPRNode neighbor = nodeById.get(targetId);
-                        thisRank[neighbor.linearId] += coeff * (followPrior + neighbor.lda[topicNum]);
-                    }
-                }
+            final double[] topicLda = topicColumn(nodes, topicNum, solver.newBuffer(numNodes));
+            double [] teleport = solver.newBuffer(numNodes);
+            for(int i = 0; i < numNodes; i++) {
+                teleport[i] = topicLda[i] / sum;
+            }
 
-                // Reinsert leaked
-                double topicSum = 0.0;
+            // Initialize
+            double [] rank = solver.newBuffer(numNodes);
+            System.arraycopy(teleport, 0, rank, 0, numNodes);
+            if(warmStart) {
                 for(IntermediateTSPRNode node : nodes) {
-                    topicSum += thisRank[node.linearId];
+                    rank[node.linearId] = node.lspr[topicNum];
                 }
-
-                double difference = 0.0;
+            }
+            TopicWalk walk = TopicWalk.ldaWeighted(graph, topicLda, followPrior, teleport,
+                    solver.newBuffer(numNodes), solver.newBuffer(numNodes));
+            solve(solver, walk, rank, convergence, "LDA-sensitive PageRank " + topicNum, checkpoints, "lspr",
+                    topicNum);
+
+            if(scores != null) {
+                scores.putColumn(topicNum, rank);
+            } else {
                 for(IntermediateTSPRNode node : nodes) {
-                    thisRank[node.linearId] += (1.0 - topicSum) * (node.lda[topicNum] / sum);
-                    // Calculate L1 difference too
-                    difference += Math.abs(thisRank[node.linearId] - lastRank[node.linearId]);
-                }
-
-                System.err.println("LDA-sensitive PageRank " + topicNum + " iteration "
-                        + iteration + ": delta=" + difference);
-
-                if(difference < convergence) {
-                    break;
+                    node.lspr[topicNum] = rank[node.linearId];
                 }
             }
-
-
-            for(IntermediateTSPRNode node : nodes) {
-                node.lspr[topicNum] = thisRank[node.linearId];
-            }
+            solver.releaseBuffer(walk.outWeight);
+            solver.releaseBuffer(walk.targetWeight);
+            solver.releaseBuffer(rank);
+            solver.releaseBuffer(teleport);
+            solver.releaseBuffer(topicLda);
         }
     }
 
@@ -437,16 +532,26 @@ public class TopicSensitivePageRank {
         final int topicNum;
         final String anchorTitle;
         final List<IntermediateTSPRNode> nodes;
-        final Map<Long, IntermediateTSPRNode> nodeById;
+        final CSRGraph graph;
+        final RankSolver solver;
         final int numNodes;
         final double convergence;
         final double followPrior;
-        public LSPPRankInPlaceRunnable(Map<Long, IntermediateTSPRNode> nodeById,
+        public LSPPRankInPlaceRunnable(CSRGraph graph,
+                                       List<IntermediateTSPRNode> nodes,
+                                       String anchorTitle,
+                                       int topicNum,
+                                       double convergence, double followPrior) {
+            this(graph, new PushSolver(), nodes, anchorTitle, topicNum, convergence, followPrior);
+        }
+
+        public LSPPRankInPlaceRunnable(CSRGraph graph, RankSolver solver,
                                        List<IntermediateTSPRNode> nodes,
                                        String anchorTitle,
                                        int topicNum,
                                        double convergence, double followPrior) {
-            this.nodeById = nodeById;
+            this.graph = graph;
+            this.solver = solver;
             this.nodes = nodes;
             this.anchorTitle = anchorTitle;
             this.topicNum = topicNum;
@@ -457,18 +562,115 @@ public class TopicSensitivePageRank {
 
         @Override
         public void run() {
-            double [] lastRank = new double[numNodes];
-            double [] thisRank = new double[numNodes];
+            // All leaked mass returns to the anchor
+            double [] teleport = new double[numNodes];
+            for(IntermediateTSPRNode node : nodes) {
+                if(node.title.equals(anchorTitle)) {
+                    teleport[node.linearId] = 1.0;
+                }
+            }
+
+            // Initialize
+            double [] rank = teleport.clone();
+            solver.solve(TopicWalk.ldaWeighted(graph, topicColumn(nodes, topicNum), followPrior, teleport), rank,
+                    convergence, "LSPRPPRank-sensitive PageRank " + topicNum);
+
+            for(IntermediateTSPRNode node : nodes) {
+                node.lspr[topicNum] = rank[node.linearId];
+            }
+        }
+    }
+
+    // Runs TSPR (or LSPR when ldaWeighted) for a contiguous block of topics at once. Rank vectors are
+    // interleaved as rank[linearId * blockSize + lane] so every edge is read once per iteration for
+    // the whole block; each lane still converges (and is frozen) independently.
+    public static class BlockedRankInPlaceRunnable implements Runnable {
+        final double[] sums;
+        final int firstTopic;
+        final int blockSize;
+        final List<IntermediateTSPRNode> nodes;
+        final CSRGraph graph;
+        final int numNodes;
+        final double convergence;
+        final boolean ldaWeighted;
+        final double followPrior;
+        final boolean warmStart;
+        public BlockedRankInPlaceRunnable(CSRGraph graph,
+                                          List<IntermediateTSPRNode> nodes, double[] sums,
+                                          int firstTopic, int blockSize,
+                                          double convergence, boolean ldaWeighted, double followPrior) {
+            this(graph, nodes, sums, firstTopic, blockSize, convergence, ldaWeighted, followPrior, false);
+        }
+
+        public BlockedRankInPlaceRunnable(CSRGraph graph,
+                                          List<IntermediateTSPRNode> nodes, double[] sums,
+                                          int firstTopic, int blockSize,
+                                          double convergence, boolean ldaWeighted, double followPrior,
+                                          boolean warmStart) {
+            this.graph = graph;
+            this.nodes = nodes;
+            this.sums = sums;
+            this.firstTopic = firstTopic;
+            this.blockSize = blockSize;
+            this.numNodes = nodes.size();
+            this.convergence = convergence;
+            this.ldaWeighted = ldaWeighted;
+            this.followPrior = followPrior;
+            this.warmStart = warmStart;
+        }
+
+        @Override
+        public void run() {
+            final int b = blockSize;
+            final int[] offsets = graph.offsets;
+            final int[] targets = graph.targets;
+            final double[] blockLda = new double[numNodes * b];
+            for(IntermediateTSPRNode node : nodes) {
+                System.arraycopy(node.lda, firstTopic, blockLda, node.linearId * b, b);
+            }
+
+            final double[] neighborSums;
+            if(ldaWeighted) {
+                neighborSums = new double[numNodes * b];
+                for(int i = 0; i < numNodes; i++) {
+                    int base = i * b;
+                    for(int e = offsets[i]; e < offsets[i + 1]; e++) {
+                        int targetBase = targets[e] * b;
+                        for(int lane = 0; lane < b; lane++) {
+                            neighborSums[base + lane] += followPrior + blockLda[targetBase + lane];
+                        }
+                    }
+                }
+            } else {
+                neighborSums = null;
+            }
 
+            double [] lastRank = new double[numNodes * b];
+            double [] thisRank = new double[numNodes * b];
+            final double[] contribution = new double[b];
+            final double[] topicSum = new double[b];
+            final double[] difference = new double[b];
+
+            // Lanes still iterating, compacted as topics converge
+            int[] active = new int[b];
+            int numActive = b;
+            for(int lane = 0; lane < b; lane++) {
+                active[lane] = lane;
+            }
 
-            for(int iteration = 0; ; iteration++) {
+            for(int iteration = 0; numActive > 0; iteration++) {
                 if(iteration == 0) {
                     // Initialize
-                    for(IntermediateTSPRNode node : nodes) {
-                        if(node.title.equals(anchorTitle)) {
-                            lastRank[node.linearId] = 1.0;
-                        } else {
-                            lastRank[node.linearId] = 0.0;
+                    if(warmStart) {
+                        for(IntermediateTSPRNode node : nodes) {
+                            System.arraycopy(ldaWeighted ? node.lspr : node.tspr, firstTopic,
+                                    lastRank, node.linearId * b, b);
+                        }
+                    } else {
+                        for(int i = 0; i < numNodes; i++) {
+                            for(int lane = 0; lane < b; lane++) {
+                                lastRank[i * b + lane] = blockLda[i * b + lane] / sums[firstTopic + lane];
+                            }
                         }
                     }
                 } else {
@@ -476,60 +678,207 @@ public class TopicSensitivePageRank {
                     thisRank = lastRank;
                     lastRank = tmp;
                     // Clear old values
-                    for(int i = 0; i < numNodes; i++) {
+                    for(int i = 0; i < thisRank.length; i++) {
                         thisRank[i] = 0.0;
                     }
                 }
 
-                // Power iteration
-                for(IntermediateTSPRNode node : nodes) {
-                    if(node.edges.length == 0) {
+                // Power iteration, one pass over the edges for every active lane
+                for(int i = 0; i < numNodes; i++) {
+                    int start = offsets[i];
+                    int end = offsets[i + 1];
+                    if(start == end) {
                         continue;
                     }
 
-                    double neighborSum = 0.0;
-                    for(long targetId : node.edges)  {
-                        IntermediateTSPRNode neighbor = nodeById.get(targetId);
-                        neighborSum += followPrior + neighbor.lda[topicNum];
+                    int base = i * b;
+                    for(int a = 0; a < numActive; a++) {
+                        int lane = active[a];
+                        if(ldaWeighted) {
+                            contribution[lane] = BETA * lastRank[base + lane] / neighborSums[base + lane];
+                        } else {
+                            contribution[lane] = BETA * lastRank[base + lane] / (end - start);
+                        }
                     }
-                    double coeff = BETA * lastRank[node.linearId] / neighborSum;
-                    for(long targetId : node.edges)  {
-                        IntermediateTSPRNode neighbor = nodeById.get(targetId);
-                        thisRank[neighbor.linearId] += coeff * (followPrior + neighbor.lda[topicNum]);
+
+                    for(int e = start; e < end; e++) {
+                        int targetBase = targets[e] * b;
+                        if(ldaWeighted) {
+                            for(int a = 0; a < numActive; a++) {
+                                int lane = active[a];
+                                thisRank[targetBase + lane] += contribution[lane] *
+                                        (followPrior + blockLda[targetBase + lane]);
+                            }
+                        } else {
+                            for(int a = 0; a < numActive; a++) {
+                                int lane = active[a];
+                                thisRank[targetBase + lane] += contribution[lane];
+                            }
+                        }
                     }
                 }
 
                 // Reinsert leaked
-                double topicSum = 0.0;
-                for(IntermediateTSPRNode node : nodes) {
-                    topicSum += thisRank[node.linearId];
+                for(int a = 0; a < numActive; a++) {
+                    topicSum[active[a]] = 0.0;
+                    difference[active[a]] = 0.0;
+                }
+                for(int i = 0; i < numNodes; i++) {
+                    int base = i * b;
+                    for(int a = 0; a < numActive; a++) {
+                        topicSum[active[a]] += thisRank[base + active[a]];
+                    }
+                }
+                for(int i = 0; i < numNodes; i++) {
+                    int base = i * b;
+                    for(int a = 0; a < numActive; a++) {
+                        int lane = active[a];
+                        thisRank[base + lane] += (1.0 - topicSum[lane]) * (blockLda[base + lane] / sums[firstTopic + lane]);
+                        // Calculate L1 difference too
+                        difference[lane] += Math.abs(thisRank[base + lane] - lastRank[base + lane]);
+                    }
                 }
 
-                double difference = 0.0;
-                for(IntermediateTSPRNode node : nodes) {
-                    if(node.title.equals(anchorTitle)) {
-                        thisRank[node.linearId] += (1.0 - topicSum);
+                int stillActive = 0;
+                for(int a = 0; a < numActive; a++) {
+                    int lane = active[a];
+                    int topicNum = firstTopic + lane;
+                    System.err.println((ldaWeighted ? "LDA-sensitive PageRank " : "Topic-Sensitive PageRank topic ")
+                            + topicNum + " iteration " + iteration + ": delta=" + difference[lane]);
+
+                    if(difference[lane] < convergence) {
+                        for(IntermediateTSPRNode node : nodes) {
+                            double rank = thisRank[node.linearId * b + lane];
+                            if(ldaWeighted) {
+                                node.lspr[topicNum] = rank;
+                            } else {
+                                node.tspr[topicNum] = rank;
+                            }
+                        }
+                    } else {
+                        active[stillActive++] = lane;
                     }
-                    // Calculate L1 difference too
-                    difference += Math.abs(thisRank[node.linearId] - lastRank[node.linearId]);
                 }
+                numActive = stillActive;
+            }
+        }
+    }
+
+    static double[] ldaSums(List<IntermediateTSPRNode> nodes) {
+        final int numTopics = nodes.get(0).lda.length;
+        final double []ldaSums = new double[numTopics];
+        for(IntermediateTSPRNode node : nodes) {
+            for(int j = 0; j < numTopics; j++) {
+                ldaSums[j] += node.lda[j];
+            }
+        }
+        return ldaSums;
+    }
+
+    // Fills node.tspr and node.lspr with a previous run's ranks, matching nodes by id. Nodes the previous
+    // run did not have start from the teleport prior, and every topic is renormalized to sum to one.
+    public static int seedRanks(List<IntermediateTSPRNode> nodes, double[] ldaSums,
+                                Iterator<Data.TSPRGraphNode> previous) {
+        final int numTopics = ldaSums.length;
+        Map<Long, IntermediateTSPRNode> nodeById = Maps.newHashMapWithExpectedSize(nodes.size());
+        for(IntermediateTSPRNode node : nodes) {
+            nodeById.put(node.id, node);
+        }
 
-                System.err.println("LSPRPPRank-sensitive PageRank " + topicNum + " iteration "
-                        + iteration + ": delta=" + difference);
+        boolean[] seeded = new boolean[nodes.size()];
+        int numSeeded = 0;
+        while(previous.hasNext()) {
+            Data.TSPRGraphNode old = previous.next();
+            IntermediateTSPRNode node = nodeById.get(old.getId());
+            if(node == null) {
+                continue;
+            }
+            if(old.getTsprCount() != numTopics || old.getLsprCount() != numTopics) {
+                throw new RuntimeException("Previous ranks for " + old.getTitle() + " have "
+                        + old.getTsprCount() + " topics, expected " + numTopics);
+            }
+            for(int t = 0; t < numTopics; t++) {
+                node.tspr[t] = old.getTspr(t);
+                node.lspr[t] = old.getLspr(t);
+            }
+            if(!seeded[node.linearId]) {
+                seeded[node.linearId] = true;
+                numSeeded++;
+            }
+        }
 
-                if(difference < convergence) {
-                    break;
+        double[] tsprSums = new double[numTopics];
+        double[] lsprSums = new double[numTopics];
+        for(IntermediateTSPRNode node : nodes) {
+            if(!seeded[node.linearId]) {
+                for(int t = 0; t < numTopics; t++) {
+                    node.tspr[t] = node.lda[t] / ldaSums[t];
+                    node.lspr[t] = node.lda[t] / ldaSums[t];
                 }
             }
+            for(int t = 0; t < numTopics; t++) {
+                tsprSums[t] += node.tspr[t];
+                lsprSums[t] += node.lspr[t];
+            }
+        }
+
+        for(IntermediateTSPRNode node : nodes) {
+            for(int t = 0; t < numTopics; t++) {
+                node.tspr[t] /= tsprSums[t];
+                node.lspr[t] /= lsprSums[t];
+            }
+        }
 
+        System.out.println("Warm start: seeded " + numSeeded + " of " + nodes.size() + " nodes from previous ranks");
+        return numSeeded;
+    }
 
-            for(IntermediateTSPRNode node : nodes) {
-                node.lspr[topicNum] = thisRank[node.linearId];
+    // Solves one topic through checkpoints (when not null): a finished checkpoint stands in for the solve and an
+    // in-progress one replaces the starting vector
+    static void solve(RankSolver solver, TopicWalk walk, double[] rank, double convergence, String label,
+                      RankCheckpoints checkpoints, String kind, int topicNum) {
+        if(checkpoints == null) {
+            solver.solve(walk, rank, convergence, label);
+            return;
+        }
+
+        try {
+            if(checkpoints.load(kind, topicNum, rank, convergence) == RankCheckpoints.State.FINISHED) {
+                return;
             }
+            SolverStats stats = solver.solve(walk, rank, convergence, label,
+                    checkpoints.listener(kind, topicNum, convergence));
+            checkpoints.finished(kind, topicNum, rank, convergence, (int) stats.iterations);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Copies one topic's LDA weights into a dense array indexed by linearId
+    static double[] topicColumn(List<IntermediateTSPRNode> nodes, int topicNum) {
+        return topicColumn(nodes, topicNum, new double[nodes.size()]);
+    }
+
+    static double[] topicColumn(List<IntermediateTSPRNode> nodes, int topicNum, double[] column) {
+        for(IntermediateTSPRNode node : nodes) {
+            column[node.linearId] = node.lda[topicNum];
         }
+        return column;
     }
 
     public static void lspprankInPlace(List<IntermediateTSPRNode> nodes, String anchorTitle, double convergence) throws InterruptedException {
+        lspprankInPlace(nodes, anchorTitle, convergence, RankSolver.Strategy.JACOBI,
+                Runtime.getRuntime().availableProcessors() + 2);
+    }
+
+    // Pull-based variant: runs concurrentTopics topics at a time, each one spread across every core
+    public static void lspprankInPlaceParallel(List<IntermediateTSPRNode> nodes, String anchorTitle, double convergence,
+                                               int concurrentTopics) throws InterruptedException {
+        lspprankInPlace(nodes, anchorTitle, convergence, RankSolver.Strategy.PARALLEL_PULL, concurrentTopics);
+    }
+
+    public static void lspprankInPlace(List<IntermediateTSPRNode> nodes, String anchorTitle, double convergence,
+                                       RankSolver.Strategy strategy, int concurrentTopics) throws InterruptedException {
 
         if(nodes.size() == 0) {
             return;
@@ -538,22 +887,101 @@ public class TopicSensitivePageRank {
         final int numNodes = nodes.size();
         final int numTopics = nodes.get(0).lda.length;
 
-        Map<Long, IntermediateTSPRNode> nodeById = Maps.newHashMapWithExpectedSize(nodes.size());
-
-        for(IntermediateTSPRNode node : nodes) {
-            nodeById.put(node.id, node);
-        }
+        System.out.println("Building CSR graph");
+        CSRGraph graph = CSRGraph.fromNodes(nodes);
+        ForkJoinPool pool = strategy.usesPool() ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+        RankSolver solver = strategy.create(graph, pool);
 
-        ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 2);
-        System.out.println("Nodes " + numNodes);
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrentTopics);
+        System.out.println("Nodes " + numNodes + ", edges " + graph.numEdges() + ", solver " + strategy);
+        long start = System.nanoTime();
         for(int tnum = 0; tnum < numTopics; tnum++) {
-            executorService.submit(new LSPPRankInPlaceRunnable(nodeById, nodes, anchorTitle, tnum, convergence, 0.1));
+            executorService.submit(new LSPPRankInPlaceRunnable(graph, solver, nodes, anchorTitle, tnum, convergence, 0.1));
         }
         executorService.shutdown();
         executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        if(pool != null) {
+            pool.shutdown();
+        }
+        System.out.println(strategy + " solver: " + solver.totals() + ", wall time "
+                + (System.nanoTime() - start) / 1000000 + " ms");
     }
 
     public static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence) throws InterruptedException {
+        rankInPlace(nodes, convergence, RankSolver.Strategy.JACOBI, Runtime.getRuntime().availableProcessors() + 2);
+    }
+
+    // Pull-based variant: runs concurrentTopics topics at a time, each one spread across every core
+    public static void rankInPlaceParallel(List<IntermediateTSPRNode> nodes, double convergence,
+                                           int concurrentTopics) throws InterruptedException {
+        rankInPlace(nodes, convergence, RankSolver.Strategy.PARALLEL_PULL, concurrentTopics);
+    }
+
+    public static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence,
+                                   RankSolver.Strategy strategy, int concurrentTopics) throws InterruptedException {
+        rankInPlace(nodes, convergence, strategy, concurrentTopics, null);
+    }
+
+    // initialRanks, when not null, is a previous run's output (see newTSPRGraphNodeIterator) to start from
+    public static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence,
+                                   RankSolver.Strategy strategy, int concurrentTopics,
+                                   Iterator<Data.TSPRGraphNode> initialRanks) throws InterruptedException {
+        try {
+            rankInPlace(nodes, convergence, strategy, concurrentTopics, initialRanks, null, false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Same as below after relabeling the nodes by ordering (see GraphOrdering); ranks still end up on the given
+    // nodes. Checkpoints only resume under the ordering they were written with; another one fails.
+    public static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence,
+                                   RankSolver.Strategy strategy, int concurrentTopics,
+                                   Iterator<Data.TSPRGraphNode> initialRanks,
+                                   String checkpointDir, boolean resume,
+                                   GraphOrdering.Method ordering) throws InterruptedException, IOException {
+        rankInPlace(nodes, convergence, strategy, concurrentTopics, initialRanks, checkpointDir, resume, ordering, null);
+    }
+
+    // stopping, when not null, also ends each topic once its top k has settled (see TopKStability)
+    public static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence,
+                                   RankSolver.Strategy strategy, int concurrentTopics,
+                                   Iterator<Data.TSPRGraphNode> initialRanks,
+                                   String checkpointDir, boolean resume,
+                                   GraphOrdering.Method ordering,
+                                   TopKStability stopping) throws InterruptedException, IOException {
+        rankInPlace(GraphOrdering.reorder(nodes, ordering, 3), convergence, strategy, concurrentTopics, initialRanks,
+                checkpointDir, resume, ordering, stopping, null, null);
+    }
+
+    // checkpointDir, when not null, keeps every topic's progress on disk (see RankCheckpoints). With resume,
+    // topics already finished there are loaded instead of solved and unfinished ones continue from their last
+    // saved iterate; without it the directory is cleared first.
+    public static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence,
+                                   RankSolver.Strategy strategy, int concurrentTopics,
+                                   Iterator<Data.TSPRGraphNode> initialRanks,
+                                   String checkpointDir, boolean resume) throws InterruptedException, IOException {
+        rankInPlace(nodes, convergence, strategy, concurrentTopics, initialRanks, checkpointDir, resume,
+                GraphOrdering.Method.NONE, null, null, null);
+    }
+
+    // Same as rankInPlace, but ranks go to tsprScores and lsprScores (numNodes x numTopics, by linearId) instead of
+    // the nodes, which can then be built without rank arrays. Save them with ScoreStore.write, or as the usual
+    // TSPRGraphNode stream with writeTSPRGraphNodes.
+    public static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence,
+                                   RankSolver.Strategy strategy, int concurrentTopics,
+                                   ScoreStore tsprScores, ScoreStore lsprScores,
+                                   TopKStability stopping) throws InterruptedException, IOException {
+        rankInPlace(nodes, convergence, strategy, concurrentTopics, null, null, false, GraphOrdering.Method.NONE,
+                stopping, tsprScores, lsprScores);
+    }
+
+    private static void rankInPlace(List<IntermediateTSPRNode> nodes, double convergence,
+                                    RankSolver.Strategy strategy, int concurrentTopics,
+                                    Iterator<Data.TSPRGraphNode> initialRanks,
+                                    String checkpointDir, boolean resume, GraphOrdering.Method ordering,
+                                    TopKStability stopping, ScoreStore tsprScores,
+                                    ScoreStore lsprScores) throws InterruptedException, IOException {
 
         if(nodes.size() == 0) {
             return;
@@ -562,23 +990,177 @@ public class TopicSensitivePageRank {
         final int numNodes = nodes.size();
         final int numTopics = nodes.get(0).lda.length;
 
-        Map<Long, IntermediateTSPRNode> nodeById = Maps.newHashMapWithExpectedSize(nodes.size());
+        final double []ldaSums = ldaSums(nodes);
+        final boolean warmStart = initialRanks != null;
+        if(warmStart) {
+            seedRanks(nodes, ldaSums, initialRanks);
+        }
 
-        // Compute id map and topic sums
-        final double []ldaSums = new double[nodes.size()];
-        for(IntermediateTSPRNode node : nodes) {
-            for(int j = 0; j < numTopics; j++) {
-                ldaSums[j] += node.lda[j];
+        System.out.println("Building CSR graph");
+        CSRGraph graph = CSRGraph.fromNodes(nodes);
+        ForkJoinPool pool = strategy.usesPool() ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+        RankSolver solver = strategy.create(graph, pool);
+        if(stopping != null) {
+            solver.setStoppingRule(stopping.forNodes(nodes));
+        }
+        RankCheckpoints checkpoints = checkpoints(checkpointDir, resume, graph, nodes, ordering, stopping);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrentTopics);
+        System.out.println("Nodes " + numNodes + ", edges " + graph.numEdges() + ", solver " + strategy);
+        long start = System.nanoTime();
+        List<Future<?>> jobs = Lists.newArrayList();
+        for(int tnum = 0; tnum < numTopics; tnum++) {
+            jobs.add(executorService.submit(new TsprInPlaceRunnable(graph, solver, warmStart, checkpoints, tsprScores,
+                    nodes, ldaSums[tnum], tnum, convergence)));
+            jobs.add(executorService.submit(new LsprInPlaceRunnable(graph, solver, warmStart, checkpoints, lsprScores,
+                    nodes, ldaSums[tnum], tnum, convergence, LSPR_FOLLOW_PRIOR)));
+        }
+        try {
+            awaitJobs(executorService, jobs, "Rank job");
+        } finally {
+            if(pool != null) {
+                pool.shutdown();
             }
+        }
+        System.out.println(strategy + " solver: " + solver.totals() + ", wall time "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
 
-            nodeById.put(node.id, node);
+    // Waits for the jobs and rethrows the first failure (a checkpoint or column IOException unwrapped), so a topic
+    // that failed is never written out with zero ranks
+    static void awaitJobs(ExecutorService executorService, List<Future<?>> jobs, String what)
+            throws InterruptedException, IOException {
+        executorService.shutdown();
+        try {
+            for(Future<?> job : jobs) {
+                job.get();
+            }
+        } catch (ExecutionException e) {
+            executorService.shutdownNow();
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException && cause.getCause() instanceof IOException) {
+                throw (IOException) cause.getCause();
+            }
+            throw new IOException(what + " failed", cause);
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            throw e;
         }
+    }
 
-        ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 2);
-        System.out.println("Nodes " + numNodes);
+    // Checkpoints for a run over nodes (as laid out by ordering), or null without a checkpointDir
+    private static RankCheckpoints checkpoints(String checkpointDir, boolean resume, CSRGraph graph,
+                                               List<IntermediateTSPRNode> nodes, GraphOrdering.Method ordering,
+                                               TopKStability stopping) throws IOException {
+        if(checkpointDir == null) {
+            return null;
+        }
+        return new RankCheckpoints(checkpointDir, graph, RankCheckpoints.inputChecksum(nodes, "beta " + BETA
+                + ", lspr prior " + LSPR_FOLLOW_PRIOR + ", " + (stopping == null ? "no early stop" : stopping)),
+                ordering, RankCheckpoints.layoutChecksum(nodes), RankCheckpoints.DEFAULT_INTERVAL_MILLIS, resume);
+    }
+
+    public static void rankInPlaceScheduled(List<IntermediateTSPRNode> nodes, double convergence,
+                                            RankSolver.Strategy strategy, long memoryBudgetBytes,
+                                            String historyFile) throws InterruptedException, IOException {
+        rankInPlaceScheduled(nodes, convergence, strategy, memoryBudgetBytes, historyFile, null, null, false,
+                GraphOrdering.Method.NONE, null);
+    }
+
+    // Same output as rankInPlace, with concurrency sized from memoryBudgetBytes (see TopicScheduler) rather than
+    // the core count, and rank vectors recycled between topics. historyFile, when not null, keeps each topic's
+    // solve time so the next run can start the slowest ones first. initialRanks, checkpointDir, resume, ordering
+    // and stopping are as for rankInPlace.
+    public static void rankInPlaceScheduled(List<IntermediateTSPRNode> nodes, double convergence,
+                                            RankSolver.Strategy strategy, long memoryBudgetBytes,
+                                            String historyFile, Iterator<Data.TSPRGraphNode> initialRanks,
+                                            String checkpointDir, boolean resume, GraphOrdering.Method ordering,
+                                            TopKStability stopping) throws InterruptedException, IOException {
+
+        if(nodes.size() == 0) {
+            return;
+        }
+
+        nodes = GraphOrdering.reorder(nodes, ordering, 3);
+        final int numNodes = nodes.size();
+        final int numTopics = nodes.get(0).lda.length;
+        final double []ldaSums = ldaSums(nodes);
+        final boolean warmStart = initialRanks != null;
+        if(warmStart) {
+            seedRanks(nodes, ldaSums, initialRanks);
+        }
+
+        System.out.println("Building CSR graph");
+        CSRGraph graph = CSRGraph.fromNodes(nodes);
+        ForkJoinPool pool = strategy.usesPool() ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+        RankSolver solver = strategy.create(graph, pool);
+        if(stopping != null) {
+            solver.setStoppingRule(stopping.forNodes(nodes));
+        }
+        RankBufferPool buffers = new RankBufferPool(numNodes);
+        solver.setBuffers(buffers);
+        RankCheckpoints checkpoints = checkpoints(checkpointDir, resume, graph, nodes, ordering, stopping);
+
+        // An LSPR job holds teleport, rank, the topic column and two walk weight vectors, plus solver scratch
+        long jobBytes = (long) numNodes * (5 * 8 + strategy.scratchBytesPerNode());
+        TopicScheduler scheduler = new TopicScheduler(buffers, jobBytes, memoryBudgetBytes,
+                Runtime.getRuntime().availableProcessors() + 2, historyFile);
+        for(int tnum = 0; tnum < numTopics; tnum++) {
+            scheduler.add("lspr-" + tnum, new LsprInPlaceRunnable(graph, solver, warmStart, checkpoints, nodes,
+                    ldaSums[tnum], tnum, convergence, LSPR_FOLLOW_PRIOR));
+        }
         for(int tnum = 0; tnum < numTopics; tnum++) {
-            executorService.submit(new TsprInPlaceRunnable(nodeById, nodes, ldaSums[tnum], tnum, convergence));
-            executorService.submit(new LsprInPlaceRunnable(nodeById, nodes, ldaSums[tnum], tnum, convergence, 0.15));
+            scheduler.add("tspr-" + tnum, new TsprInPlaceRunnable(graph, solver, warmStart, checkpoints, nodes,
+                    ldaSums[tnum], tnum, convergence));
+        }
+
+        System.out.println("Nodes " + numNodes + ", edges " + graph.numEdges() + ", solver " + strategy);
+        long start = System.nanoTime();
+        try {
+            scheduler.run();
+        } finally {
+            if(pool != null) {
+                pool.shutdown();
+            }
+        }
+        System.out.println(strategy + " solver: " + solver.totals() + ", wall time "
+                + (System.nanoTime() - start) / 1000000 + " ms, buffers: " + buffers);
+    }
+
+    // Same output as rankInPlace, but each job iterates topicsPerBlock topics over a single edge pass
+    public static void rankInPlaceBlocked(List<IntermediateTSPRNode> nodes, double convergence,
+                                          int topicsPerBlock) throws InterruptedException {
+        rankInPlaceBlocked(nodes, convergence, topicsPerBlock, null);
+    }
+
+    public static void rankInPlaceBlocked(List<IntermediateTSPRNode> nodes, double convergence,
+                                          int topicsPerBlock,
+                                          Iterator<Data.TSPRGraphNode> initialRanks) throws InterruptedException {
+
+        if(nodes.size() == 0) {
+            return;
+        }
+
+        final int numNodes = nodes.size();
+        final int numTopics = nodes.get(0).lda.length;
+
+        final double []ldaSums = ldaSums(nodes);
+        final boolean warmStart = initialRanks != null;
+        if(warmStart) {
+            seedRanks(nodes, ldaSums, initialRanks);
+        }
+
+        System.out.println("Building CSR graph");
+        CSRGraph graph = CSRGraph.fromNodes(nodes);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 2);
+        System.out.println("Nodes " + numNodes + ", edges " + graph.numEdges() + ", topics per block " + topicsPerBlock);
+        for(int first = 0; first < numTopics; first += topicsPerBlock) {
+            int blockSize = Math.min(topicsPerBlock, numTopics - first);
+            executorService.submit(new BlockedRankInPlaceRunnable(graph, nodes, ldaSums, first, blockSize,
+                    convergence, false, 0.0, warmStart));
+            executorService.submit(new BlockedRankInPlaceRunnable(graph, nodes, ldaSums, first, blockSize,
+                    convergence, true, LSPR_FOLLOW_PRIOR, warmStart));
         }
         executorService.shutdown();
         executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
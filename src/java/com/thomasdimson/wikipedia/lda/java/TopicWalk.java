@@ -0,0 +1,53 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+// One topic's random surfer: follow an out-edge with probability BETA, picking target v in proportion
+// to targetWeight[v] (uniformly when null), otherwise jump according to teleport.
+public class TopicWalk {
+    public final CSRGraph graph;
+    public final double[] outWeight;
+    public final double[] targetWeight;
+    public final double[] teleport;
+
+    private TopicWalk(CSRGraph graph, double[] outWeight, double[] targetWeight, double[] teleport) {
+        this.graph = graph;
+        this.outWeight = outWeight;
+        this.targetWeight = targetWeight;
+        this.teleport = teleport;
+    }
+
+    // Total weight leaving a node: its out-degree for uniform walks
+    public double outWeight(int node) {
+        if(outWeight == null) {
+            return graph.outDegree(node);
+        }
+        return outWeight[node];
+    }
+
+    public static TopicWalk uniform(CSRGraph graph, double[] teleport) {
+        return new TopicWalk(graph, null, null, teleport);
+    }
+
+    public static TopicWalk ldaWeighted(CSRGraph graph, double[] topicLda, double followPrior, double[] teleport) {
+        return ldaWeighted(graph, topicLda, followPrior, teleport, new double[graph.numNodes],
+                new double[graph.numNodes]);
+    }
+
+    // Fills the given targetWeight and outWeight vectors rather than allocating them
+    public static TopicWalk ldaWeighted(CSRGraph graph, double[] topicLda, double followPrior, double[] teleport,
+                                        double[] targetWeight, double[] outWeight) {
+        final int[] offsets = graph.offsets;
+        final int[] targets = graph.targets;
+        for(int i = 0; i < graph.numNodes; i++) {
+            targetWeight[i] = followPrior + topicLda[i];
+        }
+
+        for(int i = 0; i < graph.numNodes; i++) {
+            double neighborSum = 0.0;
+            for(int e = offsets[i]; e < offsets[i + 1]; e++) {
+                neighborSum += targetWeight[targets[e]];
+            }
+            outWeight[i] = neighborSum;
+        }
+        return new TopicWalk(graph, outWeight, targetWeight, teleport);
+    }
+}
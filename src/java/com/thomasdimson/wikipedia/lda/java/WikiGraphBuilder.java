@@ -0,0 +1,150 @@
+package com.thomasdimson.wikipedia.lda.java;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Sets;
+import com.thomasdimson.wikipedia.Data;
+import com.thomasdimson.wikipedia.Data.DumpPage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Set;
+
+// Builds the WikiGraphNode file lda.core/wiki-graph-nodes describes, in two passes over the structured dump
+// instead of three and without Clojure maps: the first collects titles and redirects into TitleDictionaries,
+// the second resolves every article's links on workers threads and writes the nodes in dump order.
+public class WikiGraphBuilder {
+    private static final ThreadLocal<LinkScanner> scanners = new ThreadLocal<LinkScanner>() {
+        @Override
+        protected LinkScanner initialValue() {
+            return new LinkScanner();
+        }
+    };
+
+    // Article title -> page id
+    public final TitleDictionary titles;
+    // Redirect title -> page id of the article it points to, or -1 when that is not an article
+    public final TitleDictionary redirects;
+
+    public WikiGraphBuilder(TitleDictionary titles, TitleDictionary redirects) {
+        this.titles = titles;
+        this.redirects = redirects;
+    }
+
+    public static WikiGraphBuilder fromDump(String dumpFile) throws IOException {
+        long start = System.nanoTime();
+        TitleDictionary.Builder titleBuilder = new TitleDictionary.Builder();
+        TitleDictionary.Builder redirectBuilder = new TitleDictionary.Builder();
+        // Redirect targets, by the index of their redirect in redirectBuilder
+        TitleDictionary.Builder targets = new TitleDictionary.Builder();
+
+        Iterator<DumpPage> it = WikipediaHandler.newStructuredDumpIterator(dumpFile);
+        while(it.hasNext()) {
+            DumpPage page = it.next();
+            if(page.hasRedirect()) {
+                redirectBuilder.put(page.getTitle(), -1);
+                targets.put(page.getRedirect(), 0);
+            } else {
+                titleBuilder.put(page.getTitle(), page.getId());
+            }
+        }
+
+        TitleDictionary titles = titleBuilder.build();
+        for(int i = 0; i < redirectBuilder.size(); i++) {
+            redirectBuilder.setValue(i, titles.get(targets.key(i), -1));
+        }
+        TitleDictionary redirects = redirectBuilder.build();
+        System.out.println("Graph builder: " + titles.size() + " titles (" + titles.bytes() / 1024 + " kB), "
+                + redirects.size() + " redirects (" + redirects.bytes() / 1024 + " kB) in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return new WikiGraphBuilder(titles, redirects);
+    }
+
+    // The id scanner's i-th link refers to, looked up as lda.core/link-text-to-id does, or -1
+    public long resolve(LinkScanner scanner, int i) {
+        long id = titles.get(scanner.link(i), -1);
+        if(id >= 0) {
+            return id;
+        }
+        boolean capitalizes = scanner.capitalizes(i);
+        if(capitalizes) {
+            id = titles.get(scanner.capitalizedLink(i), -1);
+            if(id >= 0) {
+                return id;
+            }
+        }
+        id = redirects.get(scanner.link(i), -1);
+        if(id >= 0 || !capitalizes) {
+            return id;
+        }
+        return redirects.get(scanner.capitalizedLink(i), -1);
+    }
+
+    // page's node: its distinct resolved links in the order they first appear, and its infobox type
+    public Data.WikiGraphNode node(DumpPage page) {
+        Data.WikiGraphNode.Builder builder = Data.WikiGraphNode.newBuilder()
+                .setId(page.getId())
+                .setTitle(page.getTitle());
+        LinkScanner scanner = scanners.get().scan(page.getText());
+        Set<Long> seen = Sets.newHashSet();
+        for(int i = 0; i < scanner.numLinks(); i++) {
+            long id = resolve(scanner, i);
+            if(id >= 0 && seen.add(id)) {
+                builder.addEdges(id);
+            }
+        }
+        String infobox = scanner.infoboxType();
+        if(infobox != null) {
+            builder.setInfoboxType(infobox);
+        }
+        return builder.build();
+    }
+
+    public static void writeWikiGraphNodes(String dumpFile, String outputFile) throws IOException {
+        fromDump(dumpFile).write(dumpFile, outputFile, Runtime.getRuntime().availableProcessors(),
+                WikipediaHandler.DEFAULT_STAGE_CAPACITY);
+    }
+
+    // A node for every article in dumpFile, in dump order
+    public void write(String dumpFile, String outputFile, int workers, int capacity) throws IOException {
+        long start = System.nanoTime();
+        final OutputStream out = BlockCompressedFile.newOutputStream(outputFile);
+        try {
+            final long[] written = new long[1];
+            OrderedParallelStage<DumpPage, Data.WikiGraphNode> resolve =
+                    new OrderedParallelStage<DumpPage, Data.WikiGraphNode>("resolve",
+                            new Function<DumpPage, Data.WikiGraphNode>() {
+                @Override
+                public Data.WikiGraphNode apply(DumpPage page) {
+                    return page.hasRedirect() ? null : node(page);
+                }
+            }, workers, capacity, new Function<Data.WikiGraphNode, Void>() {
+                @Override
+                public Void apply(Data.WikiGraphNode node) {
+                    try {
+                        node.writeDelimitedTo(out);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    if(++written[0] % 100000 == 0) {
+                        System.out.println("Graph builder: wrote " + written[0] + " nodes");
+                    }
+                    return null;
+                }
+            });
+
+            Iterator<DumpPage> it = WikipediaHandler.newStructuredDumpIterator(dumpFile);
+            try {
+                while(it.hasNext()) {
+                    resolve.put(it.next());
+                }
+                resolve.finish();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            System.out.println("Graph builder: " + resolve + ", " + (System.nanoTime() - start) / 1000000 + " ms");
+        } finally {
+            out.close();
+        }
+    }
+}
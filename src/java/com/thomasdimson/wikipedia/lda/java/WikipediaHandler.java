@@ -17,6 +17,7 @@ import javax.xml.parsers.SAXParserFactory;
 import java.io.*;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
@@ -24,6 +25,9 @@ import java.util.regex.Pattern;
 public class WikipediaHandler extends DefaultHandler {
     public static final Logger logger  = LogManager.getLogger(WikipediaHandler.class);
 
+    // Pages buffered by each stage of writeStructuredDump
+    public static final int DEFAULT_STAGE_CAPACITY = 1024;
+
     public static final Pattern SPECIAL_PATTERN = Pattern.compile(
         "^(File|Talk|Special|Wikipedia|Wiktionary|User|User Talk|Category|Portal|Template|MediaWiki|Help):.*$"
     );
@@ -34,9 +38,39 @@ public class WikipediaHandler extends DefaultHandler {
 
     public static void writeStructuredDump(String xmlFileName, String outputFileName) throws IOException, SAXException,
                                                                                              ParserConfigurationException, CompressorException {
+        writeStructuredDump(xmlFileName, outputFileName, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void writeStructuredDump(String xmlFileName, String outputFileName, int decompressThreads)
+            throws IOException, SAXException, ParserConfigurationException, CompressorException {
+        writeStructuredDump(xmlFileName, outputFileName, decompressThreads,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_STAGE_CAPACITY);
+    }
+
+    public static void writeStructuredDump(String xmlFileName, String outputFileName, int decompressThreads,
+                                           int workers, int stageCapacity)
+            throws IOException, SAXException, ParserConfigurationException, CompressorException {
+        writeStructuredDump(xmlFileName, outputFileName, decompressThreads, workers, stageCapacity, false, 0);
+    }
+
+    // A .bz2 input is decompressed by decompressThreads threads (see ParallelBZip2InputStream), or by the
+    // single-threaded commons-compress stream when that is 1. Pages then go through a pipeline of
+    // OrderedParallelStages: the SAX thread parses, workers threads filter out special titles, workers threads
+    // serialize, and one thread writes in dump order. Each stage holds at most stageCapacity pages.
+    // With skipFiltered, the handler drops special titles itself and keeps redirects without their text
+    // (nothing downstream reads it), so neither ever has its text accumulated.
+    // With shards > 0, outputFileName is the prefix of a ShardedDumpFile of that many shards rather than one file;
+    // otherwise a name ending in BlockCompressedFile.SUFFIX gets a block compressed file.
+    public static void writeStructuredDump(String xmlFileName, String outputFileName, int decompressThreads,
+                                           int workers, int stageCapacity, boolean skipFiltered, int shards)
+            throws IOException, SAXException, ParserConfigurationException, CompressorException {
         final InputStream inputStream;
 
-        if(xmlFileName.endsWith(".bz2")) {
+        if(xmlFileName.endsWith(".bz2") && decompressThreads > 1) {
+            inputStream = new BufferedInputStream(
+                    new ParallelBZip2InputStream(new FileInputStream(xmlFileName), decompressThreads));
+            System.out.println("Creating parallel bz2 input stream with " + decompressThreads + " threads");
+        } else if(xmlFileName.endsWith(".bz2")) {
             inputStream = new CompressorStreamFactory().createCompressorInputStream(
                     CompressorStreamFactory.BZIP2,
                     new BufferedInputStream(new FileInputStream(xmlFileName)));
@@ -47,17 +81,31 @@ public class WikipediaHandler extends DefaultHandler {
         }
 
         final AtomicInteger numSeen = new AtomicInteger(0);
-        final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFileName));
+        final OutputStream outputStream = shards > 0 ? null : BlockCompressedFile.newOutputStream(outputFileName);
+        final ShardedDumpFile.Writer shardedOutput = shards > 0
+                ? new ShardedDumpFile.Writer(outputFileName, shards) : null;
         try {
-            WikipediaHandler handler = new WikipediaHandler(new Function<DumpPage, Void>() {
+            final OrderedParallelStage<DumpPage, byte[]> serialize = new OrderedParallelStage<DumpPage, byte[]>(
+                    "serialize", new Function<DumpPage, byte[]>() {
                 @Override
-                public Void apply(DumpPage dumpPage) {
-                    if(isSpecialTitle(dumpPage.getTitle())) {
-                        return null;
+                public byte[] apply(DumpPage dumpPage) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(dumpPage.getSerializedSize() + 5);
+                    try {
+                        dumpPage.writeDelimitedTo(bytes);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
                     }
-
+                    return bytes.toByteArray();
+                }
+            }, workers, stageCapacity, new Function<byte[], Void>() {
+                @Override
+                public Void apply(byte[] bytes) {
                     try {
-                        dumpPage.writeDelimitedTo(outputStream);
+                        if(shardedOutput != null) {
+                            shardedOutput.writeDelimited(bytes);
+                        } else {
+                            outputStream.write(bytes);
+                        }
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
@@ -69,19 +117,90 @@ public class WikipediaHandler extends DefaultHandler {
                 }
             });
 
-            handler.parse(inputStream);
+            final OrderedParallelStage<DumpPage, DumpPage> filter = new OrderedParallelStage<DumpPage, DumpPage>(
+                    "filter", new Function<DumpPage, DumpPage>() {
+                @Override
+                public DumpPage apply(DumpPage dumpPage) {
+                    return isSpecialTitle(dumpPage.getTitle()) ? null : dumpPage;
+                }
+            }, workers, stageCapacity, new Function<DumpPage, Void>() {
+                @Override
+                public Void apply(DumpPage dumpPage) {
+                    try {
+                        serialize.put(dumpPage);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return null;
+                }
+            });
+
+            final AtomicInteger numParsed = new AtomicInteger(0);
+            final long parseStart = System.nanoTime();
+            Function<DumpPage, Void> parsed = new Function<DumpPage, Void>() {
+                @Override
+                public Void apply(DumpPage dumpPage) {
+                    try {
+                        filter.put(dumpPage);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    if(numParsed.incrementAndGet() % 100000 == 0) {
+                        logger.info("Parsed " + numParsed.get() + " pages; " + filter + "; " + serialize);
+                    }
+                    return null;
+                }
+            };
+            // Redirects stay in the same ordered stream so the output keeps its page order
+            WikipediaHandler handler = skipFiltered ? new WikipediaHandler(parsed, parsed) : new WikipediaHandler(parsed);
+
+            try {
+                handler.parse(inputStream);
+                filter.finish();
+                serialize.finish();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            logger.info(String.format("parse: %d pages (%d redirects, %d skipped), %.0f pages/s", numParsed.get(),
+                    handler.redirectsSeen(), handler.pagesSkipped(),
+                    numParsed.get() * 1e9 / (System.nanoTime() - parseStart)));
+            logger.info(filter.toString());
+            logger.info(serialize.toString());
         } finally {
-            outputStream.close();
+            if(shardedOutput != null) {
+                shardedOutput.close();
+            } else {
+                outputStream.close();
+            }
             inputStream.close();
         }
     }
 
+    // filename may also be the prefix of a ShardedDumpFile, or a BlockCompressedFile
     public static Iterator<DumpPage> newStructuredDumpIterator(String filename) throws FileNotFoundException {
-        final InputStream inputStream = new BufferedInputStream(new FileInputStream(filename));
+        final InputStream inputStream;
+        try {
+            if(ShardedDumpFile.isSharded(filename)) {
+                return ShardedDumpFile.open(filename).iterator(DumpPage.getDefaultInstance());
+            }
+            inputStream = BlockCompressedFile.newInputStream(filename);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
         try {
             return new Iterator<DumpPage>() {
-                DumpPage nextMessage = DumpPage.parseDelimitedFrom(inputStream);
+                DumpPage nextMessage = read();
+
+                private DumpPage read() throws IOException {
+                    DumpPage message = DumpPage.parseDelimitedFrom(inputStream);
+                    if(message == null) {
+                        inputStream.close();
+                    }
+                    return message;
+                }
 
                 @Override
                 public boolean hasNext() {
@@ -90,9 +209,12 @@ public class WikipediaHandler extends DefaultHandler {
 
                 @Override
                 public DumpPage next() {
+                    if(nextMessage == null) {
+                        throw new NoSuchElementException();
+                    }
                     DumpPage ret = nextMessage;
                     try {
-                        nextMessage = DumpPage.parseDelimitedFrom(inputStream);
+                        nextMessage = read();
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
@@ -110,6 +232,12 @@ public class WikipediaHandler extends DefaultHandler {
     }
 
     private final Function<DumpPage, Void> articleCallback;
+    // Set in skip mode: special-titled pages are dropped and redirects come here with empty text, both decided
+    // before <text> so that their text is never accumulated
+    private final Function<DumpPage, Void> redirectCallback;
+    private boolean skipPage;
+    private long pagesSkipped;
+    private long redirectsSeen;
 
     private StringBuilder pageTitleBuilder;
     private StringBuilder revisionIdBuilder;
@@ -120,7 +248,21 @@ public class WikipediaHandler extends DefaultHandler {
     private Deque<String> nameStack = Queues.newArrayDeque();
 
     public WikipediaHandler(Function<DumpPage, Void> articleCallback) {
+        this(articleCallback, null);
+    }
+
+    // With a redirectCallback, runs in skip mode (see redirectCallback)
+    public WikipediaHandler(Function<DumpPage, Void> articleCallback, Function<DumpPage, Void> redirectCallback) {
         this.articleCallback = articleCallback;
+        this.redirectCallback = redirectCallback;
+    }
+
+    public long pagesSkipped() {
+        return pagesSkipped;
+    }
+
+    public long redirectsSeen() {
+        return redirectsSeen;
     }
 
     public void parse(InputStream inputStream) throws ParserConfigurationException, SAXException, IOException {
@@ -131,6 +273,7 @@ public class WikipediaHandler extends DefaultHandler {
         if(nameStack.size() > 0) {
             if(qName.equalsIgnoreCase("page")) {
                 pageBuilder = DumpPage.newBuilder();
+                skipPage = false;
             } else if(nameStack.peek().equalsIgnoreCase("page")) {
                 if(qName.equalsIgnoreCase("redirect")) {
                     pageBuilder.setRedirect(attributes.getValue("title"));
@@ -143,7 +286,9 @@ public class WikipediaHandler extends DefaultHandler {
                 if(qName.equalsIgnoreCase("id")) {
                     revisionIdBuilder = new StringBuilder();
                 } else if(qName.equalsIgnoreCase("text")) {
-                    revisionTextBuilder = new StringBuilder();
+                    if(redirectCallback == null || !(skipPage || pageBuilder.hasRedirect())) {
+                        revisionTextBuilder = new StringBuilder();
+                    }
                 }
             }
         }
@@ -168,12 +313,20 @@ public class WikipediaHandler extends DefaultHandler {
         nameStack.pop();
         if(nameStack.size() > 0) {
             if(qName.equalsIgnoreCase("page")) {
-                articleCallback.apply(pageBuilder.build());
+                if(skipPage) {
+                    pagesSkipped++;
+                } else if(redirectCallback != null && pageBuilder.hasRedirect()) {
+                    redirectsSeen++;
+                    redirectCallback.apply(pageBuilder.build());
+                } else {
+                    articleCallback.apply(pageBuilder.build());
+                }
                 pageBuilder = null;
             } else if (nameStack.peek().equalsIgnoreCase("page")) {
                 if(qName.equalsIgnoreCase("title")) {
                     pageBuilder.setTitle(pageTitleBuilder.toString());
                     pageTitleBuilder = null;
+                    skipPage = redirectCallback != null && isSpecialTitle(pageBuilder.getTitle());
                 } else if(qName.equalsIgnoreCase("ns")) {
                     pageBuilder.setNamespace(Integer.valueOf(pageNamespaceBuilder.toString()));
                     pageNamespaceBuilder = null;
@@ -183,7 +336,7 @@ public class WikipediaHandler extends DefaultHandler {
                     pageBuilder.setId(Long.valueOf(revisionIdBuilder.toString()));
                     revisionIdBuilder = null;
                 } else if(qName.equalsIgnoreCase("text")) {
-                    pageBuilder.setText(revisionTextBuilder.toString());
+                    pageBuilder.setText(revisionTextBuilder == null ? "" : revisionTextBuilder.toString());
                     revisionTextBuilder = null;
                 }
             }
@@ -9,6 +9,20 @@
 (import 'com.thomasdimson.wikipedia.lda.java.WikipediaHandler)
 (import 'com.thomasdimson.wikipedia.lda.java.IntermediateTSPRNode)
 (import 'com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank)
+(import 'com.thomasdimson.wikipedia.lda.java.BatchPersonalizedPageRank)
+(import 'com.thomasdimson.wikipedia.lda.java.MappedGraph)
+(import 'com.thomasdimson.wikipedia.lda.java.MappedTopicSensitivePageRank)
+(import 'com.thomasdimson.wikipedia.lda.java.ShardedPageRank)
+(import 'com.thomasdimson.wikipedia.lda.java.RankSolver$Strategy)
+(import 'com.thomasdimson.wikipedia.lda.java.GraphOrdering$Method)
+(import 'com.thomasdimson.wikipedia.lda.java.TopKStability)
+(import 'com.thomasdimson.wikipedia.lda.java.ScoreStore)
+(import 'com.thomasdimson.wikipedia.lda.java.ScoreStore$Precision)
+(import 'com.thomasdimson.wikipedia.lda.java.ShardedDumpFile)
+(import 'com.thomasdimson.wikipedia.lda.java.BlockCompressedFile)
+(import 'com.thomasdimson.wikipedia.lda.java.WikiGraphBuilder)
+(import 'com.thomasdimson.wikipedia.lda.java.LinkScanner)
+(import 'com.thomasdimson.wikipedia.lda.java.TopicInference)
 (import 'com.thomasdimson.wikipedia.Data$DumpPage)
 (import 'com.thomasdimson.wikipedia.Data$WikiGraphNode)
 
@@ -20,11 +34,10 @@
 (def WikiGraphNode (protodef Data$WikiGraphNode))
 
 (defn valid-article? [^Data$DumpPage page] (not (.hasRedirect page)))
-(defn textual-links [^String wiki-text] (map #(% 1)
-                                          (re-seq #"\[\[([^|\[\]#]+)(?:[|#]|\]\])" wiki-text
-                                        )))
-(defn infobox-type [^String wiki-text] (first (map #(string/lower-case (string/trim (string/replace (% 1) #"\s+" " ")))
-                                                      (re-seq #"\{\{[Ii]nfobox\s+([a-zA-Z0-9_\s]+)" wiki-text))))
+; Both scan the text by hand (see LinkScanner), with the results of \[\[([^|\[\]#]+)(?:[|#]|\]\]) and
+; \{\{[Ii]nfobox\s+([a-zA-Z0-9_\s]+)
+(defn textual-links [^String wiki-text] (LinkScanner/textualLinks wiki-text))
+(defn infobox-type [^String wiki-text] (LinkScanner/infoboxType wiki-text))
 
 (defn extract-redirects [pages]
   (into {} (for [^Data$DumpPage page pages :when (.hasRedirect page)]
@@ -51,9 +64,20 @@
 
 (defn dump-file-iterator [^String input-file] (iterator-seq (WikipediaHandler/newStructuredDumpIterator input-file)))
 
+; Seqs over about n consecutive parts of a sharded dump (see ShardedDumpFile), in dump order, or the whole dump
+(defn dump-file-splits [^String input-file n]
+  (if (ShardedDumpFile/isSharded input-file)
+    (map iterator-seq (.splits (ShardedDumpFile/open input-file) (int n) (Data$DumpPage/getDefaultInstance)))
+    [(dump-file-iterator input-file)]))
+
+;; Splits are consecutive runs of the dump and pmap keeps their order, so merging left to right lets a later
+;; page win a duplicate title, as (extract (dump-file-iterator input-file)) would
+(defn- extract-in-parallel [extract ^String input-file]
+  (reduce merge {} (pmap extract (dump-file-splits input-file (.availableProcessors (Runtime/getRuntime))))))
+
 (defn wiki-graph-nodes [^String input-file]
-  (let [redirects (dbg-b "Extracting redirects" (extract-redirects (dump-file-iterator input-file)))
-        title-map (dbg-b "Extracting id mapping" (extract-title-id-mapping (dump-file-iterator input-file)))]
+  (let [redirects (dbg-b "Extracting redirects" (extract-in-parallel extract-redirects input-file))
+        title-map (dbg-b "Extracting id mapping" (extract-in-parallel extract-title-id-mapping input-file))]
     (dbg-b "Creating graph nodes"
       (for [^Data$DumpPage page (dump-file-iterator input-file)
              :when (valid-article? page)
@@ -64,35 +88,58 @@
   )
 )
 
+; Same nodes as wiki-graph-nodes, built in Java (see WikiGraphBuilder)
 (defn write-wiki-graph-nodes [^String input-file ^String output-file]
-  (with-open [w (io/output-stream output-file)]
-    (apply (partial protobuf-write w) (wiki-graph-nodes input-file))
-  )
-)
+  (WikiGraphBuilder/writeWikiGraphNodes input-file output-file))
 
-(defn read-wiki-graph-nodes [^String input-file] (protobuf-seq WikiGraphNode input-file))
+; Sharded and block compressed graphs go through the Java reader, as maps like protobuf-seq's
+(defn read-wiki-graph-nodes [^String input-file]
+  (if (or (ShardedDumpFile/isSharded input-file) (BlockCompressedFile/isBlockCompressed input-file))
+    (map (fn [^Data$WikiGraphNode node]
+           {:id (.getId node) :title (.getTitle node) :edges (vec (.getEdgesList node))
+            :infobox_type (when (.hasInfoboxType node) (.getInfoboxType node))})
+         (iterator-seq (TopicSensitivePageRank/newWikiGraphNodeIterator input-file)))
+    (protobuf-seq WikiGraphNode input-file)))
 
-(defn make-intermediate-tspr-nodes [^String input-file lda-map]
+(defn make-intermediate-tspr-nodes
+  ([^String input-file lda-map] (make-intermediate-tspr-nodes input-file lda-map true))
+  ([^String input-file lda-map allocate-ranks]
     (map-indexed
       (fn [idx graph-node]
         (IntermediateTSPRNode. idx
           (int (:id graph-node)) (:title graph-node) (into-array Long/TYPE (map long (:edges graph-node)))
-          (get lda-map (:title graph-node)) (:infobox_type graph-node)
+          (get lda-map (:title graph-node)) (:infobox_type graph-node) (boolean allocate-ranks)
         )
       )
       (read-wiki-graph-nodes input-file)
-  )
+  ))
 )
 
-(defn lspprank [^String input-file ^String lda-file ^String output-file ^String anchor-title ^Double convergence]
+;; Options shared by lspprank and tspr:
+;;   :solver             :jacobi (default), :parallel-pull, :gauss-seidel or :adaptive
+;;   :concurrent-topics  topics iterated at once; defaults to cores + 2 for single-threaded solvers
+;;                       and 1 for the ones that spread each topic over every core
+(defn- solver-strategy ^RankSolver$Strategy [solver]
+  (RankSolver$Strategy/valueOf (string/upper-case (string/replace (name (or solver :jacobi)) "-" "_"))))
+
+(defn- graph-ordering ^GraphOrdering$Method [ordering]
+  (GraphOrdering$Method/valueOf (string/upper-case (name (or ordering :none)))))
+
+(defn- topic-concurrency [^RankSolver$Strategy strategy n]
+  (int (or n (if (.usesPool strategy) 1 (+ 2 (.availableProcessors (Runtime/getRuntime)))))))
+
+(defn lspprank [^String input-file ^String lda-file ^String output-file ^String anchor-title ^Double convergence
+                & {:keys [solver concurrent-topics]}]
   (let [
+         strategy (solver-strategy solver)
          lda-map (dbg-b "Reading lda map" (TopicSensitivePageRank/readLDAMap lda-file))
          intermediate-vector (dbg-b "Reading intermediate nodes" (java.util.ArrayList.
                                                                    (make-intermediate-tspr-nodes input-file lda-map)))
        ]
     (do
-      (TopicSensitivePageRank/lspprankInPlace intermediate-vector anchor-title convergence)
-      (with-open [w (io/output-stream output-file)]
+      (TopicSensitivePageRank/lspprankInPlace intermediate-vector anchor-title convergence
+                                              strategy (topic-concurrency strategy concurrent-topics))
+      (with-open [w (BlockCompressedFile/newOutputStream output-file)]
         (doseq [^IntermediateTSPRNode node intermediate-vector]
           (.writeDelimitedTo (.toProto node) w)
       ))
@@ -100,15 +147,60 @@
   )
 )
 
-(defn tspr [^String input-file ^String lda-file ^String output-file ^Double convergence]
+;; anchors is a seq of article titles, or an infobox type string meaning every article with that infobox.
+;; Writes AnchorRank messages (top-k ids and ranks per anchor and topic) to output-file; nodes are left alone.
+(defn lspprank-anchors [^String input-file ^String lda-file ^String output-file anchors ^Double convergence
+                        & {:keys [anchors-per-block top-k] :or {anchors-per-block 8 top-k 1000}}]
+  (let [
+         lda-map (dbg-b "Reading lda map" (TopicSensitivePageRank/readLDAMap lda-file))
+         intermediate-vector (dbg-b "Reading intermediate nodes" (java.util.ArrayList.
+                                                                   (make-intermediate-tspr-nodes input-file lda-map)))
+         anchor-titles (if (string? anchors)
+                         (BatchPersonalizedPageRank/anchorTitlesWithInfobox intermediate-vector anchors)
+                         (java.util.ArrayList. ^java.util.Collection anchors))
+       ]
+    (with-open [w (BlockCompressedFile/newOutputStream output-file)]
+      (BatchPersonalizedPageRank/rankAnchors intermediate-vector anchor-titles convergence
+                                             (int anchors-per-block) (int top-k) w)
+    )
+  )
+)
+
+; :topics-per-block > 1 iterates that many topics per edge pass (Jacobi only, ignores :solver and checkpoints)
+; :previous-file starts from an earlier tspr output instead of the LDA prior
+; :checkpoint-dir saves each topic's progress there; with :resume true, a rerun after a crash loads the
+;   finished topics and continues the rest from their last saved iterate
+; :memory-budget-mb (0 for most of the free heap) sizes concurrency from memory instead of :concurrent-topics,
+;   reusing rank vectors across topics; :history-file keeps per-topic solve times so reruns start the slowest first
+; :ordering :rcm or :degree relabels the graph for cache locality first and logs whether that paid off
+; :stable-top-k k also stops each topic once its top k (among :stable-infobox pages, if given) has held its order
+;   for :stable-iterations iterations and can no longer be reordered, usually well before the L1 threshold
+(defn tspr [^String input-file ^String lda-file ^String output-file ^Double convergence
+            & {:keys [solver concurrent-topics topics-per-block previous-file checkpoint-dir resume
+                      memory-budget-mb history-file ordering stable-top-k stable-iterations stable-infobox]
+               :or {topics-per-block 1 stable-iterations 5}}]
   (let [
+         strategy (solver-strategy solver)
          lda-map (dbg-b "Reading lda map" (TopicSensitivePageRank/readLDAMap lda-file))
          intermediate-vector (dbg-b "Reading intermediate nodes" (java.util.ArrayList.
                                                                    (make-intermediate-tspr-nodes input-file lda-map)))
+         initial-ranks (when previous-file (TopicSensitivePageRank/newTSPRGraphNodeIterator previous-file))
+         stopping (when stable-top-k (TopKStability. (int stable-top-k) (int stable-iterations) stable-infobox))
        ]
     (do
-      (TopicSensitivePageRank/rankInPlace intermediate-vector convergence)
-      (with-open [w (io/output-stream output-file)]
+      (cond
+        (> topics-per-block 1)
+          (TopicSensitivePageRank/rankInPlaceBlocked intermediate-vector convergence (int topics-per-block) initial-ranks)
+        memory-budget-mb
+          (TopicSensitivePageRank/rankInPlaceScheduled intermediate-vector convergence strategy
+                                                       (* 1024 1024 (long memory-budget-mb)) history-file
+                                                       initial-ranks checkpoint-dir (boolean resume)
+                                                       (graph-ordering ordering) stopping)
+        :else
+          (TopicSensitivePageRank/rankInPlace intermediate-vector convergence
+                                              strategy (topic-concurrency strategy concurrent-topics) initial-ranks
+                                              checkpoint-dir (boolean resume) (graph-ordering ordering) stopping))
+      (with-open [w (BlockCompressedFile/newOutputStream output-file)]
         (doseq [^IntermediateTSPRNode node intermediate-vector]
           (.writeDelimitedTo (.toProto node) w)
       ))
@@ -116,17 +208,102 @@
   )
 )
 
-; Prepare for LDA
-(defn clean-wiki-stream [^String input-file ^String whitelist-file ^String output-file]
-  (let [^MarkupCleaner markup-cleaner (MarkupCleaner. MarkupCleaner/STOP_WORDS (MarkupCleaner/readWhitelist whitelist-file 1))
-        dump-page-clean (fn [^Data$DumpPage page] [page (.cleanMarkup markup-cleaner (.getText page))])
-        ]
-    (with-open [^java.io.BufferedOutputStream os (java.io.BufferedOutputStream. (java.io.FileOutputStream. output-file))]
-      (doseq [clean_page (pmap dump-page-clean (filter valid-article? (iterator-seq (WikipediaHandler/newStructuredDumpIterator input-file))))
-              :let [^Data$DumpPage page (get clean_page 0)
-                    ^String clean (get clean_page 1)]
-              ]
-        (.writeDelimitedTo (.build (.setText (Data$DumpPage/newBuilder page) clean)) os)
-        )
-      )
+;; tspr with the ranks in off-heap topic-major score stores instead of two double[] per node. :precision
+;; :float32 halves them again at about 1e-7 relative error. :scores-prefix also saves the raw stores as
+;; <prefix>.tspr and <prefix>.lspr (see ScoreStore/open).
+(defn tspr-off-heap [^String input-file ^String lda-file ^String output-file ^Double convergence
+                     & {:keys [solver concurrent-topics precision scores-prefix] :or {precision :float64}}]
+  (let [
+         strategy (solver-strategy solver)
+         lda-map (dbg-b "Reading lda map" (TopicSensitivePageRank/readLDAMap lda-file))
+         ^java.util.List intermediate-vector (dbg-b "Reading intermediate nodes"
+                                                    (java.util.ArrayList.
+                                                      ^java.util.Collection (make-intermediate-tspr-nodes
+                                                                              input-file lda-map false)))
+         num-nodes (.size intermediate-vector)
+         num-topics (if (zero? num-nodes) 0 (alength (.lda ^IntermediateTSPRNode (first intermediate-vector))))
+         precision (ScoreStore$Precision/valueOf (string/upper-case (name precision)))
+         tspr-scores (ScoreStore. (int num-nodes) (int num-topics) precision)
+         lspr-scores (ScoreStore. (int num-nodes) (int num-topics) precision)
+       ]
+    (do
+      (TopicSensitivePageRank/rankInPlace intermediate-vector convergence strategy
+                                          (int (topic-concurrency strategy concurrent-topics))
+                                          tspr-scores lspr-scores nil)
+      (when scores-prefix
+        (.write tspr-scores (str scores-prefix ".tspr"))
+        (.write lspr-scores (str scores-prefix ".lspr")))
+      (with-open [w (BlockCompressedFile/newOutputStream output-file)]
+        (TopicSensitivePageRank/writeTSPRGraphNodes intermediate-vector tspr-scores lspr-scores w))
+    )
+  )
+)
+
+;; Out-of-core tspr: edges and LDA live in memory-mapped files under work-dir instead of IntermediateTSPRNodes,
+;; so only rank vectors take heap (a few doubles per node for each of :concurrent-topics, default 2).
+;; Same output as tspr with the default Jacobi solver. The work-dir build is reusable across runs.
+(defn map-wiki-graph [^String input-file ^String lda-file ^String work-dir]
+  (MappedGraph/build input-file lda-file work-dir))
+
+(defn- mapped-graph ^MappedGraph [input-file lda-file work-dir rebuild]
+  (if (or rebuild (not (.exists (io/file work-dir "header"))))
+    (map-wiki-graph input-file lda-file work-dir)
+    (MappedGraph/open work-dir)))
+
+(defn tspr-mapped [^String input-file ^String lda-file ^String output-file ^Double convergence
+                   & {:keys [work-dir concurrent-topics rebuild] :or {concurrent-topics 2}}]
+  (let [
+         graph (mapped-graph input-file lda-file (or work-dir (str output-file ".mapped")) rebuild)
+       ]
+    (do
+      (MappedTopicSensitivePageRank/rank graph convergence (int concurrent-topics))
+      (with-open [w (BlockCompressedFile/newOutputStream output-file)]
+        (MappedTopicSensitivePageRank/writeTSPRGraphNodes graph input-file w))
+    )
+  )
+)
+
+;; Same as tspr-mapped, but every topic is split across :workers local worker JVMs (started with :jvm-opts)
+;; that each own a slice of the nodes and trade boundary ranks over sockets
+(defn tspr-sharded [^String input-file ^String lda-file ^String output-file ^Double convergence
+                    & {:keys [work-dir workers jvm-opts rebuild] :or {workers 4 jvm-opts ["-Xmx1G"]}}]
+  (let [
+         graph (mapped-graph input-file lda-file (or work-dir (str output-file ".mapped")) rebuild)
+       ]
+    (do
+      (ShardedPageRank/rank graph convergence (int workers) (java.util.ArrayList. ^java.util.Collection jvm-opts))
+      (with-open [w (BlockCompressedFile/newOutputStream output-file)]
+        (MappedTopicSensitivePageRank/writeTSPRGraphNodes graph input-file w))
+    )
+  )
+)
+
+; Prepare for LDA. Pages are cleaned on :workers threads and written in dump order; :fast uses
+; MarkupCleaner.cleanMarkupFast, which aims at the same text without tokenizing most words with PTBTokenizer
+; (test-clean-markup-fast compares the two)
+(defn clean-wiki-stream [^String input-file ^String whitelist-file ^String output-file
+                         & {:keys [fast workers] :or {fast false}}]
+  (let [^MarkupCleaner markup-cleaner (MarkupCleaner. MarkupCleaner/STOP_WORDS (MarkupCleaner/readWhitelist whitelist-file 1))]
+    (.cleanDump markup-cleaner input-file output-file (boolean fast)
+                (int (or workers (.availableProcessors (Runtime/getRuntime))))
+                WikipediaHandler/DEFAULT_STAGE_CAPACITY)
+  ))
+
+; clean-wiki-stream into a TokenCorpus at output-file (vocabulary in output-file.vocab), which
+; LDAModel/initializeTopicModel and writeAverageTokenProbability read without splitting the text again
+(defn clean-wiki-corpus [^String input-file ^String whitelist-file ^String output-file
+                         & {:keys [fast workers] :or {fast false}}]
+  (let [^MarkupCleaner markup-cleaner (MarkupCleaner. MarkupCleaner/STOP_WORDS (MarkupCleaner/readWhitelist whitelist-file 1))]
+    (.cleanDumpToCorpus markup-cleaner input-file output-file (boolean fast)
+                        (int (or workers (.availableProcessors (Runtime/getRuntime))))
+                        WikipediaHandler/DEFAULT_STAGE_CAPACITY)
   ))
+
+; Topic proportions for the articles in delta-file (a cleaned dump or TokenCorpus of just the new and changed
+; pages) under a model saved with ParallelTopicModel.write, in the file readLDAMap reads. With :base-file, the
+; output is that file with those articles' rows replaced or added, so tspr can rerun without retraining LDA
+(defn infer-topics [^String model-file ^String delta-file ^String output-file & {:keys [base-file workers]}]
+  (.inferDump (TopicInference/forModel model-file) delta-file output-file ^String base-file
+              (int (or workers (.availableProcessors (Runtime/getRuntime))))
+              WikipediaHandler/DEFAULT_STAGE_CAPACITY)
+  )
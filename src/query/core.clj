@@ -6,6 +6,8 @@
   (:import com.thomasdimson.wikipedia.Data$TSPRGraphNode)
   (:import com.thomasdimson.wikipedia.lda.java.SimilarityUtils)
   (:import com.thomasdimson.wikipedia.lda.java.TopicSensitivePageRank)
+  (:import com.thomasdimson.wikipedia.lda.java.LocalPersonalizedPageRank)
+  (:import com.thomasdimson.wikipedia.lda.java.LocalPersonalizedPageRank$Result)
 )
 
 (set! *warn-on-reflection* true)
@@ -23,7 +25,7 @@
 (def question-parse
   (insta/parser
     "
-      <S> = (similar_query|compare_query|topk_query) <query_endings>? 
+      <S> = (similar_query|compare_query|topk_query|local_query) <query_endings>? 
       query_endings = sep* ('?'|'.'|'!')? sep*
 
       feature_specializer = <sep>? <'*'> <'*'> ('tspr' | 'lda' | 'lspr' | 'x2' | 'emass')
@@ -40,6 +42,8 @@
       topk_question_phase = question_word (<sep> ('is'|'are'))?
       topk_indicator = ('the' <sep>)? ('top'|'most' <sep> 'influential'|'best'|'greatest')
 
+      local_query = (<question_word> <sep>)? <'matters' | 'Matters'> <sep> <'to' | 'for'> <sep> article_title <sep> topic_refinement
+
       topic_refinement = <'in'> <sep> topics | <'related' sep 'to' sep> topics 
 
       question_word = 'who'|'what'|'which'|'Who'|'What'|'Which'
@@ -104,6 +108,13 @@
     }
 ))
 
+(defn local-template [local-tree]
+  {
+   :type :local
+   :article-title (first (lift-article-titles local-tree))
+   :topics (into [] (lift-topics local-tree))
+  })
+
 (defn extract-query-template [query]
   (let [parse-tree (dbg (question-parse query))]
     (if (insta/failure? parse-tree)
@@ -113,6 +124,7 @@
         :similar_query (knn-query-template (first parse-tree))
         :compare_query (compare-template (first parse-tree))
         :topk_query (topk-template (first parse-tree))
+        :local_query (local-template (first parse-tree))
         nil
       )
     )
@@ -126,12 +138,30 @@
   (when topics (.determineTopicIndex db topics))
 )
 
+; Where the query side's data files live; -Dcompari.data-dir=... points it elsewhere
+(def data-dir (System/getProperty "compari.data-dir" "data/full"))
+(defn data-file ^String [name] (str (io/file data-dir name)))
+
 (defn nearest-neighbors-disk [source features norm limit]
     (SimilarityUtils/nearestNeighbors source 
-        (TopicSensitivePageRank/newTSPRGraphNodeIterator "data/full/tspr_lspr.dat")
+        (TopicSensitivePageRank/newTSPRGraphNodeIterator (data-file "tspr_lspr.dat"))
         (name features) (name norm) limit)
 )
 
+; Local personalized rank: what matters relative to one article, computed on demand by forward push.
+; "What matters to <article> in <topic>?" asks for it. Edges and LDA are memory-mapped from wiki_graph.mapped,
+; built there on first use
+(def local-ranker (delay (LocalPersonalizedPageRank/fromFiles (data-file "wiki_graph.dat") (data-file "lda.txt")
+                                                              (data-file "wiki_graph.mapped"))))
+
+(defn local-result-obj [^LocalPersonalizedPageRank$Result r]
+  {
+   :title (.title r)
+   :infobox (.infoboxType r)
+   :rank (.rank r)
+  }
+)
+
 (defn graph-node-obj [^Data$TSPRGraphNode n]
   {
    :title (.getTitle n)
@@ -196,6 +226,25 @@
   )
 )
 
+(defmethod perform-query :local [local-template]
+  (let [db (DBAccess.)
+        limit 100
+        ^String article-title (:article-title local-template)
+        topic-index (closest-topic db (:topics local-template))
+        ^LocalPersonalizedPageRank ranker @local-ranker
+        ]
+    (when topic-index
+      {
+       :type :local
+       :article-title article-title
+       :topic-index topic-index
+       :topic-words (:topics local-template)
+       :articles (into [] (map local-result-obj (.topK ranker article-title (int topic-index) (int limit))))
+      }
+    )
+  )
+)
+
 (defmethod perform-query :compare [compare-template]
   (let [db (DBAccess.)
         ^Data$TSPRGraphNode a1 (closest-article db (:first-article-title compare-template))
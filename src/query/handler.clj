@@ -45,6 +45,8 @@
            "What is the best film related to Anime?"
            [:br]
            "Who is the best philosopher?"
+           [:br]
+           "What matters to Albert Einstein in physics?"
           ]
 
         ]
@@ -1,6 +1,14 @@
 (ns lda.core-test
   (:require [clojure.test :refer :all]
-            [lda.core :refer :all]))
+            [clojure.java.io :as io]
+            [clojure.string :as string]
+            [lda.core :refer :all])
+  (:import [com.thomasdimson.wikipedia Data$DumpPage Data$TSPRGraphNode Data$WikiGraphNode]
+           [com.thomasdimson.wikipedia.lda.java LDAModel MarkupCleaner ShardedDumpFile$Writer TopicInference
+                                                TopicSensitivePageRank]
+           [java.util Random]
+           [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
 
 
 (def some-wiki "<div style=\"font-size:162%; border:none; margin:0; padding:.1em; color:#000;\">Welcome to [[Wikipedia]],</div>
@@ -23,3 +31,156 @@
   (is (= nil (infobox-type some-wiki)))
 )
 
+(def cleaner-whitelist #{"fig" "see" "page" "vol" "etc" "inc" "jan" "dept" "color" "cannot" "history" "berlin"})
+
+; Chunks and the separators between them, as markup and whitespace
+(def cleaner-words ["see" "fig." "Fig." "page" "vol." "no." "etc." "inc." "jan." "dept." "fig" "3" "12" "3a" "1990s"
+                    "(555)" "123-4567" "1/2" "colour" "cannot" "History" "Berlin" "(fig." "fig.)" "fig.," "e.g." "p."
+                    "." "," "(" ")" "\"" "3.14" "1,000"])
+(def cleaner-separators [" " " " " " "  " "\n" "\t" "\r" "[[" "]]" "|}" "{{" "''" "--" "---" "<" ">" "=" "#" "|" "}"
+                         "-"])
+
+; Up to six chunks, each followed by up to two separators
+(defn- random-markup [^Random random]
+  (let [pick #(nth % (.nextInt random (count %)))]
+    (apply str (for [_ (range (inc (.nextInt random 6)))]
+                 (apply str (pick cleaner-words) (repeatedly (.nextInt random 3) #(pick cleaner-separators)))))))
+
+(deftest test-clean-markup-fast
+  (testing "cleanMarkupFast gives what cleanMarkup does, down to the spacing PTBTokenizer reads abbreviations by")
+  (let [cleaner (MarkupCleaner. MarkupCleaner/STOP_WORDS cleaner-whitelist)
+        random (Random. 22)]
+    ; A number after "fig." only makes it an abbreviation across exactly one space
+    (is (= "see page " (.cleanMarkupFast cleaner "see fig. 3 page")))
+    (doseq [text ["see fig. [[3]] page" "see fig.  3 page" "see fig.|} 3 page" "see fig. \n 3 page"]]
+      (is (= "see fig page " (.cleanMarkup cleaner text) (.cleanMarkupFast cleaner text)) text))
+    (doseq [text (repeatedly 2000 #(random-markup random))]
+      (is (= (.cleanMarkup cleaner text) (.cleanMarkupFast cleaner text)) text))))
+
+(defn- temp-dir ^java.io.File [prefix]
+  (.toFile (Files/createTempDirectory prefix (make-array FileAttribute 0))))
+
+(defn- delete-dir [^java.io.File dir]
+  (doseq [^java.io.File f (reverse (file-seq dir))] (.delete f)))
+
+; n pages in blocks of 2 across 3 shards, titled so every title turns up several times
+(defn- write-sharded-dump [prefix n]
+  (let [writer (ShardedDumpFile$Writer. prefix 3 2)]
+    (doseq [i (range n)]
+      (.write writer (.build (-> (Data$DumpPage/newBuilder) (.setNamespace 0) (.setId i)
+                                 (.setTitle (str "Page " (mod i 7))) (.setText "")))))
+    (.close writer)))
+
+(deftest test-dump-file-splits
+  (testing "Splits of a sharded dump come back in dump order, so duplicate titles resolve as in one pass")
+  (let [dir (temp-dir "splits-test")
+        prefix (str (io/file dir "dump"))]
+    (write-sharded-dump prefix 41)
+    (let [splits (dump-file-splits prefix 4)]
+      (is (= 4 (count splits)))
+      (is (= (map #(.getId ^Data$DumpPage %) (dump-file-iterator prefix))
+             (map #(.getId ^Data$DumpPage %) (apply concat splits)))))
+    (is (= (extract-title-id-mapping (dump-file-iterator prefix))
+           (reduce merge {} (pmap extract-title-id-mapping (dump-file-splits prefix 4)))
+           (#'lda.core/extract-in-parallel extract-title-id-mapping prefix)))
+    (delete-dir dir)))
+
+; n articles linking to up to 8 random others each, written as write-wiki-graph-nodes writes them
+(defn- write-random-graph [graph-file n seed]
+  (let [random (Random. seed)]
+    (with-open [out (io/output-stream graph-file)]
+      (doseq [i (range n)]
+        (.writeDelimitedTo
+          (.build (.addAllEdges (-> (Data$WikiGraphNode/newBuilder) (.setId (+ 1000 i)) (.setTitle (str "Page " i)))
+                                (distinct (repeatedly (.nextInt random 9) #(long (+ 1000 (.nextInt random n)))))))
+          out)))))
+
+; Three topics per article, made up from its title so every run sees the same priors
+(defn- write-made-up-lda [graph-file lda-file]
+  (with-open [w (io/writer lda-file)]
+    (doseq [[num node] (map-indexed vector (read-wiki-graph-nodes graph-file))]
+      (.write w (str (string/join "\t" (concat [num (:title node)]
+                                               (mapcat #(vector % (inc (mod (hash (str % (:title node))) 10)))
+                                                       (range 3))))
+                     "\n")))))
+
+(defn- max-rank-difference [file-a file-b]
+  (loop [a (iterator-seq (TopicSensitivePageRank/newTSPRGraphNodeIterator file-a))
+         b (iterator-seq (TopicSensitivePageRank/newTSPRGraphNodeIterator file-b))
+         worst 0.0]
+    (cond
+      (and (empty? a) (empty? b)) worst
+      (or (empty? a) (empty? b)) (throw (AssertionError. "Different node counts"))
+      :else (let [^Data$TSPRGraphNode x (first a)
+                  ^Data$TSPRGraphNode y (first b)]
+              (when (not= (.getId x) (.getId y))
+                (throw (AssertionError. (str "Node " (.getId x) " against " (.getId y)))))
+              (recur (rest a) (rest b)
+                     (apply max worst (map #(Math/abs (- (double %1) (double %2)))
+                                           (concat (.getTsprList x) (.getLsprList x))
+                                           (concat (.getTsprList y) (.getLsprList y)))))))))
+
+(deftest test-tspr-sharded
+  (testing "Worker processes on one box give the single-process ranks")
+  (let [dir (temp-dir "sharded-test")
+        file #(str (io/file dir %))]
+    (write-random-graph (file "graph.dat") 2000 42)
+    (write-made-up-lda (file "graph.dat") (file "lda.txt"))
+    (tspr-mapped (file "graph.dat") (file "lda.txt") (file "single.dat") 1e-10 :work-dir (file "single"))
+    (tspr-sharded (file "graph.dat") (file "lda.txt") (file "sharded.dat") 1e-10 :work-dir (file "sharded")
+                  :workers 3 :jvm-opts ["-Xmx128m"])
+    (is (< (max-rank-difference (file "single.dat") (file "sharded.dat")) 1e-9))
+    (delete-dir dir)))
+
+; Cleaned pages as clean-wiki-stream writes them, one per title
+(defn- write-cleaned-dump [file pages]
+  (with-open [out (io/output-stream file)]
+    (doseq [[id [title text]] (map-indexed vector pages)]
+      (.writeDelimitedTo (.build (-> (Data$DumpPage/newBuilder) (.setNamespace 0) (.setId id) (.setTitle title)
+                                     (.setText text)))
+                         out))))
+
+(deftest test-infer-topics
+  (testing "Inferred rows replace or extend the base document topic file and read back with readLDAMap")
+  (let [dir (temp-dir "infer-test")
+        file #(str (io/file dir %))
+        base-titles (map #(str "Page " %) (range 6))
+        base-rows (map-indexed (fn [num title] [num title (/ num 10.0) (- 1 (/ num 10.0))]) base-titles)]
+    (write-cleaned-dump (file "train.dat")
+                        (for [i (range 12)]
+                          [(str "Training " i)
+                           (if (even? i) "planet orbit star comet planet star" "guitar song chord album song")]))
+    (let [model (LDAModel/initializeTopicModel (file "train.dat") 2)]
+      (.setNumThreads model 1)
+      (.setNumIterations model 50)
+      (.estimate model)
+      (.write model (io/file (file "model"))))
+    (spit (file "base.tsv")
+          (apply str "#doc name topic proportion ...\n"
+                 (for [[num title a b] base-rows] (str num "\t" title "\t0\t" a "\t1\t" b "\n"))))
+    (write-cleaned-dump (file "delta.dat") [["Page 2" "guitar chord album song song"]
+                                            ["Brand new" "comet orbit planet star"]])
+
+    (infer-topics (file "model") (file "delta.dat") (file "merged.tsv") :base-file (file "base.tsv") :workers 2)
+    (let [base (TopicSensitivePageRank/readLDAMap (file "base.tsv"))
+          merged (TopicSensitivePageRank/readLDAMap (file "merged.tsv"))
+          rows (map #(string/split % #"\t")
+                    (remove #(.startsWith ^String % "#") (string/split-lines (slurp (file "merged.tsv")))))]
+      (is (= (concat base-titles ["Brand new"]) (map second rows)))
+      (is (= (map str (range 7)) (map first rows)))
+      (is (= (set (keys merged)) (conj (set base-titles) "Brand new")))
+      (doseq [title (remove #{"Page 2"} base-titles)]
+        (is (= (seq (get base title)) (seq (get merged title))) title))
+      (doseq [title ["Page 2" "Brand new"]]
+        (is (= 3 (count (get merged title))))
+        (is (< (Math/abs (- 1.0 (reduce + (butlast (get merged title))))) 1e-9) title))
+      (is (not= (seq (get base "Page 2")) (seq (get merged "Page 2")))))
+
+    (testing "An unreadable inferencer cache is rebuilt from the model")
+    (is (.exists (io/file (TopicInference/cacheFile (file "model")))))
+    (spit (TopicInference/cacheFile (file "model")) "not a cache")
+    (infer-topics (file "model") (file "delta.dat") (file "again.tsv") :base-file (file "base.tsv") :workers 1)
+    (is (= (slurp (file "merged.tsv")) (slurp (file "again.tsv"))))
+    (is (> (.length (io/file (TopicInference/cacheFile (file "model")))) (count "not a cache")))
+    (is (empty? (filter #(.endsWith (.getName ^java.io.File %) ".tmp") (file-seq dir))))
+    (delete-dir dir)))